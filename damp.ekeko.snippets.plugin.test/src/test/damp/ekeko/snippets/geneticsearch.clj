@@ -16,6 +16,7 @@
              ])
   (:require [damp.ekeko.snippets.geneticsearch
              [fitness :as fitness]
+             [fitnesscache :as fitnesscache]
              [search :as search]])
   (:require [test.damp [ekeko :as test]])
   (:require [damp.ekeko.jdt 
@@ -83,6 +84,16 @@
 ; Given the concrete matches of a template (used in SCAM 2014),
 ; try to infer the template from the matches using genetic search
 
+(deftest
+  ^{:doc "Copies of a template group share its fingerprint, different template groups do not"}
+  fitness-fingerprint
+  (let [templategroup (snippetgroup-from-resource "/resources/EkekoX-Specifications/invokedby.ekt")
+        other (snippetgroup-from-resource "/resources/EkekoX-Specifications/invokes.ekt")]
+    (is (= (fitnesscache/templategroup-fingerprint templategroup)
+           (fitnesscache/templategroup-fingerprint (persistence/copy-snippetgroup templategroup))))
+    (is (not= (fitnesscache/templategroup-fingerprint templategroup)
+              (fitnesscache/templategroup-fingerprint other)))))
+
 (deftest
   ^{:doc "Try to infer scam_demo1.ekx's left-hand-side template"}
   scam-demo 
@@ -131,6 +142,7 @@
          jhotdraw "JHotDraw51"]
      (test/against-project-named testproject false precision-recall)
      (test/against-project-named testproject false filtered-query)
+     (test/against-project-named testproject false fitness-fingerprint)
 ;     (test/against-project-named metamodel false scam-demo)
 ;     (test/against-projects-named [jhotdraw designpatterns] false singleton-experiment)
      ))
@@ -9,9 +9,18 @@
              [snippet :as snippet]
              [snippetgroup :as snippetgroup]
              [matching :as matching]
+             [matching2 :as matching2]
              [parsing :as parsing]
              [util :as util]
              [persistence :as persistence]
+             [directives :as directives]
+             [transformation :as transformation]
+             [profiling :as profiling]
+             [nodeindex :as nodeindex]
+             [budget :as budget]
+             [closures :as closures]
+             [bindings :as bindings]
+             [operators :as operators]
              ])
   (:require [test.damp [ekeko :as test]])
   (:require [damp.ekeko.jdt 
@@ -129,6 +138,451 @@
           (snippetgroup-from-resource "/resources/EkekoX-Specifications/regexp_oneormore.ekt"))]
     (is (= 1 (count results)))))
                     
+;; Closure-compiled queries
+;; ------------------------
+
+(defn
+  matching2-specifications
+  "Returns [filename templategroup] pairs for all templates in the matching2 corpus"
+  []
+  (for [file (sort (.listFiles (test.damp.ekeko.snippets.EkekoSnippetsTest/getResourceFile "/resources/EkekoX-Specifications/matching2")))
+        :when (.endsWith (.getName file) ".ekt")]
+    [(.getName file) (persistence/slurp-snippet file)]))
+
+(defn
+  check-specifications
+  "Runs a check on each template group of the matching2 corpus
+   @param check  Function of the group's file name (the message of failed assertions) and its match plan;
+                 the group itself is the :templategroup of the plan"
+  [check]
+  (doseq [[filename templategroup] (matching2-specifications)]
+    (check filename (matching2/compile-templategroup templategroup))))
+
+(defn
+  query-results
+  "Query a template group via its generated Ekeko query, either by eval'ing the query or by compiling it to closures"
+  [templategroup eval?]
+  (binding [querying/*eval-queries* eval?]
+    (into #{} (querying/query-by-snippetgroup templategroup 'damp.ekeko/ekeko))))
+
+(deftest
+  ^{:doc "Queries compiled to closures produce the same results as their eval'ed counterparts."}
+  match-closures-eval-equivalence
+  (check-specifications
+    (fn [filename plan]
+      (is (= (query-results (:templategroup plan) true) 
+             (query-results (:templategroup plan) false))
+          filename))))
+
+(deftest
+  ^{:doc "Queries with a user expression that can't be compiled to closures (here: case and letfn) are eval'ed instead."}
+  match-closures-fallback
+  (doseq [expression ['(case (count [1 2]) 2 :two :other)
+                      '(letfn [(two [] :two)] (two))]]
+    (let [query (list 'damp.ekeko/ekeko '[?x] (list 'clojure.core.logic/== '?x expression))]
+      (is (thrown? Exception (closures/compile-query [] query)) (str expression))
+      (is (= #{:two} (into #{} (querying/run-query [] query))) (str expression)))))
+
+(defn
+  benchmark-closures-eval
+  "Compares the time needed to query each template of the matching2 corpus, 
+   by eval'ing the generated query and by compiling it to closures.
+   Prints the average times (in ms) over the given number of runs, and returns them as a map."
+  ([]
+    (benchmark-closures-eval 10))
+  ([runs]
+    (let [time-ms (fn [f]
+                    (let [start (System/nanoTime)]
+                      (f)
+                      (/ (double (- (System/nanoTime) start)) 1000000.0)))
+          average-ms (fn [templategroup eval?]
+                       (/ (reduce + (repeatedly runs (fn [] (time-ms (fn [] (query-results templategroup eval?))))))
+                          runs))]
+      (into {}
+            (for [[filename templategroup] (matching2-specifications)]
+              (let [eval-ms (average-ms templategroup true)
+                    closures-ms (average-ms templategroup false)]
+                (println filename "- eval:" eval-ms "ms - closures:" closures-ms "ms")
+                [filename {:eval eval-ms :closures closures-ms}]))))))
+
+(deftest
+  ^{:doc "Matching within a budget returns a subset of the unrestricted matches, flagged as truncated if a limit was hit."}
+  match-within-budget
+  (check-specifications
+    (fn [filename plan]
+      (let [all-matches (into #{} (matching2/query-templategroup plan))
+            unlimited (matching2/query-templategroup-within-budget plan {})
+            limited (matching2/query-templategroup-within-budget plan {:max-candidates 1 :max-bindings 1})]
+        (is (= all-matches (into #{} unlimited)) filename)
+        (is (not (:truncated (meta unlimited))) filename)
+        (is (<= (count limited) 1) filename)
+        (is (every? all-matches limited) filename)
+        (if (< (count limited) (count all-matches))
+          (is (:truncated (meta limited)) filename))))))
+
+(deftest
+  ^{:doc "Once the time limit of a budget has run out, matching stops without losing the matches found so far:
+          batch queries and streams end with a truncated (here: empty) result, and util/thunk-timeout throws a TimeoutException, 
+          also for queries that are compiled to closures."}
+  match-budget-expiry
+  (check-specifications
+    (fn [filename plan]
+      (let [batch (matching2/query-templategroup-within-budget plan {:time-limit -1})
+            stream-budget (budget/make-budget {:time-limit -1})
+            streamed (budget/with-budget stream-budget (doall (matching2/query-templategroup-seq plan false)))]
+        (is (empty? batch) filename)
+        (is (empty? streamed) filename)
+        (when (matching2/templategroup-exists? plan)
+          (is (:truncated (meta batch)) filename)
+          (is (budget/truncated? stream-budget) filename)
+          (is (thrown? java.util.concurrent.TimeoutException
+                       (util/thunk-timeout (fn [] (doall (matching2/query-templategroup-seq plan false))) -1))
+              filename))
+        (is (thrown? java.util.concurrent.TimeoutException
+                     (util/thunk-timeout (fn [] (query-results (:templategroup plan) false)) -1))
+            filename)))))
+
+(def 
+  ^{:doc "Number of calls to pause-after-first-chunk"}
+  first-chunk-calls 
+  (atom 0))
+
+(defn
+  pause-after-first-chunk
+  "Called by the if directive of a template in match-budget-across-templates, for each of its candidate matches:
+   sleeps for ms once the candidates of the first chunk (see matching2/budget-chunk-size) have been checked"
+  [ms]
+  (when (= (swap! first-chunk-calls inc) (inc matching2/budget-chunk-size))
+    (Thread/sleep ms))
+  true)
+
+(deftest
+  ^{:doc "If the time limit runs out while a chunk of the first template is narrowed down by the second one, 
+          matching the group stops, and the complete matches of the chunks before are returned as a truncated result."}
+  match-budget-across-templates
+  (let [first-chunk (take matching2/budget-chunk-size (nodeindex/nodes-of-class org.eclipse.jdt.core.dom.SimpleName))
+        name-snippet (let [snippet (matching/jdt-node-as-snippet (last first-chunk))]
+                       (operators/add-directive-if snippet (snippet/snippet-root snippet) 
+                                                   "(test.damp.ekeko.snippets.matching/pause-after-first-chunk 1500)"))
+        [method] (first (damp.ekeko/ekeko [?m] (ast/ast :MethodDeclaration ?m)))
+        plan (matching2/compile-templategroup 
+               (snippetgroup/make-snippetgroup "two-templates" [name-snippet (matching/jdt-node-as-snippet method)]))
+        ; The potential values of the first template's root variable lie in the first chunk
+        in-first-chunk (fn [match] (every? (set first-chunk) (get match (first (:rootvars plan)))))]
+    (binding [matching2/*cost-based-order* false
+              matching2/*seed-from-values* false]
+      (let [all-matches (into #{} (matching2/query-templategroup plan))
+            _ (reset! first-chunk-calls 0)
+            limited (matching2/query-templategroup-within-budget plan {:time-limit 1000})]
+        (is (:truncated (meta limited)))
+        (is (seq limited))
+        (is (= (into #{} (filter in-first-chunk all-matches)) (into #{} limited)))))))
+
+(deftest
+  ^{:doc "Restricting the root candidates of each template to the roots of its matches doesn't change the matches."}
+  match-root-candidates
+  (check-specifications
+    (fn [filename plan]
+      (let [matches (matching2/query-templategroup-list plan false)
+            root-values (:root-values (meta matches))
+            restricted (matching2/query-templategroup-list plan false root-values)]
+        (is (= (count root-values) (count (:templateplans plan))) filename)
+        (is (= matches restricted) filename)
+        (is (= root-values (:root-values (meta restricted))) filename)))))
+
+(deftest
+  ^{:doc "Streamed results have a fixed column order, and limiting them returns a subset of all results."}
+  match-streaming
+  (check-specifications
+    (fn [filename plan]
+      (let [matches (matching2/query-templategroup-list plan true)
+            streamed (matching2/query-templategroup-seq plan true)
+            limited (matching2/query-templategroup-limit plan true 1)]
+        (is (= matches (into #{} streamed)) filename)
+        (is (= (count matches) (count streamed)) filename)
+        (is (= (:columns (meta matches)) (matching2/templategroup-columns plan true)) filename)
+        (is (= (take (count (:templateplans plan)) (:columns (meta matches))) (:rootvars plan)) filename)
+        (is (= (min 1 (count matches)) (count limited)) filename)
+        (is (every? matches limited) filename)
+        (is (= (not (empty? matches)) (matching2/templategroup-exists? plan)) filename)))))
+
+(deftest
+  ^{:doc "Streams produce the same distinct tuples regardless of where chunk boundaries fall, 
+          and joining two binding rows keeps only the values a variable has in both."}
+  match-chunk-boundaries
+  (check-specifications
+    (fn [filename plan]
+      (let [matches (matching2/query-templategroup-list plan true)]
+        (doseq [chunk-size [1 2 3 matching2/stream-chunk-size]]
+          (let [streamed (#'matching2/templategroup-results plan true nil chunk-size)]
+            (is (= matches (into #{} streamed)) [filename chunk-size])
+            (is (= (count matches) (count streamed)) [filename chunk-size]))))))
+  (let [row1 (object-array [[1 2] nil [5]])
+        row2 (object-array [[2 3] [4]])]
+    (is (= [[2] [4] [5]] (vec (bindings/row-join row1 row2))))
+    (is (nil? (bindings/row-join row1 (object-array [[3]]))))
+    (is (= 3 (count (bindings/join-rows [row1 (object-array [[1]])] [row2 (object-array [nil [6]])]))))))
+
+(deftest
+  ^{:doc "Two templates whose roots share the variable of an equivalent directive match every pair of names 
+          with the same identifier, whether the group is streamed or matched in one go:
+          the directive only generates its own subject, so the second template has to be matched with the bindings of the first."}
+  match-shared-equivalent
+  (let [names (group-by (fn [[node]] (.getIdentifier node))
+                        (damp.ekeko/ekeko [?n] (ast/ast :SimpleName ?n)))
+        [identifier nodes] (first (filter (fn [[identifier nodes]] (<= 2 (count nodes) 20)) (sort names)))
+        template (fn [[node]]
+                   (let [snippet (matching/jdt-node-as-snippet node)]
+                     (operators/add-directive-equivalent snippet (snippet/snippet-root snippet) '?v)))
+        plan (matching2/compile-templategroup 
+               (snippetgroup/make-snippetgroup "shared-equivalent" (map template (take 2 nodes))))
+        pairs (* (count nodes) (count nodes))]
+    (is (= pairs (count (matching2/query-templategroup-list plan false))) identifier)
+    (is (= pairs (count (into #{} (matching2/query-templategroup plan)))) identifier)
+    (is (= pairs (count (#'matching2/templategroup-results plan false nil 1))) identifier)))
+
+(deftest
+  ^{:doc "Profiling doesn't change the matches, and records candidate counts for the root of each template."}
+  match-profiled
+  (check-specifications
+    (fn [filename plan]
+      (let [profile (profiling/make-profile)
+            profiled (profiling/with-profile profile (doall (matching2/query-templategroup plan)))
+            rows (profiling/profile-rows profile (:templategroup plan))]
+        (is (= (into #{} (matching2/query-templategroup plan)) (into #{} profiled)) filename)
+        (is (every? (fn [row] (<= (:out row) (:in row))) rows) filename)
+        (doseq [templateplan (:templateplans plan)]
+          (is (some (fn [row] (and (= "node" (:phase row)) (= (util/classname (:root templateplan)) (:class row)))) rows) 
+              filename))))))
+
+(deftest
+  ^{:doc "Counting matched nodes in a batch of partial models gives the same counts as querying each model separately."}
+  match-partial-models
+  (check-specifications
+    (fn [filename plan]
+      (let [root-values (:root-values (meta (matching2/query-templategroup-list plan false)))]
+        (when (every? seq root-values)
+          (let [model (damp.ekeko.snippets.geneticsearch.PartialJavaProjectModel.)]
+            (doseq [values root-values]
+              (.addExistingAST model (first values)))
+            (is (= [(:node-count (meta (binding [damp.ekeko.ekekomodel/*queried-project-models* (atom [model])
+                                                 matching2/*cost-based-order* false]
+                                         (matching2/query-templategroup plan))))]
+                   (matching2/templategroup-node-counts plan [model]))
+                filename)))))))
+
+(deftest
+  ^{:doc "Each partial model is the only queried project model while its node count is computed, 
+          so a directive whose answer depends on the queried models gives the same answer as when querying the model separately."}
+  match-partial-models-directives
+  (let [[node] (first (damp.ekeko/ekeko [?m] (ast/ast :MethodDeclaration ?m)))
+        snippet (matching/jdt-node-as-snippet node)
+        snippet (operators/add-directive-if 
+                  snippet (snippet/snippet-root snippet)
+                  "(instance? damp.ekeko.snippets.geneticsearch.PartialJavaProjectModel (first @damp.ekeko.ekekomodel/*queried-project-models*))")
+        plan (matching2/compile-templategroup (snippetgroup/make-snippetgroup "partial-model" [snippet]))
+        model (damp.ekeko.snippets.geneticsearch.PartialJavaProjectModel.)]
+    (.addExistingAST model node)
+    (let [separately (binding [damp.ekeko.ekekomodel/*queried-project-models* (atom [model])
+                               matching2/*cost-based-order* false]
+                       (matching2/query-templategroup plan))]
+      (is (empty? (matching2/query-templategroup plan)))
+      (is (= 1 (count separately)))
+      (is (= [(:node-count (meta separately))] (matching2/templategroup-node-counts plan [model]))))))
+
+(deftest
+  ^{:doc "Matching children and templates in order of their estimated cost doesn't change the matches."}
+  match-cost-based-order
+  (check-specifications
+    (fn [filename plan]
+      (is (= (into #{} (binding [matching2/*cost-based-order* false] (doall (matching2/query-templategroup plan))))
+             (into #{} (binding [matching2/*cost-based-order* true] (doall (matching2/query-templategroup plan)))))
+          filename)
+      (is (= (sort (:template-order plan)) (range (count (:templateplans plan)))) filename))))
+
+(deftest
+  ^{:doc "Cost-based ordering only permutes the children of AST nodes: pure filters go first, 
+          the other children keep their original order, and list elements are never reordered."}
+  match-child-order
+  (check-specifications
+    (fn [filename plan]
+      (is (= (sort (:template-order plan)) (range (count (:templateplans plan)))) filename)
+      (doseq [templateplan (:templateplans plan)]
+        (let [[_ estimate] (#'matching2/order-children (:nodes templateplan) 
+                                                        (nodeindex/class-frequencies (nodeindex/index-state)))
+              pure? (fn [child] (nth (estimate child) 2))]
+          (doseq [[value info] (:nodes templateplan)
+                  :when (:ordered-children info)]
+            (let [children (:children info)
+                  ordered (:ordered-children info)]
+              (is (not (:list? info)) filename)
+              (is (= (frequencies children) (frequencies ordered)) filename)
+              (is (= (remove pure? children) (remove pure? ordered)) filename)
+              (is (every? pure? (take (count (filter pure? children)) ordered)) filename))))))))
+
+(deftest
+  ^{:doc "Looking up the root candidates of each template via its rarest concrete value doesn't change the matches."}
+  match-value-seeding
+  (check-specifications
+    (fn [filename plan]
+      (is (= (into #{} (binding [matching2/*seed-from-values* false] (doall (matching2/query-templategroup plan))))
+             (into #{} (binding [matching2/*seed-from-values* true] (doall (matching2/query-templategroup plan)))))
+          filename))))
+
+(deftest
+  ^{:doc "The seed of a template is its rarest seed, occurs less often than the root's class, 
+          and the nodes found via the seed include the roots of all of the template's matches."}
+  match-seed-choice
+  (check-specifications
+    (fn [filename plan]
+      (let [state (nodeindex/index-state)
+            root-values (:root-values (meta (matching2/query-templategroup-list plan false)))]
+        (doseq [[templateplan roots] (map vector (:templateplans plan) root-values)]
+          (let [seeds (#'matching2/template-seeds (:nodes templateplan) (:root templateplan))]
+            (when-let [[key path :as seed] (:seed templateplan)]
+              (is (some #{seed} seeds) filename)
+              (is (= (nodeindex/value-count state key)
+                     (apply min (map (fn [[key _]] (nodeindex/value-count state key)) seeds)))
+                  filename)
+              (is (< (nodeindex/value-count state key) (nodeindex/class-count state (class (:root templateplan)))) filename)
+              (is (every? (set (#'matching2/seeded-candidates templateplan)) roots) filename))))))))
+
+(defn
+  memory-profile
+  "Runs f (without args) on the current thread, and measures the memory it needs
+   @return map with the time (in ms), the number of bytes allocated by the current thread, 
+           the allocation rate (in MB/s) and the peak heap usage (in MB) while running f"
+  [f]
+  (let [threads (java.lang.management.ManagementFactory/getThreadMXBean)
+        heap-pools (filter (fn [pool] (= java.lang.management.MemoryType/HEAP (.getType pool)))
+                           (java.lang.management.ManagementFactory/getMemoryPoolMXBeans))
+        thread-id (.getId (Thread/currentThread))
+        _ (doseq [pool heap-pools] (.resetPeakUsage pool))
+        start-bytes (.getThreadAllocatedBytes ^com.sun.management.ThreadMXBean threads thread-id)
+        start (System/nanoTime)
+        _ (f)
+        time-ms (/ (double (- (System/nanoTime) start)) 1000000.0)
+        allocated (- (.getThreadAllocatedBytes ^com.sun.management.ThreadMXBean threads thread-id) start-bytes)]
+    {:time time-ms
+     :allocated allocated
+     :allocation-rate (/ (/ allocated 1048576.0) (max (/ time-ms 1000.0) 0.001))
+     :peak-heap (/ (reduce + (map (fn [pool] (.getUsed (.getPeakUsage pool))) heap-pools)) 1048576.0)}))
+
+(defn
+  benchmark-matching2-memory
+  "Measures the memory needed to match each template of the matching2 corpus with matching2
+   (Run against the TestCase-JDT-CompositeVisitor project, with matching2's hmap set to :sequential, 
+   such that all allocations happen on the current thread)"
+  ([]
+    (benchmark-matching2-memory 5))
+  ([runs]
+    (into {}
+          (for [[filename templategroup] (matching2-specifications)]
+            (let [plan (matching2/compile-templategroup templategroup)
+                  profiles (doall (repeatedly runs (fn [] (memory-profile (fn [] (doall (matching2/query-templategroup plan)))))))
+                  average (fn [key] (/ (reduce + (map key profiles)) runs))
+                  summary {:time (average :time)
+                           :allocation-rate (average :allocation-rate)
+                           :allocated (average :allocated)
+                           :peak-heap (apply max (map :peak-heap profiles))}]
+              (println filename summary)
+              [filename summary])))))
+
+;; Persistence
+;; -----------
+
+(defn
+  specification-files
+  "All persisted templates and transformations in EkekoX-Specifications (including its subdirectories)"
+  []
+  (sort
+    (filter (fn [file] 
+              (and (.isFile file) 
+                   (re-find #"\.ek[tx]$" (.getName file))))
+            (file-seq (test.damp.ekeko.snippets.EkekoSnippetsTest/getResourceFile "/resources/EkekoX-Specifications")))))
+
+(defn
+  persisted-templates
+  "The templates of a persisted template, template group or transformation"
+  [value]
+  (cond
+    (instance? damp.ekeko.snippets.transformation.Transformation value)
+    (mapcat persisted-templates [(transformation/transformation-lhs value) (transformation/transformation-rhs value)])
+    (snippetgroup/snippetgroup? value)
+    (snippetgroup/snippetgroup-snippetlist value)
+    :else
+    [value]))
+
+(defn
+  template-summary
+  "For each value of a template (in walk order): its bound directives, and the identifier of its project value"
+  [template]
+  (let [values (java.util.ArrayList.)]
+    (snippet/walk-snippet-element template (snippet/snippet-root template) (fn [value] (.add values value)))
+    (for [value values]
+      [(map directives/bounddirective-string (snippet/snippet-bounddirectives-for-node template value))
+       (snippet/snippet-value-projectanchoridentifier template value)])))
+
+(defn-
+  binary-bytes
+  [value]
+  (let [out (java.io.ByteArrayOutputStream.)]
+    (persistence/write-binary out value)
+    (.toByteArray out)))
+
+(deftest
+  ^{:doc "Every persisted template (group) and transformation survives a round trip through the binary format."}
+  persist-binary-roundtrip
+  (doseq [file (specification-files)]
+    (let [filename (.getPath file)
+          value (persistence/slurp-snippet file)
+          bytes (binary-bytes value)
+          copy (persistence/read-binary (java.io.ByteArrayInputStream. bytes))]
+      (is (= (class value) (class copy)) filename)
+      (is (= (seq bytes) (seq (binary-bytes copy))) filename)
+      (doseq [[template template-copy] (map vector (persisted-templates value) (persisted-templates copy))]
+        (is (.subtreeMatch (snippet/snippet-root template) 
+                           (org.eclipse.jdt.core.dom.ASTMatcher.) 
+                           (snippet/snippet-root template-copy))
+            filename)
+        (is (= (template-summary template) (template-summary template-copy)) filename)
+        (is (= (snippet/snippet-anchor template) (snippet/snippet-anchor template-copy)) filename)))))
+
+(deftest
+  ^{:doc "The identifier index of every persisted template agrees with the identifiers computed from each value's ancestors."}
+  snippet-identifier-index
+  (doseq [file (specification-files)]
+    (let [filename (.getPath file)]
+      (doseq [template (persisted-templates (persistence/slurp-snippet file))
+              value (snippet/snippet-nodes template)]
+        (let [identifier (snippet/snippet-value-identifier template value)]
+          (is (= identifier (#'snippet/compute-snippet-value-identifier template value)) filename)
+          (is (= value (snippet/snippet-value-corresponding-to-identifier template identifier)) filename))))))
+
+(defn
+  benchmark-persistence
+  "Compares the size of, and the time needed to slurp, each persisted template in EkekoX-Specifications
+   in the print-dup format and in the binary format."
+  []
+  (let [time-ms (fn [f]
+                  (let [start (System/nanoTime)]
+                    (f)
+                    (/ (double (- (System/nanoTime) start)) 1000000.0)))
+        binary-file (java.io.File/createTempFile "template" ".ekt")]
+    (try
+      (into {}
+            (for [file (specification-files)]
+              (let [value (persistence/slurp-snippet file)
+                    _ (persistence/spit-snippet binary-file value)
+                    summary {:printdup-size (.length file)
+                             :binary-size (.length binary-file)
+                             :printdup-ms (time-ms (fn [] (persistence/slurp-snippet|printdup file)))
+                             :binary-ms (time-ms (fn [] (persistence/slurp-snippet binary-file)))}]
+                (println (.getName file) summary)
+                [(.getPath file) summary])))
+      (finally
+        (.delete binary-file)))))
+
 ;; Test suite
   ;; ----------
 
@@ -145,6 +599,24 @@
      (test/against-project-named matchproject false match-orsimple)
      (test/against-project-named testproject false match-referredby)
      (test/against-project-named testproject false match-invokes)
+     (test/against-project-named testproject false match-closures-eval-equivalence)
+     (test/against-project-named testproject false match-closures-fallback)
+     (test/against-project-named testproject false match-within-budget)
+     (test/against-project-named testproject false match-budget-expiry)
+     (test/against-project-named testproject false match-budget-across-templates)
+     (test/against-project-named testproject false match-root-candidates)
+     (test/against-project-named testproject false match-streaming)
+     (test/against-project-named testproject false match-chunk-boundaries)
+     (test/against-project-named testproject false match-shared-equivalent)
+     (test/against-project-named testproject false match-profiled)
+     (test/against-project-named testproject false match-partial-models)
+     (test/against-project-named testproject false match-partial-models-directives)
+     (test/against-project-named testproject false match-cost-based-order)
+     (test/against-project-named testproject false match-child-order)
+     (test/against-project-named testproject false match-value-seeding)
+     (test/against-project-named testproject false match-seed-choice)
+     (test/against-project-named testproject false persist-binary-roundtrip)
+     (test/against-project-named testproject false snippet-identifier-index)
 
 
      )
@@ -159,6 +631,9 @@
 (comment  
   ;;Example repl session 
   (run-tests)
+  (test/against-project-named "TestCase-JDT-CompositeVisitor" false benchmark-closures-eval)
+  (test/against-project-named "TestCase-JDT-CompositeVisitor" false benchmark-matching2-memory)
+  (benchmark-persistence)
   )
   
 
@@ -12,7 +12,8 @@
              [transformation :as transformation]
              [matching2 :as matching2]
              ])
-  (:require [test.damp [ekeko :as test]])
+  (:require [test.damp [ekeko :as test]]
+            [test.damp.ekeko.snippets [matching :as matching-test]])
   (:use clojure.test))
 
 
@@ -87,6 +88,95 @@
                   (fn [matches] (is (= 69 (count (into #{} matches)))))))
 
 
+;; Benchmarks
+;; ----------
+
+(defn
+  nested-loop-join
+  "Reference implementation of joining two relations (see querying/join-relations),
+   by comparing each row of rel1 with each row of rel2"
+  [rel1 rel2]
+  (let [vars1 (:vars rel1)
+        vars2 (:vars rel2)
+        shared (filter (set vars1) vars2)
+        rest1 (remove (set shared) vars1)]
+    {:vars (vec (concat rest1 vars2))
+     :rows (vec (for [row1 (:rows rel1)
+                      row2 (:rows rel2)
+                      :when (every? (fn [var] (= (nth row1 (.indexOf vars1 var))
+                                                 (nth row2 (.indexOf vars2 var))))
+                                    shared)]
+                  (vec (concat (map (fn [var] (nth row1 (.indexOf vars1 var))) rest1) row2))))}))
+
+(defn
+  benchmark-snippetgroup-join
+  "Queries each template of a .ekt/.ekx file separately, then compares the time needed to combine their results
+   using nested loops (joining from left to right), and using hash joins (ordered by cardinality).
+   @return map with the time (in ms) of both approaches, and whether their results are equal"
+  [path]
+  (let [input (cond
+                (.endsWith path ".ekt")
+                (slurp-from-resource path)
+                (.endsWith path ".ekx")
+                (transformation/transformation-lhs (slurp-from-resource path)))
+        snippets (damp.ekeko.snippets.snippetgroup/snippetgroup-snippetlist input)
+        relations (doall 
+                    (map (fn [snippet [defines query]]
+                           (querying/results-relation
+                             (cons (damp.ekeko.snippets.snippet/snippet-var-for-root snippet) (querying/snippet-uservars snippet))
+                             (querying/run-query defines query)))
+                         snippets
+                         (querying/query-by-snippetgroup-fast-noeval input 'damp.ekeko/ekeko)))
+        time-ms (fn [f]
+                  (let [start (System/nanoTime)
+                        result (f)]
+                    [result (/ (double (- (System/nanoTime) start)) 1000000.0)]))
+        [nested nested-ms] (time-ms (fn [] (reduce nested-loop-join relations)))
+        [hashed hashed-ms] (time-ms (fn [] (querying/join-relations* relations)))]
+    {:path path
+     :rows (map (fn [rel] (count (:rows rel))) relations)
+     :nested-loop nested-ms
+     :hash-join hashed-ms
+     :equal (= (into #{} (:rows nested)) (into #{} (:rows hashed)))}))
+
+(def 
+  pmart-specifications
+  "Paths of the P-MARt experiment specifications, per project"
+  {"6 - JHotDraw v5.1" ["/resources/EkekoX-Specifications/experiments/observer-jhotdraw/solution.ekt"
+                        "/resources/EkekoX-Specifications/experiments/prototype-jhotdraw/solution.ekt"
+                        "/resources/EkekoX-Specifications/experiments/templatemethod-jhotdraw/solution.ekt"
+                        "/resources/EkekoX-Specifications/experiments/strategy-jhotdraw/solution3.ekt"
+                        "/resources/EkekoX-Specifications/experiments/factorymethod-jhotdraw/solution_take4-reorder2.ekt"]
+   "10 - Nutch v0.4" ["/resources/EkekoX-Specifications/experiments/templatemethod-nutch/solution3.ekt"
+                      "/resources/EkekoX-Specifications/experiments/strategy-nutch/solution3.ekt"
+                      "/resources/EkekoX-Specifications/experiments/bridge-nutch/solution3.ekt"]})
+
+(defn
+  benchmark-pmart-joins
+  "Runs benchmark-snippetgroup-join on the P-MARt experiment specifications, each against its own project"
+  []
+  (doseq [[project paths] pmart-specifications]
+    (test/against-project-named 
+      project 
+      false 
+      (fn []
+        (doseq [path paths]
+          (println (benchmark-snippetgroup-join path)))))))
+
+(defn
+  benchmark-pmart-memory
+  "Measures the memory needed to match the P-MARt experiment specifications with matching2, each against its own project
+   (see matching-test/memory-profile)"
+  []
+  (doseq [[project paths] pmart-specifications]
+    (test/against-project-named 
+      project 
+      false 
+      (fn []
+        (doseq [path paths]
+          (let [plan (matching2/compile-templategroup (slurp-from-resource path))]
+            (println path (matching-test/memory-profile (fn [] (doall (matching2/query-templategroup plan)))))))))))
+
                     
 ;; Test suite
 ;; ----------
@@ -123,4 +213,6 @@
 (comment  
   ;;Example repl session
   ; Running these tests takes a few minutes (3 or so)
-  (run-tests))
\ No newline at end of file
+  (run-tests)
+  (benchmark-pmart-joins)
+  (benchmark-pmart-memory))
\ No newline at end of file
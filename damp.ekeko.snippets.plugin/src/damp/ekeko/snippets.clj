@@ -29,13 +29,20 @@
              [gui :as gui]
              [logic :as el]]))
 
+(def ^:dynamic *results-view-limit* 
+  "Maximum number of matches shown in the results view of query-by-snippetgroup* (nil to show all matches).
+   Matching stops as soon as this many matches were found."
+  nil)
+
 (defn
   query-by-snippetgroup*
   "Queries the Ekeko projects for matches for the given snippetgroup. Opens Eclipse view on results."
   [snippetgroup]
   (binding [querying/*print-queries-to-console* true]    
     (let [start (System/nanoTime)
-          results (matching2/query-templategroup-list snippetgroup true)
+          results (if *results-view-limit*
+                    (matching2/query-templategroup-limit snippetgroup true *results-view-limit*)
+                    (matching2/query-templategroup-list snippetgroup true))
           elapsed  (/ (double (- (System/nanoTime) start)) 1000000.0)
           vars (:columns (meta results))]
       (gui/eclipse-uithread-return 
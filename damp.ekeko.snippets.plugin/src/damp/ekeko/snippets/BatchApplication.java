@@ -0,0 +1,48 @@
+package damp.ekeko.snippets;
+
+import org.eclipse.equinox.app.IApplication;
+import org.eclipse.equinox.app.IApplicationContext;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.FrameworkUtil;
+
+import ccw.util.osgi.ClojureOSGi;
+import clojure.lang.RT;
+
+/**
+ * Headless entry point of Ekeko/X, which runs the queries, transformations and searches
+ * described by a configuration file without starting the workbench (see batch.clj).
+ *
+ * Usage: eclipse -nosplash -consoleLog -application damp.ekeko.snippets.plugin.batch -data <workspace> -config <file>
+ * The exit code is 0 if all jobs succeeded, and 1 otherwise.
+ */
+public class BatchApplication implements IApplication {
+
+	@Override
+	public Object start(IApplicationContext context) throws Exception {
+		String[] args = (String[]) context.getArguments().get(IApplicationContext.APPLICATION_ARGS);
+		String config = null;
+		for(int i = 0; i < args.length - 1; i++) {
+			if(args[i].equals("-config")) {
+				config = args[i + 1];
+			}
+		}
+		if(config == null) {
+			System.err.println("Usage: -application damp.ekeko.snippets.plugin.batch -config <file>");
+			return Integer.valueOf(1);
+		}
+
+		Bundle bundle = FrameworkUtil.getBundle(BatchApplication.class);
+		ClojureOSGi.require(bundle, "damp.ekeko.snippets.batch");
+		Object exitCode = RT.var("damp.ekeko.snippets.batch", "run-config").invoke(config);
+		// run-config returns a Clojure number (a Long), whereas the exit code has to be an Integer
+		if(((Number) exitCode).intValue() == 0) {
+			return IApplication.EXIT_OK;
+		}
+		return Integer.valueOf(1);
+	}
+
+	@Override
+	public void stop() {
+	}
+
+}
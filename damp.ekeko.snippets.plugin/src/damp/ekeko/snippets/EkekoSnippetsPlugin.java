@@ -168,6 +168,23 @@ public class EkekoSnippetsPlugin extends AbstractUIPlugin {
 	}
 	
 	public void startClojureCode(BundleContext bundleContext) throws Exception {
+		// Without a workbench (e.g. when running headless, see BatchApplication), there are no images to load
+		if(PlatformUI.isWorkbenchRunning()) {
+			loadImages();
+		}
+		
+		Bundle b = bundleContext.getBundle();
+		String[] filenames= { "damp.ekeko", "damp.ekeko.snippets", "damp.ekeko.snippets.geneticsearch.search" };	
+		for(String filename : filenames) {
+			try {
+				ClojureOSGi.require(b, filename);
+			} catch(Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private void loadImages() {
 		ISharedImages sharedImages = PlatformUI.getWorkbench().getSharedImages();
 		
 
@@ -213,19 +230,5 @@ public class EkekoSnippetsPlugin extends AbstractUIPlugin {
 		
 		IMG_ANCHOR = getImageDescriptor("icons/anchor.png").createImage();
 		IMG_PROPERTIES = getImageDescriptor("icons/property.png").createImage();
-	
-		
-		
-		
-		
-		Bundle b = bundleContext.getBundle();
-		String[] filenames= { "damp.ekeko", "damp.ekeko.snippets", "damp.ekeko.snippets.geneticsearch.search" };	
-		for(String filename : filenames) {
-			try {
-				ClojureOSGi.require(b, filename);
-			} catch(Exception e) {
-				e.printStackTrace();
-			}
-		}
 	}
 }
@@ -0,0 +1,94 @@
+package damp.ekeko.snippets;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jdt.core.JavaCore;
+import org.eclipse.jdt.core.dom.ASTParser;
+import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.eclipse.jdt.core.dom.FileASTRequestor;
+
+import damp.ekeko.JavaProjectModel;
+import damp.ekeko.TableGatheringVisitor;
+
+/**
+ * A SourceFolderProjectModel is a JavaProjectModel of plain source folders on disk,
+ * for use without the Eclipse workbench (see batch.clj).
+ * The source files are parsed directly (with bindings resolved against the given classpath),
+ * so the folders don't need to be part of a Java project in the workspace.
+ *
+ * Note that the resulting bindings don't have corresponding Java elements in the workspace;
+ * directives that rely on type hierarchies therefore can't see beyond the types of the source folders themselves.
+ */
+public class SourceFolderProjectModel extends JavaProjectModel {
+	private Map<CompilationUnit, File> files = new IdentityHashMap<CompilationUnit, File>();
+
+	public SourceFolderProjectModel() {
+		super(null);
+	}
+
+	/**
+	 * Parse all .java files in the given source folders (and their subfolders), and add them to this model
+	 * @param sourceFolders
+	 * @param classpath    Jars and class folders needed to resolve bindings (the running VM's boot classpath is included as well)
+	 * @param sourceLevel  Java version of the source code (e.g. "1.8")
+	 */
+	@SuppressWarnings("unchecked")
+	public void addSourceFolders(String[] sourceFolders, String[] classpath, String sourceLevel) {
+		List<String> paths = new ArrayList<String>();
+		for(String folder : sourceFolders) {
+			collectSourceFiles(new File(folder), paths);
+		}
+
+		ASTParser parser = ASTParser.newParser(JLS);
+		parser.setKind(ASTParser.K_COMPILATION_UNIT);
+		parser.setResolveBindings(true);
+		parser.setBindingsRecovery(true);
+		parser.setEnvironment(classpath, sourceFolders, null, true);
+		Map<String, String> options = JavaCore.getOptions();
+		JavaCore.setComplianceOptions(sourceLevel, options);
+		parser.setCompilerOptions(options);
+
+		parser.createASTs(paths.toArray(new String[paths.size()]), null, new String[0], new FileASTRequestor() {
+			@Override
+			public void acceptAST(String sourceFilePath, CompilationUnit ast) {
+				TableGatheringVisitor v = new TableGatheringVisitor();
+				ast.accept(v);
+				addInformationFromVisitor(v);
+				files.put(ast, new File(sourceFilePath));
+			}
+		}, null);
+	}
+
+	private static void collectSourceFiles(File file, List<String> paths) {
+		if(file.isDirectory()) {
+			File[] children = file.listFiles();
+			if(children != null) {
+				for(File child : children) {
+					collectSourceFiles(child, paths);
+				}
+			}
+		} else if(file.getName().endsWith(".java")) {
+			paths.add(file.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * @return the source file a compilation unit in this model was parsed from, or null if it's not part of this model
+	 */
+	public File getFile(CompilationUnit cu) {
+		return files.get(cu);
+	}
+
+	/**
+	 * @return all compilation units in this model
+	 */
+	public Set<CompilationUnit> getParsedUnits() {
+		return Collections.unmodifiableSet(files.keySet());
+	}
+}
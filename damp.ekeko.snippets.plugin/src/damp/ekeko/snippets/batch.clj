@@ -0,0 +1,276 @@
+(ns
+  ^{:doc "Headless batch runner: loads plain source folders into Java project models (without the workbench or a workspace project),
+          and runs template queries, transformations and genetic searches on them, as described by a configuration file.
+          The results, rewritten files and diffs are written to disk. See BatchApplication.java for the command-line entry point.
+
+          The configuration file contains a single map in edn format (relative paths are relative to the file's directory):
+          {:output-dir \"results/\"
+           :projects [{:name \"jhotdraw\" :source [\"jhotdraw/src\"] :classpath [\"lib/jdom.jar\"] :source-level \"1.7\"}]
+           :jobs [{:name \"factories\" :query \"factorymethod.ekt\" :limit 1000}
+                  {:name \"helper\" :transform \"Helper.ekx\"}
+                  {:name \"evolve\" :search {:verified [\"solution.ekt\"] :negatives [] :initial \"initial.ekt\"
+                                             :options {:max-generations 10 :mutation-operators [\"replace-by-variable\"]}}}]}
+          Every job is run against every project; its output goes to <output-dir>/<project>/<job>/."}
+  damp.ekeko.snippets.batch
+  (:require [clojure.edn :as edn]
+            [clojure.java.io :as io]
+            [clojure.string :as string])
+  (:require [damp.ekeko
+             [ekekomodel :as ekekomodel]])
+  (:require [damp.ekeko.snippets
+             [matching2 :as matching2]
+             [operatorsrep :as operatorsrep]
+             [persistence :as persistence]
+             [rewrites :as rewrites]
+             [rewriting2 :as rewriting2]
+             [util :as util]])
+  (:require [damp.ekeko.snippets.geneticsearch
+             [fitness :as fitness]
+             [search :as search]])
+  (:import [java.io File Writer]
+           [org.eclipse.jface.text Document]
+           [org.eclipse.jdt.core.dom ASTNode CompilationUnit]
+           [damp.ekeko.snippets SourceFolderProjectModel]))
+
+;; Configuration
+;; -------------
+
+(defn-
+  resolve-path
+  "Resolves a path from the configuration file against the file's directory"
+  [^File config-dir path]
+  (let [file (io/file path)]
+    (.getPath (if (.isAbsolute file) file (io/file config-dir path)))))
+
+(defn
+  read-config
+  "Reads a configuration file (see the namespace doc), resolving all of its paths"
+  [config-path]
+  (let [config-dir (.getParentFile (.getAbsoluteFile (io/file config-path)))
+        config (edn/read-string (slurp config-path))
+        resolve (fn [path] (if path (resolve-path config-dir path)))
+        resolve-all (fn [paths] (mapv resolve paths))]
+    (-> config
+      (update-in [:output-dir] (fn [dir] (str (resolve (or dir "batch-results")) "/")))
+      (update-in [:projects] (fn [projects]
+                               (for [project projects]
+                                 (-> project
+                                   (update-in [:source] resolve-all)
+                                   (update-in [:classpath] resolve-all)))))
+      (update-in [:jobs] (fn [jobs]
+                           (for [job jobs]
+                             (cond-> job
+                               (:query job) (update-in [:query] resolve)
+                               (:transform job) (update-in [:transform] resolve)
+                               (:search job) (update-in [:search]
+                                                        (fn [search]
+                                                          (-> search
+                                                            (update-in [:verified] resolve-all)
+                                                            (update-in [:negatives] resolve-all)
+                                                            (update-in [:initial] resolve)))))))))))
+
+(defn
+  load-project
+  "Parses the source folders of a project (see the :projects of a configuration) into a SourceFolderProjectModel"
+  [project]
+  (doto (SourceFolderProjectModel.)
+    (.addSourceFolders (into-array String (:source project))
+                       (into-array String (:classpath project))
+                       (or (:source-level project) "1.8"))))
+
+;; Output
+;; ------
+
+(defn-
+  csv-cell
+  [value]
+  (let [s (str value)]
+    (if (re-find #"[;\"\n]" s)
+      (str "\"" (string/replace s "\"" "\"\"") "\"")
+      s)))
+
+(defn-
+  write-csv-row
+  [^Writer writer values]
+  (.write writer (str (string/join ";" (map csv-cell values)) "\n")))
+
+(defn-
+  source-file
+  "The source file a node of a SourceFolderProjectModel belongs to, or nil"
+  [^SourceFolderProjectModel model node]
+  (if (instance? ASTNode node)
+    (let [root (.getRoot ^ASTNode node)]
+      (if (instance? CompilationUnit root)
+        (.getFile model root)))))
+
+(defn-
+  relative-path
+  "Path of a source file, relative to the source folder of the project that contains it"
+  [project ^File file]
+  (let [path (.getAbsolutePath file)]
+    (or (some (fn [folder]
+                (let [folder (.getAbsolutePath (io/file folder))]
+                  (if (.startsWith path (str folder File/separator))
+                    (subs path (inc (count folder))))))
+              (:source project))
+        (.getName file))))
+
+(defn-
+  value-string
+  "Describes a query result on a single line: its location (file:line), if it's an AST node, followed by its source code"
+  [project model value]
+  (let [code (string/replace (str value) #"\s+" " ")]
+    (if-let [file (source-file model value)]
+      (str (relative-path project file) ":"
+           (.getLineNumber ^CompilationUnit (.getRoot ^ASTNode value) (.getStartPosition ^ASTNode value)) ": "
+           code)
+      code)))
+
+(defn
+  unified-diff
+  "Unified diff between two versions of a file, or nil if they're equal
+   (All changed lines are reported in a single hunk, spanning from the first to the last changed line.)"
+  [path old new]
+  (let [old-lines (string/split old #"\n" -1)
+        new-lines (string/split new #"\n" -1)
+        prefix (count (take-while true? (map = old-lines new-lines)))
+        suffix (count (take-while true? (map =
+                                             (rseq (subvec old-lines prefix))
+                                             (rseq (subvec new-lines prefix)))))
+        old-end (- (count old-lines) suffix)
+        new-end (- (count new-lines) suffix)]
+    (if (not (and (= old-end prefix) (= new-end prefix)))
+      (let [start (max 0 (- prefix 3))
+            context-end (min suffix 3)
+            old-hunk-end (+ old-end context-end)
+            new-hunk-end (+ new-end context-end)]
+        (str "--- a/" path "\n"
+             "+++ b/" path "\n"
+             "@@ -" (inc start) "," (- old-hunk-end start) " +" (inc start) "," (- new-hunk-end start) " @@\n"
+             (apply str (for [line (subvec old-lines start prefix)] (str " " line "\n")))
+             (apply str (for [line (subvec old-lines prefix old-end)] (str "-" line "\n")))
+             (apply str (for [line (subvec new-lines prefix new-end)] (str "+" line "\n")))
+             (apply str (for [line (subvec old-lines old-end old-hunk-end)] (str " " line "\n"))))))))
+
+;; Jobs
+;; ----
+
+(defn
+  run-query
+  "Matches the template group of a query job, and writes its results to results.csv
+   @return the number of results"
+  [job project model output-dir]
+  (let [templategroup (persistence/slurp-snippetgroup (:query job))
+        results (matching2/query-templategroup-seq templategroup true)
+        results (if (:limit job) (take (:limit job) results) results)]
+    (with-open [writer (io/writer (str output-dir "results.csv"))]
+      (write-csv-row writer (map str (matching2/templategroup-columns templategroup true)))
+      (reduce
+        (fn [n tuple]
+          (write-csv-row writer (map (fn [value] (value-string project model value)) tuple))
+          (inc n))
+        0
+        results))))
+
+(defn
+  run-transformation
+  "Applies the transformation of a transform job to a copy of the project's source files:
+   each rewritten file is written to the files/ directory, and all changes are written to changes.diff.
+   The source folders themselves are left untouched.
+   @return the number of rewritten files"
+  [job project ^SourceFolderProjectModel model output-dir]
+  (let [rewritten (atom (sorted-map))
+        apply-rewrite (fn [rw cu]
+                        (let [file (.getFile model cu)
+                              source (slurp file)
+                              document (Document. source)]
+                          (.apply (.rewriteAST rw document nil) document)
+                          (swap! rewritten assoc (relative-path project file) [source (.get document)])))]
+    (binding [rewrites/*apply-rewrite* apply-rewrite]
+      (rewriting2/apply-transformation (persistence/slurp-transformation (:transform job))))
+    (with-open [diff (io/writer (str output-dir "changes.diff"))]
+      (doseq [[path [old new]] @rewritten]
+        (let [file (io/file output-dir "files" path)]
+          (io/make-parents file)
+          (spit file new)
+          (if-let [file-diff (unified-diff path old new)]
+            (.write diff ^String file-diff)))))
+    (count @rewritten)))
+
+(defn
+  run-search
+  "Runs the genetic search of a search job (see search/evolve), with the job's directory as its output directory
+   The desired matches are those of the :verified template groups (and the undesired ones those of the :negatives);
+   the initial population consists of copies of the :initial template group, if any.
+   @return the number of desired matches"
+  [job project model output-dir]
+  (let [search-job (:search job)
+        matches (fn [files] (mapcat (fn [file] (into [] (fitness/templategroup-matches (persistence/slurp-snippetgroup file))))
+                                    files))
+        verifiedmatches (search/make-verified-matches (matches (:verified search-job)) (matches (:negatives search-job)))
+        options (merge search/config-default (:options search-job))
+        options (cond-> (assoc options :output-dir output-dir)
+                  (:mutation-operators (:options search-job))
+                  (assoc :mutation-operators
+                         (filter (fn [op] (some #{(operatorsrep/operator-id op)} (:mutation-operators (:options search-job))))
+                                 (operatorsrep/registered-operators)))
+
+                  (:initial search-job)
+                  (assoc :initial-population
+                         (search/population-from-templates [(persistence/slurp-snippetgroup (:initial search-job))]
+                                                           (:population-size options))))]
+    (apply search/evolve verifiedmatches (mapcat identity options))
+    (count (:positives verifiedmatches))))
+
+(defn
+  run-job
+  "Runs a job against a project, writing its output to <output-dir>/<project>/<job>/
+   @return a summary of the run: a map with the :project, :job, :kind, :status (:ok or :failed), :time (in ms)
+           and :count (the number of results, rewritten files or desired matches)"
+  [config job project model]
+  (let [output-dir (str (:output-dir config) (:name project) "/" (:name job) "/")
+        [kind run] (cond
+                     (:query job) [:query run-query]
+                     (:transform job) [:transform run-transformation]
+                     (:search job) [:search run-search]
+                     :else [:unknown (fn [& _] (throw (Exception. "Job has no :query, :transform or :search")))])
+        start (System/nanoTime)
+        summary {:project (:name project) :job (:name job) :kind kind}]
+    (.mkdirs (io/file output-dir))
+    (println "Running" (name kind) "job" (:name job) "on" (:name project))
+    (try
+      (let [n (binding [ekekomodel/*queried-project-models* (atom [model])]
+                (run job project model output-dir))]
+        (assoc summary :status :ok :time (util/time-elapsed start) :count n))
+      (catch Throwable e
+        (.printStackTrace e)
+        (let [trace (java.io.StringWriter.)]
+          (.printStackTrace e (java.io.PrintWriter. trace))
+          (spit (str output-dir "error.txt") (str trace)))
+        (assoc summary :status :failed :time (util/time-elapsed start) :count nil)))))
+
+(defn
+  run-config
+  "Runs all jobs of a configuration file against all of its projects (see the namespace doc),
+   and writes a summary of all runs to summary.csv in the output directory
+   @return 0 if all jobs succeeded, 1 otherwise (to be used as exit code)"
+  [config-path]
+  (let [config (read-config config-path)
+        columns [:project :job :kind :status :time :count]
+        summaries (doall
+                    (for [project (:projects config)
+                          :let [start (System/nanoTime)
+                                model (load-project project)
+                                _ (println "Loaded" (:name project) "in" (util/time-elapsed start) "ms")]
+                          job (:jobs config)]
+                      (run-job config job project model)))]
+    (.mkdirs (io/file (:output-dir config)))
+    (with-open [writer (io/writer (str (:output-dir config) "summary.csv"))]
+      (write-csv-row writer (map name columns))
+      (doseq [summary summaries]
+        (write-csv-row writer (for [column columns]
+                                (let [value (get summary column)]
+                                  (if (keyword? value) (name value) value))))))
+    (if (every? (fn [summary] (= :ok (:status summary))) summaries)
+      0
+      1)))
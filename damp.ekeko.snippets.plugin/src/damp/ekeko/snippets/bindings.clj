@@ -0,0 +1,197 @@
+(ns
+  ^{:doc "Compact representation of the logic variable bindings used during template matching (see matching2.clj).
+          Each logic variable is assigned a slot number once, and a set of bindings is stored as an array,
+          indexed by slot, rather than as a map. Rows are never modified after they are created,
+          such that rows (and lists of rows) that are not affected by an operation can be shared, instead of copied."}
+  damp.ekeko.snippets.bindings
+  (:import [java.util Arrays]))
+
+;; Slots
+;; -----
+
+; Table that assigns a slot number to each logic variable
+; - state   Atom containing a map with
+;           :index  Maps each logic variable to its slot
+;           :lvars  Vector of all logic variables, ordered by slot
+(defrecord Slots [state])
+
+(defn
+  make-slots
+  []
+  (Slots. (atom {:index {} :lvars []})))
+
+(defn
+  intern!
+  "Returns the slot of a logic variable, assigning it a new one if it doesn't have one yet"
+  [slots lvar]
+  (or (get (:index @(:state slots)) lvar)
+      (get (:index (swap! (:state slots)
+                          (fn [state]
+                            (if (contains? (:index state) lvar)
+                              state
+                              {:index (assoc (:index state) lvar (count (:lvars state)))
+                               :lvars (conj (:lvars state) lvar)}))))
+           lvar)))
+
+(defn
+  slot-lvars
+  "Vector of all logic variables that have a slot, ordered by slot"
+  [slots]
+  (:lvars @(:state slots)))
+
+;; Rows
+;; ----
+
+; A row is an object array; the element at a slot contains the potential values of that slot's logic variable,
+; or nil if the variable is unbound. (Rows may be shorter than the number of slots; missing slots are unbound.)
+
+(def empty-row (object-array 0))
+
+(defn
+  row-get
+  "Potential values of the logic variable in the given slot (or nil if unbound)"
+  [^objects row slot]
+  (let [slot (int slot)]
+    (if (< slot (alength row))
+      (aget row slot))))
+
+(defn
+  row-assoc
+  "Returns a row in which the given slot contains values (nil to unbind it)
+   If the slot already contains this very object (identical?, not merely equal values), the row itself is returned;
+   otherwise the row is copied."
+  [^objects row slot values]
+  (if (identical? values (row-get row slot))
+    row
+    (let [slot (int slot)
+          ^objects new-row (Arrays/copyOf row (max (alength row) (inc slot)))]
+      (aset new-row slot values)
+      new-row)))
+
+;; Bindings lists
+;; --------------
+
+; A bindings list is a vector of rows. Operations on bindings lists are done in bulk,
+; and return the original vector if none of its rows were affected.
+
+(def empty-rows [])
+
+(defn
+  keep-rows
+  "Applies rowfn to each row of a bindings list, and keeps the non-nil results
+   @param rowfn  Function that takes a row, and returns a new row (or the same row if it's unaffected), or nil to remove it"
+  [rows rowfn]
+  (let [size (count rows)]
+    (loop [i 0
+           changed false
+           result (transient [])]
+      (if (< i size)
+        (let [row (nth rows i)
+              new-row (rowfn row)]
+          (recur (inc i)
+                 (or changed (not (identical? row new-row)))
+                 (if (nil? new-row) result (conj! result new-row))))
+        (if changed
+          (persistent! result)
+          rows)))))
+
+(defn
+  update-slot
+  "Updates the potential values of a logic variable in each row of a bindings list
+   @param updatefn  Function that takes the current values of the variable (nil if unbound), and returns its new values.
+                    If it returns nil, the variable is unbound in that row, while the other variables remain intact.
+                    If it returns an empty list, the entire row is removed from the bindings list."
+  [rows slot updatefn]
+  (keep-rows rows
+             (fn [row]
+               (let [new-values (updatefn (row-get row slot))]
+                 (if (and (some? new-values) (empty? new-values))
+                   nil
+                   (row-assoc row slot new-values))))))
+
+(defn
+  row-join
+  "Combines two rows into one, or returns nil if they are incompatible
+   A logic variable that is bound in both rows keeps only the values it has in both; if there are none, the rows are incompatible."
+  [^objects row1 ^objects row2]
+  (let [size (max (alength row1) (alength row2))
+        ^objects joined (Arrays/copyOf row1 size)]
+    (loop [slot 0]
+      (if (< slot size)
+        (let [values1 (row-get row1 slot)
+              values2 (row-get row2 slot)]
+          (cond
+            (nil? values2) (recur (inc slot))
+            (nil? values1) (do
+                             (aset joined slot values2)
+                             (recur (inc slot)))
+            :else (let [common (if (identical? values1 values2)
+                                 values1
+                                 (filterv (set values2) values1))]
+                    (when (seq common)
+                      (aset joined slot common)
+                      (recur (inc slot))))))
+        joined))))
+
+(defn
+  join-rows
+  "Joins two bindings lists: every compatible pair of rows is combined into one row (see row-join)"
+  [rows1 rows2]
+  (persistent!
+    (reduce
+      (fn [joined row1]
+        (reduce
+          (fn [joined row2]
+            (if-let [row (row-join row1 row2)]
+              (conj! joined row)
+              joined))
+          joined
+          rows2))
+      (transient [])
+      rows1)))
+
+(defn
+  concat-rows
+  "Concatenates two bindings lists (either of which may be nil)"
+  [rows1 rows2]
+  (cond
+    (empty? rows1) (or rows2 empty-rows)
+    (empty? rows2) rows1
+    :else (into rows1 rows2)))
+
+;; Conversion
+;; ----------
+
+(defn
+  map->row
+  "Converts a map from logic variables to their potential values into a row"
+  [slots bindings]
+  (reduce
+    (fn [row [lvar values]]
+      (row-assoc row (intern! slots lvar) values))
+    empty-row
+    bindings))
+
+(defn
+  row->map
+  "Converts a row into a map from logic variables to their potential values (leaving out unbound variables)"
+  [slots ^objects row]
+  (let [lvars (slot-lvars slots)]
+    (loop [slot 0
+           result (transient {})]
+      (if (< slot (alength row))
+        (recur (inc slot)
+               (if-let [values (aget row slot)]
+                 (assoc! result (nth lvars slot) values)
+                 result))
+        (persistent! result)))))
+
+(defn
+  maps->rows
+  [slots bindings-list]
+  (mapv (fn [bindings] (map->row slots bindings)) bindings-list))
+
+(defn
+  rows->maps
+  [slots rows]
+  (mapv (fn [row] (row->map slots row)) rows))
@@ -0,0 +1,151 @@
+(ns
+  ^{:doc "Cooperative cancellation and resource budgets for template matching.
+          Rather than forcibly stopping the thread of an overrunning match, the matching engine regularly
+          checks the budget of the current thread, and stops by itself once it is cancelled or exhausted."}
+  damp.ekeko.snippets.budget
+  (:import [java.util.concurrent CancellationException TimeoutException]))
+
+;; Budgets
+;; -------
+
+; Budget of a (matching) computation
+; - deadline        Wall-clock time (in ms, see System/currentTimeMillis) after which the budget is exhausted, or nil
+; - max-candidates  Maximum number of candidate matches to consider per template, or nil
+; - max-bindings    Maximum number of logic variable bindings to produce, or nil
+; - cancelled       Atom; true once the computation was cancelled (see cancel!)
+; - truncated       Atom; true once a limit was hit, and the computation produced a partial result
+; - parent          Budget that was active when this budget was created (or nil); if it is cancelled or exhausted, so is this one
+(defrecord Budget [deadline max-candidates max-bindings cancelled truncated parent])
+
+(def ^:dynamic *budget*
+  "Budget of the computation on the current thread (nil if unlimited)"
+  nil)
+
+(defn
+  make-budget
+  "Creates a new budget, nested within the current budget (if any)
+   @param limits  Map with any of the keys :time-limit (in ms), :max-candidates and :max-bindings;
+                  limits that are absent (or nil) are unlimited"
+  ([]
+    (make-budget {}))
+  ([limits]
+    (Budget.
+      (when-let [ms (:time-limit limits)]
+        (+ (System/currentTimeMillis) ms))
+      (:max-candidates limits)
+      (:max-bindings limits)
+      (atom false)
+      (atom false)
+      *budget*)))
+
+(defn
+  cancellation-token
+  "Creates a budget without any limits, which can only be cancelled"
+  []
+  (make-budget {}))
+
+(defn
+  cancel!
+  "Cancels the computation(s) using the given budget; they will stop at their next check"
+  [budget]
+  (reset! (:cancelled budget) true)
+  budget)
+
+(defn
+  cancelled?
+  [budget]
+  (and budget
+       (or @(:cancelled budget)
+           (recur (:parent budget)))))
+
+(defn
+  out-of-time?
+  [budget]
+  (and budget
+       (or (and (:deadline budget)
+                (> (System/currentTimeMillis) (:deadline budget)))
+           (recur (:parent budget)))))
+
+(defn
+  limited?
+  "Does the budget impose any limits (besides cancellation) on the computation?"
+  [budget]
+  (and budget
+       (or (:deadline budget)
+           (:max-candidates budget)
+           (:max-bindings budget)
+           (recur (:parent budget)))))
+
+(defn
+  truncate!
+  "Marks that the computation using the given budget only produced a partial result"
+  [budget]
+  (when budget
+    (reset! (:truncated budget) true))
+  budget)
+
+(defn
+  truncated?
+  [budget]
+  (boolean (and budget @(:truncated budget))))
+
+(defmacro
+  with-budget
+  "Evaluates body with budget as the budget of the current thread"
+  [budget & body]
+  `(binding [*budget* ~budget]
+     ~@body))
+
+;; Checks
+;; ------
+
+(defn
+  check!
+  "Checks the budget of the current thread; to be called regularly by long-running computations.
+   Throws a CancellationException if the computation was cancelled,
+   or a TimeoutException if the budget's time limit was exceeded (after marking the budget as truncated).
+   Does nothing if the current thread has no budget."
+  []
+  (let [budget *budget*]
+    (when budget
+      (cond
+        (cancelled? budget)
+        (throw (CancellationException. "Computation was cancelled."))
+        (out-of-time? budget)
+        (do
+          (truncate! budget)
+          (throw (TimeoutException. "Time budget exhausted.")))))))
+
+(defn-
+  effective-limit
+  "The tightest limit of the given key among budget and its parents (or nil if unlimited)"
+  [budget key]
+  (let [limits (keep key (take-while identity (iterate :parent budget)))]
+    (when (seq limits)
+      (apply min limits))))
+
+(defn-
+  take-limited
+  [coll key]
+  (let [budget *budget*
+        limit (effective-limit budget key)]
+    (if (nil? limit)
+      coll
+      (let [limited (take limit coll)]
+        (if (seq (drop limit coll))
+          (do
+            (truncate! budget)
+            limited)
+          coll)))))
+
+(defn
+  take-candidates
+  "Limits the given candidate matches to the number allowed by the current budget"
+  [candidates]
+  (take-limited candidates :max-candidates))
+
+(defn
+  take-bindings
+  "Limits the given list of bindings to the number allowed by the current budget"
+  [bindings-list]
+  (take-limited bindings-list :max-bindings))
@@ -0,0 +1,385 @@
+(ns
+  ^{:doc "Runs the Ekeko queries generated for templates without eval.
+          A query is compiled into a tree of closures that build the same core.logic goals at run time.
+          As the Clojure compiler is never invoked, querying does not generate any classes (and does not fill up metaspace).
+          Compiled queries check the budget of the current thread (see budget.clj), so they can be cancelled or time out."}
+  damp.ekeko.snippets.closures
+  (:require [clojure.core.logic :as cl])
+  (:require [damp.ekeko])
+  (:require [damp.ekeko.snippets.budget :as budget]))
+
+;; Compilation
+;; -----------
+
+; Each form of a query is compiled into a closure that takes an environment (a map from local symbols to their values),
+; and returns the value of that form. Compilation happens within a context, which is a map containing:
+; - locals  Set of symbols that are local at this point in the query
+; - preds   Map from the names of the query's auxiliary predicates (see querying/snippet-queryinfo) to delays of their functions
+; - ns      Namespace in which global symbols are resolved
+
+(declare compile-form)
+
+; Value returned by a compiled recur form; the enclosing loop or fn will rebind its locals and continue
+(deftype Recur [args])
+
+(defn- unsupported [form]
+  (throw (Exception. (str "Cannot compile form to closures: " form))))
+
+(defn- add-locals [ctx syms]
+  (update-in ctx [:locals] into syms))
+
+(defn- compile-body
+  "Compiles a list of forms, of which the last one produces the value"
+  [ctx forms]
+  (let [fs (mapv (fn [form] (compile-form ctx form)) forms)]
+    (case (count fs)
+      0 (constantly nil)
+      1 (first fs)
+      (fn [env]
+        (loop [i 0]
+          (if (= i (dec (count fs)))
+            ((nth fs i) env)
+            (do
+              ((nth fs i) env)
+              (recur (inc i)))))))))
+
+(defn- compile-args [ctx forms]
+  (mapv (fn [form] (compile-form ctx form)) forms))
+
+(defn- eval-args [argfs env]
+  (map (fn [f] (f env)) argfs))
+
+(defn- resolve-class [ctx sym]
+  (when (and (symbol? sym) (not (contains? (:locals ctx) sym)))
+    (let [resolved (ns-resolve (:ns ctx) sym)]
+      (when (class? resolved) resolved))))
+
+(defn- compile-symbol [ctx sym]
+  (if (contains? (:locals ctx) sym)
+    (fn [env] (get env sym))
+    (let [resolved (ns-resolve (:ns ctx) sym)]
+      (cond
+        ; Deref at run time, such that dynamic bindings (e.g. of the queried project models) are respected
+        (var? resolved) (fn [env] (deref resolved))
+        (class? resolved) (constantly resolved)
+        ; Static field, e.g. Integer/MAX_VALUE
+        (and (namespace sym) (resolve-class ctx (symbol (namespace sym))))
+        (let [cls (resolve-class ctx (symbol (namespace sym)))
+              field (name sym)]
+          (fn [env] (clojure.lang.Reflector/getStaticField ^Class cls ^String field)))
+        :else (throw (Exception. (str "Unable to resolve symbol: " sym)))))))
+
+;; Core.logic forms
+;; ----------------
+
+(defn- compile-conjunction [ctx goals]
+  (let [fs (compile-args ctx goals)]
+    (case (count fs)
+      0 (constantly cl/s#)
+      1 (first fs)
+      (fn [env]
+        (reduce
+          (fn [g1 g2] (cl/all g1 g2))
+          (eval-args fs env))))))
+
+(defn- fresh-env [env vars]
+  (reduce
+    (fn [env var] (assoc env var (cl/lvar var)))
+    env
+    vars))
+
+(defn- compile-fresh [ctx [_ vars & goals]]
+  (let [goal (compile-conjunction (add-locals ctx vars) goals)]
+    (fn [env]
+      ; New logic variables must be created each time the goal is applied, just like cl/fresh does
+      (cl/fresh []
+                (fn [a] 
+                  (budget/check!)
+                  ((goal (fresh-env env vars)) a))))))
+
+(defn- compile-conde [ctx [_ & clauses]]
+  (let [fs (mapv (fn [clause] (compile-conjunction ctx clause)) clauses)]
+    (if (empty? fs)
+      (constantly cl/u#)
+      (fn [env]
+        (reduce
+          (fn [g2 g1] (cl/conde [g1] [g2]))
+          (reverse (eval-args fs env)))))))
+
+(defn- compile-all [ctx [_ & goals]]
+  (compile-conjunction ctx goals))
+
+(def ^:private launchers
+  {#'damp.ekeko/ekeko (fn [goal] (damp.ekeko/ekeko [q] (goal q)))
+   #'damp.ekeko/ekeko* (fn [goal] (damp.ekeko/ekeko* [q] (goal q)))})
+
+(defn- compile-launch [ctx launcher [_ vars & goals]]
+  (let [goal (compile-conjunction (add-locals ctx vars) goals)
+        result-of (if (= 1 (count vars)) first vec)] ; Like run*, a single query variable is not wrapped in a vector
+    (fn [env]
+      (launcher
+        (fn [q]
+          (cl/fresh []
+                    (fn [a]
+                      (budget/check!)
+                      (let [env (fresh-env env vars)]
+                        ((cl/all
+                           (cl/== q (result-of (map (fn [var] (get env var)) vars)))
+                           (goal env))
+                          a)))))))))
+
+;; Special forms
+;; -------------
+
+(defn- compile-let [ctx [_ bindings & body]]
+  (let [[ctx inits]
+        (reduce
+          (fn [[ctx inits] [sym init]]
+            [(add-locals ctx [sym]) (conj inits [sym (compile-form ctx init)])])
+          [ctx []]
+          (partition 2 bindings))
+        bodyf (compile-body ctx body)]
+    (fn [env]
+      (bodyf (reduce
+               (fn [env [sym f]] (assoc env sym (f env)))
+               env
+               inits)))))
+
+(defn- run-recurring
+  "Runs bodyf until it no longer returns a Recur value"
+  [bodyf bind env args]
+  (loop [args args]
+    (let [result (bodyf (bind env args))]
+      (if (instance? Recur result)
+        (recur (.-args ^Recur result))
+        result))))
+
+(defn- compile-loop [ctx [_ bindings & body]]
+  (let [syms (mapv first (partition 2 bindings))
+        initf (compile-let ctx (list 'let* bindings syms))
+        bodyf (compile-body (add-locals ctx syms) body)
+        bind (fn [env args] (into env (map vector syms args)))]
+    (fn [env]
+      (run-recurring bodyf bind env (initf env)))))
+
+(defn- compile-recur [ctx [_ & args]]
+  (let [argfs (compile-args ctx args)]
+    (fn [env] (Recur. (vec (eval-args argfs env))))))
+
+(defn- compile-fn-method [ctx [params & body]]
+  (let [[fixed [_ rest-param]] (split-with (fn [p] (not= '& p)) params)
+        fixed (vec fixed)]
+    {:fixed fixed
+     :rest rest-param
+     :body (compile-body (add-locals ctx (remove #{'&} params)) body)
+     :bind (fn [env args]
+             (let [env (into env (map vector fixed args))]
+               (if rest-param
+                 (assoc env rest-param (seq (drop (count fixed) args)))
+                 env)))}))
+
+(defn- compile-fn [ctx [_ & more]]
+  (let [fname (when (symbol? (first more)) (first more))
+        more (if fname (rest more) more)
+        methods (if (vector? (first more)) [more] more)
+        ctx (if fname (add-locals ctx [fname]) ctx)
+        compiled (map (fn [method] (compile-fn-method ctx method)) methods)
+        by-arity (into {} (for [m compiled :when (nil? (:rest m))] [(count (:fixed m)) m]))
+        variadic (first (filter :rest compiled))]
+    (fn [env]
+      (let [self (promise) ; Named fns can refer to themselves
+            f (fn [& args]
+                (let [args (vec args)
+                      argc (count args)
+                      method (or (get by-arity argc)
+                                 (when (and variadic (>= argc (count (:fixed variadic)))) variadic)
+                                 (throw (Exception. (str "Wrong number of args (" argc ") passed to: " (or fname "fn")))))
+                      env (if fname (assoc env fname @self) env)]
+                  (run-recurring (:body method) (:bind method) env args)))]
+        (deliver self f)
+        f))))
+
+(defn- compile-dot [ctx [_ target & member-and-args]]
+  (let [[member args] (if (seq? (first member-and-args))
+                        [(ffirst member-and-args) (rest (first member-and-args))]
+                        [(first member-and-args) (rest member-and-args)])
+        mname (name member)
+        field? (.startsWith mname "-")
+        fname (if field? (subs mname 1) mname)
+        argfs (compile-args ctx args)
+        cls (resolve-class ctx target)]
+    (if cls
+      ; Static member
+      (if (and (empty? argfs)
+               (or field? (some (fn [^java.lang.reflect.Field f] (= fname (.getName f))) (.getFields ^Class cls))))
+        (fn [env] (clojure.lang.Reflector/getStaticField ^Class cls ^String fname))
+        (fn [env] (clojure.lang.Reflector/invokeStaticMethod ^Class cls ^String mname (object-array (eval-args argfs env)))))
+      ; Instance member
+      (let [targetf (compile-form ctx target)]
+        (cond
+          field?
+          (fn [env] (clojure.lang.Reflector/getInstanceField (targetf env) fname))
+          (empty? argfs)
+          (fn [env] (clojure.lang.Reflector/invokeNoArgInstanceMember (targetf env) mname))
+          :else
+          (fn [env] (clojure.lang.Reflector/invokeInstanceMethod (targetf env) mname (object-array (eval-args argfs env)))))))))
+
+(defn- compile-new [ctx [_ cls-sym & args]]
+  (let [cls (or (resolve-class ctx cls-sym) (unsupported (list* 'new cls-sym args)))
+        argfs (compile-args ctx args)]
+    (fn [env] (clojure.lang.Reflector/invokeConstructor cls (object-array (eval-args argfs env))))))
+
+(defn- compile-throw [ctx [_ ex]]
+  (let [exf (compile-form ctx ex)]
+    (fn [env] (throw ^Throwable (exf env)))))
+
+(defn- compile-try [ctx [_ & forms]]
+  (let [clause? (fn [sym form] (and (seq? form) (= sym (first form))))
+        body (remove (fn [form] (or (clause? 'catch form) (clause? 'finally form))) forms)
+        bodyf (compile-body ctx body)
+        catches (for [[_ cls-sym local & handler] (filter (partial clause? 'catch) forms)]
+                  [(or (resolve-class ctx cls-sym) (unsupported cls-sym))
+                   local
+                   (compile-body (add-locals ctx [local]) handler)])
+        finallyf (when-let [[_ & fin] (first (filter (partial clause? 'finally) forms))]
+                   (compile-body ctx fin))]
+    (fn [env]
+      (try
+        (bodyf env)
+        (catch Throwable t
+          (if-let [[_ local handlerf] (first (filter (fn [[cls]] (instance? cls t)) catches))]
+            (handlerf (assoc env local t))
+            (throw t)))
+        (finally
+          (when finallyf (finallyf env)))))))
+
+(defn- compile-if [ctx [_ test then else]]
+  (let [testf (compile-form ctx test)
+        thenf (compile-form ctx then)
+        elsef (compile-form ctx else)]
+    (fn [env]
+      (if (testf env)
+        (thenf env)
+        (elsef env)))))
+
+(def ^:private special-forms
+  {'quote (fn [ctx [_ value]] (constantly value))
+   'if compile-if
+   'do (fn [ctx [_ & body]] (compile-body ctx body))
+   'let* compile-let
+   'loop* compile-loop
+   'recur compile-recur
+   'fn* compile-fn
+   '. compile-dot
+   'new compile-new
+   'throw compile-throw
+   'try compile-try
+   'var (fn [ctx [_ sym]] (constantly (ns-resolve (:ns ctx) sym)))})
+
+(def ^:private logic-forms
+  {#'cl/fresh compile-fresh
+   #'cl/conde compile-conde
+   #'cl/all compile-all})
+
+;; Applications
+;; ------------
+
+(defn- compile-application [ctx [op & args]]
+  (let [opf (compile-form ctx op)
+        argfs (compile-args ctx args)]
+    (case (count argfs)
+      0 (fn [env] ((opf env)))
+      1 (let [[a1] argfs]
+          (fn [env] ((opf env) (a1 env))))
+      2 (let [[a1 a2] argfs]
+          (fn [env] ((opf env) (a1 env) (a2 env))))
+      3 (let [[a1 a2 a3] argfs]
+          (fn [env] ((opf env) (a1 env) (a2 env) (a3 env))))
+      (fn [env] (apply (opf env) (eval-args argfs env))))))
+
+(defn- compile-predcall [ctx [op & args]]
+  (let [pred (get (:preds ctx) op)
+        argfs (compile-args ctx args)]
+    (fn [env] (apply @pred (eval-args argfs env)))))
+
+(defn- compile-seq [ctx form]
+  (let [op (first form)
+        local? (contains? (:locals ctx) op)
+        resolved (when (and (symbol? op) (not local?)) (ns-resolve (:ns ctx) op))]
+    (cond
+      local?
+      (compile-application ctx form)
+
+      (contains? special-forms op)
+      ((get special-forms op) ctx form)
+
+      (contains? (:preds ctx) op)
+      (compile-predcall ctx form)
+
+      (contains? logic-forms resolved)
+      ((get logic-forms resolved) ctx form)
+
+      (contains? launchers resolved)
+      (compile-launch ctx (get launchers resolved) form)
+
+      :else
+      ; Macros (including interop sugar such as (.size x) and (Math/max x y)) are expanded, then compiled
+      (let [expanded (binding [*ns* (:ns ctx)] (macroexpand-1 form))]
+        (cond
+          (not (identical? expanded form)) (compile-form ctx expanded)
+          (and (var? resolved) (:macro (meta resolved))) (unsupported form)
+          (and (symbol? op) (special-symbol? op)) (unsupported form)
+          :else (compile-application ctx form))))))
+
+(defn- compile-form [ctx form]
+  (cond
+    (symbol? form) (compile-symbol ctx form)
+    (and (seq? form) (seq form)) (compile-seq ctx form)
+    (vector? form) (let [fs (compile-args ctx form)]
+                     (fn [env] (mapv (fn [f] (f env)) fs)))
+    (map? form) (let [fs (mapv (fn [[k v]] [(compile-form ctx k) (compile-form ctx v)]) form)]
+                  (fn [env] (into {} (map (fn [[kf vf]] [(kf env) (vf env)]) fs))))
+    (set? form) (let [fs (compile-args ctx form)]
+                  (fn [env] (into #{} (eval-args fs env))))
+    :else (constantly form)))
+
+;; Queries
+;; -------
+
+(defn
+  compile-query
+  "Compiles a generated query into a function without arguments that runs the query.
+   @param defines  Definitions of the query's auxiliary predicates (see querying/snippet-queryinfo)
+   @param query    Query form, starting with a launcher symbol such as damp.ekeko/ekeko
+   @return         A function that returns the same results as (do (doseq [d defines] (eval d)) (eval query))"
+  [defines query]
+  (let [ctx-promise (promise)
+        preds (into {}
+                    (for [[_ predname params & body] defines]
+                      [predname (delay ((compile-form @ctx-promise (list* 'fn* predname params body)) {}))]))
+        ctx {:locals #{}
+             :preds preds
+             :ns *ns*}]
+    (deliver ctx-promise ctx)
+    (doseq [pred (vals preds)] @pred) ; Report compilation problems right away
+    (let [queryf (compile-form ctx query)]
+      (fn [] (queryf {})))))
+
+(defn
+  run-query
+  "Compiles and runs a generated query (see compile-query)"
+  [defines query]
+  ((compile-query defines query)))
+
+(defn
+  compile-function
+  "Compiles a function with the given parameters and body into a closure, without eval
+   (e.g., to evaluate user-provided expressions many times, without generating a class for each of them)
+   @param params  Vector of parameter symbols
+   @param body    Form producing the function's return value
+   @return        A function equivalent to (eval (list 'fn params body))"
+  [params body]
+  (let [ctx {:locals #{}
+             :preds {}
+             :ns *ns*}]
+    ((compile-form ctx (list 'fn* params body)) {})))
@@ -1,5 +1,9 @@
 package damp.ekeko.snippets.geneticsearch;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import org.eclipse.jdt.core.ITypeHierarchyChangedListener;
 import org.eclipse.jdt.core.dom.ASTNode;
 
@@ -15,6 +19,8 @@ import damp.ekeko.TableGatheringVisitor;
  * @author Tim
  */
 public class PartialJavaProjectModel extends JavaProjectModel implements ITypeHierarchyChangedListener {
+	private List<ASTNode> roots = new ArrayList<ASTNode>();
+
 	public PartialJavaProjectModel() {
 		super(null);
 	}
@@ -27,5 +33,13 @@ public class PartialJavaProjectModel extends JavaProjectModel implements ITypeHi
 		TableGatheringVisitor v = new TableGatheringVisitor();
 		node.accept(v);
 		addInformationFromVisitor(v);
+		roots.add(node);
+	}
+
+	/**
+	 * @return the roots of all AST subtrees in this partial model, in the order they were added
+	 */
+	public List<ASTNode> getRoots() {
+		return Collections.unmodifiableList(roots);
 	}
 }
\ No newline at end of file
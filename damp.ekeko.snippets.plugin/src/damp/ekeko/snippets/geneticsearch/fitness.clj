@@ -18,8 +18,11 @@
              [snippetgroup :as snippetgroup]
              [persistence :as persistence]
              [querying :as querying]
+             [closures :as closures]
              [matching :as matching]
              [matching2 :as matching2]
+             [nodeindex :as nodeindex]
+             [budget :as budget]
              [operators :as operators]
              [operatorsrep :as operatorsrep]
              [util :as util]
@@ -38,9 +41,37 @@
 (def ^:dynamic matched-nodes (atom (MatchedNodes. #{} [])))
 
 (defn templategroup-matches
-  "Given a templategroup, look for all of its matches in the code"
-  [templategroup]
-  (matching2/query-templategroup-list templategroup false))
+  "Given a templategroup (or its match plan), look for all of its matches in the code
+   @param root-candidates  (Optional) The nodes that may match with the root of each template (see matching2/query-templategroup)"
+  ([templategroup]
+    (templategroup-matches templategroup nil))
+  ([templategroup root-candidates]
+    (matching2/query-templategroup-list templategroup false root-candidates)))
+
+(defn templategroup-match-counts
+  "Given a templategroup (or its match plan), streams its matches to count how many of them are verified matches,
+   without keeping all matches in memory
+   @param root-candidates  (Optional) The nodes that may match with the root of each template (see matching2/query-templategroup)
+   @return a map with the number of :matches, the number of :true-positives among them,
+           and the :root-values of each template (see matching2/templategroup-root-values)"
+  ([templategroup verifiedmatches]
+    (templategroup-match-counts templategroup verifiedmatches nil))
+  ([templategroup verifiedmatches root-candidates]
+    (let [positives (:positives verifiedmatches)
+          results (matching2/query-templategroup-seq templategroup false root-candidates)
+          ; Without user variables, the columns of a result tuple are exactly the roots of the templates
+          [match-count tp-count root-values] 
+          (reduce
+            (fn [[match-count tp-count root-values] tuple]
+              [(inc match-count)
+               (if (contains? positives tuple) (inc tp-count) tp-count)
+               (mapv conj root-values tuple)])
+            [0 0 (vec (repeat (count (:columns (meta results))) #{}))]
+            results)]
+      {:matches match-count
+       :true-positives tp-count
+       :root-values (if (not (budget/truncated? budget/*budget*))
+                      root-values)})))
 
 (defn 
   truep
@@ -78,6 +109,17 @@
       0
       (/ ctp (+ ctp cfn)))))
   
+(defn
+  fmeasure|counts
+  "Calculate the F-measure/F1-score from the number of matches produced by an individual,
+   the number of true positives among them, and the number of matches we actually want"
+  [match-count tp-count positive-count]
+  (let [p (if (= 0 match-count) 0 (/ tp-count match-count))
+        r (if (= 0 tp-count) 0 (/ tp-count positive-count))]
+    (if (= (+ p r) 0)
+      0
+      (* 2 (/ (* p r) (+ p r))))))
+
 (defn
   fmeasure
   "Calculate the F-measure/F1-score by comparing the matches produced by an individual
@@ -150,38 +192,69 @@
         (.addExistingAST partialmodel match)))
     partialmodel))
 
+; Partial models of each set of positive verified matches (see partial-models)
+(def ^:private shared-partial-models (atom {}))
+
+(defn partial-models
+  "Returns the partial project models of the positives in a set of verified matches, as a map with
+   :models (one model per positive) and :merged (one model that contains all positives).
+   The models are created and indexed (see nodeindex/slice-index) only once per set of positives,
+   and are shared by all fitness functions (and search runs) with the same positives."
+  [verifiedmatches]
+  (let [positives (:positives verifiedmatches)
+        models (get (swap! shared-partial-models
+                           (fn [models]
+                             (if (contains? models positives)
+                               models
+                               (assoc models positives 
+                                      (delay 
+                                        (let [models (doall (map (fn [match] (create-partial-model [match])) positives))]
+                                          (doseq [model models] 
+                                            (nodeindex/slice-index model))
+                                          {:models models
+                                           :merged (create-partial-model positives)}))))))
+                    positives)]
+    @models))
+
 (defn make-fitness-function
   "Return a fitness function, used to measure how good/fit an individual is.
    A fitness function returns a pair: [overall-fitness fitness-components]
    ,where overall-fitness is a value between 0 (worst) and 1 (best)
-   and fitness-components is a list of components that were used to compute the overall fitness"
+   and fitness-components is a list of components that were used to compute the overall fitness.
+   
+   The returned function optionally takes the match state of a template group that the given group refines
+   (i.e. its matches are known to be a subset of those of the other group), such that only the roots
+   of the other group's matches need to be considered as candidate matches.
+   The match state of the given group itself is stored as the :match-state of the pair's meta-info 
+   (see matching2/templategroup-root-values).
+   Matching is done within a budget of (:match-timeout config) ms; a TimeoutException is thrown once it runs out (see util/thunk-timeout)."
   [verifiedmatches config]
-  (let [partialmodels (map
-                        (fn [match] (create-partial-model [match]))
-                        (:positives verifiedmatches))
-        partialmodel-merged (create-partial-model (:positives verifiedmatches))]
-    (fn [templategroup]
-      (let [matches (templategroup-matches templategroup)
-            fscore (double (fmeasure matches verifiedmatches))
-            node-count (matching2/templategroup-node-count templategroup)
-            
-            partialscore (double 
-                           (if (:partial-matching config)
-                             (/
-                               (reduce + (pmap (fn [partialmodel]
-                                                 (binding [damp.ekeko.ekekomodel/*queried-project-models* (atom [partialmodel])]
-                                                   (/ 
-                                                     (:node-count (meta (matching2/query-templategroup templategroup))) 
-                                                     node-count)))
-                                               partialmodels))
-                               (count partialmodels))
-                             0))
-            
-            weights (:fitness-weights config)]
-        [(+
-           (* (nth weights 0) fscore)
-           (* (nth weights 1) partialscore))
-         [fscore partialscore 0 0]]))))
+  (let [partialmodels (:models (partial-models verifiedmatches))]
+    (fn fitness
+      ([templategroup]
+        (fitness templategroup nil))
+      ([templategroup refined-match-state]
+        (util/with-timeout (:match-timeout config)
+          (let [plan (matching2/compile-templategroup templategroup) ; Analyze the templategroup only once, and reuse it for each query below
+                counts (templategroup-match-counts plan verifiedmatches refined-match-state)
+                fscore (double (fmeasure|counts (:matches counts) (:true-positives counts) (count (:positives verifiedmatches))))
+                node-count (matching2/templategroup-node-count plan)
+              
+                partialscore (double 
+                               (if (:partial-matching config)
+                                 (/
+                                   (reduce + (map (fn [partial-node-count] (/ partial-node-count node-count))
+                                                  (matching2/templategroup-node-counts plan partialmodels)))
+                                   (count partialmodels))
+                                 0))
+              
+                weights (:fitness-weights config)]
+            (with-meta
+              [(+
+                 (* (nth weights 0) fscore)
+                 (* (nth weights 1) partialscore))
+               [fscore partialscore 0 0]]
+              {:match-state (:root-values counts)})))))))
 
 (defn make-fitness-function-old
   "Return a fitness function, used to measure how good/fit an individual is.
@@ -189,18 +262,13 @@
    ,where overall-fitness is a value between 0 (worst) and 1 (best)
    and fitness-components is a list of components that were used to compute the overall fitness"
   [verifiedmatches config]
-  (let [partialmodels (map
-                        (fn [match] (create-partial-model [match]))
-                        (:positives verifiedmatches))
-        partialmodel-merged (create-partial-model (:positives verifiedmatches))]
+  (let [{partialmodels :models partialmodel-merged :merged} (partial-models verifiedmatches)]
     (fn [templategroup]
       (util/with-timeout (:match-timeout config)
         (let [
-              tmp-ns (util/gen-ns) ; Temporary namespace in which we'll do the query matching
-;              tmp-ns2 (util/gen-ns)
               [defines query] (querying/query-by-snippetgroup-noeval templategroup 'damp.ekeko/ekeko `((damp.ekeko.logic/perform (new-match))) '() true)
 ;              all-code (querying/query-by-snippetgroup-fast-noeval templategroup 'damp.ekeko/ekeko)
-              defs! (doseq [define defines] (util/eval-in-ns define tmp-ns))
+              run-query (closures/compile-query defines query) ; Compiled once, run for each (partial) model below
 ;              defs2! (doseq [[defines query] all-code] (doseq [define defines] (util/eval-in-ns define tmp-ns2)))
 ;              eval-query-in-ns (fn []
 ;                                 (let [results
@@ -212,9 +280,9 @@
               
               matches (if (:quick-matching config)
                         (binding [damp.ekeko.ekekomodel/*queried-project-models* (atom [partialmodel-merged])]
-                          (into #{} (util/eval-in-ns query tmp-ns)) ;(eval-query-in-ns)
+                          (into #{} (run-query)) ;(eval-query-in-ns)
                           )
-                        (into #{} (util/eval-in-ns query tmp-ns)) ;(eval-query-in-ns)
+                        (into #{} (run-query)) ;(eval-query-in-ns)
                         )
               fscore (double (fmeasure matches verifiedmatches))
               
@@ -231,7 +299,7 @@
                                       (binding [damp.ekeko.ekekomodel/*queried-project-models* (atom [partialmodel])
                                                 matched-nodes (atom (MatchedNodes. #{} []))]
                                         (do
-                                          (into #{} (util/eval-in-ns query tmp-ns))
+                                          (into #{} (run-query))
                                           (new-match)
                                           (partialmatch-score node-count)))
                                       )
@@ -240,8 +308,6 @@
                   0))
               
               weights (:fitness-weights config)
-              clean! (remove-ns (ns-name tmp-ns))
-;              clean2! (remove-ns (ns-name tmp-ns2))
               
               ; directive-count-score (directive-count-measure templategroup)
               ; If > 0, we have more false positives ; if < 0, we have more false negatives
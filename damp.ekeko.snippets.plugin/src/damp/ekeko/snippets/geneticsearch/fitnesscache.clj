@@ -0,0 +1,243 @@
+(ns
+  ^{:doc "Cache of fitness values, keyed by a canonical fingerprint of template groups.
+          Structurally identical templates produced by different mutations share the same fingerprint,
+          such that they only need to be matched against the workspace once."}
+  damp.ekeko.snippets.geneticsearch.fitnesscache
+  (:require [clojure.walk :as walk])
+  (:require [damp.ekeko.jdt
+             [astnode :as astnode]])
+  (:require [damp.ekeko.snippets
+             [snippet :as snippet]
+             [snippetgroup :as snippetgroup]
+             [directives :as directives]
+             [util :as util]])
+  (:import [java.util IdentityHashMap LinkedHashMap Map]
+           [java.security MessageDigest]))
+
+;; Fingerprints
+;; ------------
+
+(defn- metavariable?
+  [value]
+  (and (symbol? value)
+       (.startsWith (name value) "?")))
+
+(defn- variable-renamer
+  "Returns a function that renames a metavariable (a symbol) to a standard form (?v0, ?v1, ..),
+   in order of first occurrence. The same renaming is used across all calls of the returned function."
+  []
+  (let [renaming (atom {})]
+    (fn [var]
+      (or (get @renaming var)
+          (let [new-var (symbol (str "?v" (count @renaming)))]
+            (swap! renaming assoc var new-var)
+            new-var)))))
+
+(defn- rename-form
+  "Renames the metavariables in a Clojure form; strings and other literals within the form are left as they are"
+  [form rename]
+  (walk/postwalk
+    (fn [x] (if (metavariable? x) (rename x) x))
+    form))
+
+(defn- template-positions
+  "Maps each value of a template to its position in the canonical visiting order of template-tokens"
+  [template]
+  (let [positions (IdentityHashMap.)]
+    (letfn [(visit [node]
+              (.put positions node (.size positions))
+              (if (or (astnode/ast? node) (astnode/lstvalue? node))
+                (doseq [child (snippet/snippet-node-children|conceptually-refs template node)]
+                  (visit child))))]
+      (visit (snippet/snippet-root template)))
+    positions))
+
+(defn- operand-string
+  "String representation of a directive operand value
+   The directive's subject is represented as @, other values of the template as @ followed by their position (see template-positions),
+   and other AST nodes by their class and source code. Metavariables are only renamed if the operand is a metavariable itself,
+   or a form that contains metavariables; operands that are strings are never renamed.
+   @param rename  Function that renames a metavariable (see variable-renamer); not called if the operand has no metavariables"
+  [value subject positions rename]
+  (cond
+    (identical? value subject) "@"
+    (and (or (astnode/ast? value) (astnode/value? value)) (.containsKey ^Map positions value))
+    (str "@" (.get ^Map positions value))
+    (or (astnode/ast? value) (astnode/value? value))
+    (str "#" (.getSimpleName (class value)) (pr-str (str value)))
+    (metavariable? value) (str (rename value))
+    (string? value) (pr-str value)
+    :else (pr-str (rename-form value rename))))
+
+(defn- bounddirective-strings
+  "String representations of the bound directives of a template node, in a fixed order
+   The directives are sorted before their metavariables are renamed (metavariables are masked while sorting),
+   such that the renaming doesn't depend on the original names of the metavariables."
+  [template node positions rename]
+  (let [bd-string (fn [bd rename]
+                    (str (directives/directive-name (directives/bounddirective-directive bd))
+                         "("
+                         (clojure.string/join "," (map (fn [binding] (operand-string (directives/directiveoperandbinding-value binding)
+                                                                                     node positions rename))
+                                                       (directives/bounddirective-operandbindings bd)))
+                         ")"))
+        mask (fn [var] '?)]
+    (doall
+      (map
+        (fn [bd] (bd-string bd rename))
+        (sort-by (fn [bd] (bd-string bd mask))
+                 (snippet/snippet-bounddirectives-for-node template node))))))
+
+(defn- template-tokens
+  "Produces a canonical list of tokens describing the shape of a template and its directives"
+  [template rename]
+  (let [positions (template-positions template)]
+    (letfn [(visit [node]
+              (concat
+                (cond
+                  (astnode/lstvalue? node)
+                  ["[" (str (count (astnode/value-unwrapped node)))]
+                  (astnode/primitivevalue? node)
+                  ["'" (str (astnode/value-unwrapped node))]
+                  (astnode/nilvalue? node)
+                  ["nil"]
+                  :else
+                  ["(" (.getSimpleName (class node))])
+                (bounddirective-strings template node positions rename)
+                (if (or (astnode/ast? node) (astnode/lstvalue? node))
+                  (mapcat visit (snippet/snippet-node-children|conceptually-refs template node)))
+                [")"]))]
+      (concat
+        (visit (snippet/snippet-root template))
+        [(pr-str (rename-form (snippet/snippet-userquery template) rename))]))))
+
+(defn
+  templategroup-fingerprint
+  "Computes a structure-based fingerprint of a template group: its AST shapes and bound directives,
+   with all metavariables renamed to a standard form.
+   Two template groups that only differ in their AST node instances or in the names of their metavariables
+   have the same fingerprint."
+  [templategroup]
+  (let [rename (variable-renamer)
+        tokens (mapcat
+                 (fn [template] (template-tokens template rename))
+                 (snippetgroup/snippetgroup-snippetlist templategroup))
+        digest (.digest (MessageDigest/getInstance "SHA-1")
+                 (.getBytes ^String (clojure.string/join " " tokens) "UTF-8"))]
+    (apply str (map (fn [b] (format "%02x" b)) digest))))
+
+;; Fitness cache
+;; -------------
+
+; Bounded cache from fingerprints to fitness values ([overall-fitness fitness-components])
+; - entries   LinkedHashMap in access order; the least recently used entry is evicted when the cache is full
+; - file      Atom with the file to which new entries are appended (or nil)
+(defrecord FitnessCache [entries file])
+
+(defn- lru-map [capacity]
+  (proxy [LinkedHashMap] [16 0.75 true]
+    (removeEldestEntry [eldest]
+      (> (.size ^LinkedHashMap this) capacity))))
+
+(defn- read-entries
+  "Reads the [fingerprint fitness] entries of a cache file (ignoring unreadable lines, e.g. from an interrupted run)"
+  [file]
+  (if (.exists (clojure.java.io/file file))
+    (with-open [reader (clojure.java.io/reader file)]
+      (doall
+        (remove nil?
+                (for [line (line-seq reader)]
+                  (try
+                    (binding [*read-eval* false]
+                      (read-string line))
+                    (catch Exception e nil))))))
+    []))
+
+(defn
+  attach-file!
+  "Loads the entries of a cache file (if it exists) into the cache,
+   and appends all entries that are added from now on to that file (asynchronously, see util/append-async!)"
+  [cache file]
+  (let [^LinkedHashMap entries (:entries cache)]
+    (doseq [[fingerprint fitness] (read-entries file)]
+      (locking entries
+        (.put entries fingerprint fitness)))
+    (.mkdirs (.getParentFile (.getAbsoluteFile (clojure.java.io/file file))))
+    (reset! (:file cache) file)
+    cache))
+
+(defn
+  make-fitness-cache
+  "Creates a fitness cache that holds at most capacity entries
+   @param file  If not nil, the cache is initialized with the entries in this file, and new entries are appended to it"
+  ([capacity]
+    (make-fitness-cache capacity nil))
+  ([capacity file]
+    (let [cache (FitnessCache. (lru-map capacity) (atom nil))]
+      (if file
+        (attach-file! cache file)
+        cache))))
+
+(defn
+  cache-lookup
+  "Returns the cached fitness for the given fingerprint, or nil if there is none"
+  [cache fingerprint]
+  (let [^LinkedHashMap entries (:entries cache)]
+    (locking entries
+      (.get entries fingerprint))))
+
+(defn
+  cache-store!
+  "Adds the fitness for the given fingerprint to the cache"
+  [cache fingerprint fitness]
+  (let [^LinkedHashMap entries (:entries cache)]
+    (locking entries
+      (.put entries fingerprint fitness))
+    (when-let [file @(:file cache)]
+      (util/append-async! file (str (pr-str [fingerprint fitness]) "\n")))
+    fitness))
+
+; Maximum number of shared caches; the least recently used one is dropped first 
+; (together with the verified matches it is keyed by)
+(def ^:private max-shared-caches 4)
+
+; Caches shared by all search runs in this session, keyed by the context in which fitness is computed
+(def ^:private ^LinkedHashMap shared-caches (lru-map max-shared-caches))
+
+(defn
+  shared-fitness-cache
+  "Returns the fitness cache for the given verified matches and search configuration.
+   The same cache is shared by all search runs (evolve, hillclimb, randomsearch) that compute fitness in the same way.
+   (Only the caches of the max-shared-caches most recently used contexts are kept.)
+   @param file  Cache file of the current run (see attach-file!), or nil"
+  [verifiedmatches config file]
+  (let [context [verifiedmatches
+                 (select-keys config [:fitness-function :fitness-weights :partial-matching :quick-matching])]
+        cache (locking shared-caches
+                (or (.get shared-caches context)
+                    (let [cache (make-fitness-cache (:fitness-cache-size config))]
+                      (.put shared-caches context cache)
+                      cache)))]
+    (if file
+      (attach-file! cache file)
+      cache)))
+
+(defn
+  caching-fitness-function
+  "Wraps a fitness function (see fitness/make-fitness-function) such that templategroups are only evaluated
+   if the cache does not contain the fitness of a structurally identical template group yet.
+   (Failed evaluations, e.g. due to a timeout, are not cached. Neither is the meta-info of fitness values, such as their match state.)"
+  [fitness-func cache]
+  (fn
+    ([templategroup]
+      (let [fingerprint (templategroup-fingerprint templategroup)]
+        (or (cache-lookup cache fingerprint)
+            (let [fitness (fitness-func templategroup)]
+              (cache-store! cache fingerprint (with-meta fitness nil))
+              fitness))))
+    ([templategroup refined-match-state]
+      (let [fingerprint (templategroup-fingerprint templategroup)]
+        (or (cache-lookup cache fingerprint)
+            (let [fitness (fitness-func templategroup refined-match-state)]
+              (cache-store! cache fingerprint (with-meta fitness nil))
+              fitness))))))
@@ -27,14 +27,33 @@
    fitness-overall    ; Overall fitness value
    fitness-components ; List of fitness component values (The overall fitness is composed of these values..)
    info               ; Map of extra info about the individual (e.g. mutation operator applied to produce this individual)
+   match-state        ; Root nodes of the templategroup's matches (see fitness/make-fitness-function), or nil if unknown
+   parent-match-state ; Match state of the parent individual, if this individual refines its parent; nil otherwise
+   applicability      ; Applicability index of the templategroup's templates (see operator-subjects)
    ])
 
+; The applicability index of an individual has an entry for each template of its templategroup (in the same order).
+; Each entry memoizes, per mutation operator, the subjects in the template the operator can be applied to.
+; The subjects are only computed once they are needed; an individual produced by a mutation reuses the entries of its parent
+; for all templates the mutation left untouched (i.e., that are identical to those of the parent).
+; (The applicability of an operator to a subject only depends on the subject's template, not on the rest of the group.)
+
+(defn-
+  applicability-index
+  "Creates the applicability index of a templategroup, reusing the entries of parent-index for the templates it shares with the group"
+  [templategroup parent-index]
+  (vec 
+    (for [template (snippetgroup/snippetgroup-snippetlist templategroup)]
+      (or (some (fn [entry] (if (identical? template (:template entry)) entry)) parent-index)
+          {:template template
+           :subjects (atom {})}))))
+
 (defn make-individual
   "Construct a new individual from a templategroup"
   ([template]
     (make-individual template nil))
   ([template info-map]
-    (Individual. template nil nil info-map)))
+    (Individual. template nil nil info-map nil nil (applicability-index template nil))))
 
 (defn individual-templategroup 
   [individual]
@@ -56,6 +75,42 @@
   [individual key]
   (key (:info individual)))
 
+(defn individual-match-state
+  [individual]
+  (:match-state individual))
+
+(defn inherit-match-state
+  "Given an individual that was produced by mutating its parent, lets the individual reuse the parent's match state 
+   when computing its fitness, if the mutation operator is a refinement (see operatorsrep/operator-refines?).
+   Other mutations may produce new matches, and their individuals are matched from scratch."
+  [individual parent operator]
+  (if (operatorsrep/operator-refines? operator)
+    (assoc individual :parent-match-state (individual-match-state parent))
+    individual))
+
+(defn inherit-applicability
+  "Given an individual that was produced by mutating its parent, 
+   lets the individual reuse the parent's applicability index for the templates the mutation did not change."
+  [individual parent]
+  (assoc individual :applicability (applicability-index (:templategroup individual) (:applicability parent))))
+
+(defn operator-subjects
+  "Returns the subjects in the individual's template at position templateno that the given operator can be applied to,
+   memoized in the individual's applicability index
+   @param eligible?  Function of a template and one of its nodes, that determines whether the node is a valid subject for the operator"
+  [individual templateno operator eligible?]
+  (let [entry (nth (or (:applicability individual)
+                       (applicability-index (:templategroup individual) nil))
+                   templateno)
+        template (:template entry)
+        operator-id (operatorsrep/operator-id operator)]
+    (or (get @(:subjects entry) operator-id)
+        (let [subjects (vec (filter 
+                              (fn [node] (eligible? template node))
+                              (matching/reachable-nodes template (snippet/snippet-root template))))]
+          (swap! (:subjects entry) assoc operator-id subjects)
+          subjects))))
+
 (defn individual-set-info
   [individual info-map]
   (assoc individual :info info-map))
@@ -70,12 +125,16 @@
 
 (defn compute-fitness
   "Compute the fitness of an individual (if this hasn't been done before)
-   and return the individual with its fitness values filled in."
+   and return the individual with its fitness values filled in.
+   If the individual refines its parent, and the parent's match state is known, 
+   the fitness function only considers the parent's matches (see fitness/make-fitness-function)."
   [individual fitness-func]
   (if (nil? (:fitness-overall individual))
-    (let [[overall components] 
+    (let [fitness
           (try
-            (fitness-func (:templategroup individual))
+            (if-let [parent-match-state (:parent-match-state individual)]
+              (fitness-func (:templategroup individual) parent-match-state)
+              (fitness-func (:templategroup individual)))
             
             (catch TimeoutException e
               (println "!(timeout)")
@@ -118,8 +177,11 @@
                 (if (instance? java.lang.UnsupportedOperationException (.getCause e))
                   (throw e))
                 fitness-zero
-                )))]
+                )))
+          [overall components] fitness]
       (-> individual
         (assoc :fitness-overall overall)
-        (assoc :fitness-components components)))
+        (assoc :fitness-components components)
+        (assoc :match-state (:match-state (meta fitness)))
+        (assoc :parent-match-state nil)))
     individual))
\ No newline at end of file
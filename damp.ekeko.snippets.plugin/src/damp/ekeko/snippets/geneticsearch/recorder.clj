@@ -0,0 +1,207 @@
+(ns
+  ^{:doc "Run recorder of the genetic search: records each generation of a search run in an append-only log,
+          written by a single background thread, instead of writing a .csv row and an .ekt file per individual.
+          The population.csv and individual-N.ekt files of a generation can be exported from the log on demand,
+          and a search run can be resumed from the last generation in its log."}
+  damp.ekeko.snippets.geneticsearch.recorder
+  (:require [damp.ekeko.snippets
+             [persistence :as persistence]
+             [util :as util]])
+  (:require [damp.ekeko.snippets.geneticsearch
+             [individual :as individual]])
+  (:import [java.io File ByteArrayInputStream ByteArrayOutputStream DataInputStream DataOutputStream
+            BufferedInputStream BufferedOutputStream FileInputStream FileOutputStream EOFException]
+           [java.util ArrayList]
+           [java.util.concurrent LinkedBlockingQueue]))
+
+;; Generation records
+;; ------------------
+
+; A generation record is a map with the :generation number, the :total-time and :generation-time (in ms),
+; and the :individuals of the generation's population (in order of increasing fitness).
+; Each individual is a map with its :id, the id of its :original, its :fitness and fitness :components,
+; the :operator, :subject and :operands of the mutation that produced it, and its :templategroup.
+
+(def log-name "run.log")
+
+(def results-csv-columns ["Generation" "Total time" "Generation time"
+                          "Best fitness" "Worst fitness" "Average fitness"
+                          "Best fscore" "Worst fscore" "Average fscore"
+                          "Best partial" "Worst partial" "Average partial"])
+
+(def population-csv-columns ["Id" "Original" "Fitness" "F1" "Partial" "Operator" "Subject" "Operands"])
+
+(defn
+  generation-record
+  "Creates the record of a generation
+   @param population  The individuals of the generation, sorted by increasing fitness"
+  [generation total-time generation-time population]
+  {:generation generation
+   :total-time total-time
+   :generation-time generation-time
+   :individuals (vec
+                  (for [ind population]
+                    {:id (individual/individual-info ind :id)
+                     :original (individual/individual-info ind :original)
+                     :fitness (individual/individual-fitness ind)
+                     :components (vec (individual/individual-fitness-components ind))
+                     :operator (individual/individual-info ind :mutation-operator)
+                     :subject (pr-str (type (individual/individual-info ind :mutation-node)))
+                     :operands (pr-str (individual/individual-info ind :mutation-opvals))
+                     :templategroup (individual/individual-templategroup ind)}))})
+
+(defn
+  results-row
+  "The row of a generation in results.csv (see results-csv-columns)"
+  [record]
+  (let [individuals (:individuals record)
+        best (last individuals)
+        worst (first individuals)
+        average (fn [f] (util/average (map f individuals)))]
+    [(:generation record) (:total-time record) (:generation-time record)
+     (:fitness best) (:fitness worst) (average :fitness)
+     (first (:components best)) (first (:components worst)) (average (fn [ind] (first (:components ind))))
+     (second (:components best)) (second (:components worst)) (average (fn [ind] (second (:components ind))))]))
+
+;; Log
+;; ---
+
+; The log consists of one entry per generation record: its length (an int), followed by the record in the binary
+; format of persistence.clj. A partially written entry at the end of the log (e.g. if the search was killed) is ignored.
+
+(defn-
+  encode-record
+  ^bytes [record]
+  (let [bytes (ByteArrayOutputStream.)]
+    (persistence/write-binary bytes record)
+    (.toByteArray bytes)))
+
+(defn
+  read-run-log
+  "Reads all generation records in the log of a search run
+   @param output-dir  The output directory of the run
+   @return a vector of generation records, or nil if the run has no log"
+  [output-dir]
+  (let [file (File. (str output-dir log-name))]
+    (if (.exists file)
+      (with-open [in (DataInputStream. (BufferedInputStream. (FileInputStream. file) 65536))]
+        (loop [records []]
+          (let [entry (try
+                        (let [entry (byte-array (.readInt in))]
+                          (.readFully in entry)
+                          entry)
+                        (catch EOFException e nil))]
+            (if entry
+              (recur (conj records (persistence/read-binary (ByteArrayInputStream. entry))))
+              records)))))))
+
+(defn
+  last-generation-record
+  "The record of the last generation in the log of a search run (or nil if there is none)"
+  [output-dir]
+  (last (read-run-log output-dir)))
+
+;; Exports
+;; -------
+
+(defn
+  export-population!
+  "Writes the population.csv and individual-N.ekt files of a generation record to <output-dir>/<generation>/"
+  [output-dir record]
+  (let [dir (str output-dir (:generation record) "/")]
+    (.mkdirs (File. dir))
+    (spit (str dir "population.csv")
+          (apply str
+                 (for [row (cons population-csv-columns
+                                 (for [ind (:individuals record)]
+                                   [(:id ind) (:original ind) (:fitness ind)
+                                    (first (:components ind)) (second (:components ind))
+                                    (:operator ind) (:subject ind) (:operands ind)]))]
+                   (str (apply str (interpose ";" row)) "\n"))))
+    (doseq [[idx ind] (map-indexed vector (:individuals record))]
+      (persistence/spit-snippetgroup (str dir "individual-" idx ".ekt") (:templategroup ind)))))
+
+(defn
+  export-results-csv!
+  "Writes results.csv of a search run, based on its log"
+  [output-dir]
+  (spit (str output-dir "results.csv")
+        (apply str
+               (for [row (cons results-csv-columns (map results-row (read-run-log output-dir)))]
+                 (str (apply str (interpose ";" row)) "\n")))))
+
+(defn
+  export-run!
+  "Writes results.csv, as well as the population.csv and individual-N.ekt files of all generations of a search run,
+   based on its log"
+  [output-dir]
+  (export-results-csv! output-dir)
+  (doseq [record (read-run-log output-dir)]
+    (export-population! output-dir record)))
+
+;; Recorder
+;; --------
+
+; Records the generations of a search run
+; - queue   Generation records that remain to be written (or a [::close promise] marker, see close-recorder!)
+; - thread  The thread that writes the records
+(defrecord RunRecorder [queue thread])
+
+(defn-
+  write-records
+  "Appends a batch of generation records to a log, and exports their populations if needed
+   @return the promise of a close marker in the batch, if any"
+  [^DataOutputStream out output-dir export-populations batch]
+  (let [close (some (fn [entry] (if (and (vector? entry) (= ::close (first entry))) (second entry))) batch)]
+    (doseq [record batch
+            :when (map? record)]
+      (try
+        (let [entry (encode-record record)]
+          (.writeInt out (alength entry))
+          (.write out entry))
+        (if export-populations
+          (export-population! output-dir record))
+        (catch Exception e
+          (.printStackTrace e))))
+    (.flush out)
+    close))
+
+(defn
+  make-recorder
+  "Starts recording a search run, appending to the log in its output directory
+   @param export-populations  If true, the population.csv and individual-N.ekt files of each generation are exported as well
+                              (in the background; e.g. for the population inspector of the GUI)"
+  [output-dir export-populations]
+  (.mkdirs (File. ^String output-dir))
+  (let [queue (LinkedBlockingQueue.)
+        out (DataOutputStream. (BufferedOutputStream. (FileOutputStream. (str output-dir log-name) true) 65536))
+        thread (Thread.
+                 ^Runnable
+                 (fn []
+                   (loop []
+                     (let [batch (ArrayList.)]
+                       (.add batch (.take queue))
+                       (.drainTo queue batch)
+                       (if-let [close (write-records out output-dir export-populations batch)]
+                         (do
+                           (.close out)
+                           (deliver close true))
+                         (recur)))))
+                 "Ekeko/X run recorder")]
+    (.setDaemon thread true)
+    (.start thread)
+    (RunRecorder. queue thread)))
+
+(defn
+  record-generation!
+  "Adds a generation record to the log of a run, without waiting for it to be written"
+  [recorder record]
+  (.put ^LinkedBlockingQueue (:queue recorder) record))
+
+(defn
+  close-recorder!
+  "Waits until all generation records have been written, and closes the log"
+  [recorder]
+  (let [done (promise)]
+    (.put ^LinkedBlockingQueue (:queue recorder) [::close done])
+    @done))
@@ -0,0 +1,77 @@
+(ns
+  ^{:doc "Scheduler for the tasks of a search generation (e.g. mutating and evaluating an individual).
+          All tasks share one fork/join pool, in which idle workers steal tasks from busy ones,
+          rather than each worker being assigned a fixed partition of the tasks up front."}
+  damp.ekeko.snippets.geneticsearch.scheduler
+  (:require [damp.ekeko.snippets
+             [util :as util]]))
+
+;; Generation tasks
+;; ----------------
+
+; Outcome of a generation task
+; - result    The viable result produced by the task, or nil if the task gave up
+; - attempts  Number of times the task's function was applied
+; - elapsed   Time spent on the task (in ms)
+(defrecord TaskReport [result attempts elapsed])
+
+(defn- run-task
+  "Keep on applying func until it produces a viable result, or until max-attempts is reached"
+  [func test-func max-attempts]
+  (let [start-time (System/nanoTime)]
+    (loop [attempt 1]
+      (let [result (func)]
+        (print ".")
+        (cond
+          (test-func result)
+          (TaskReport. result attempt (util/time-elapsed start-time))
+
+          (>= attempt max-attempts)
+          (do
+            (print "x")
+            (TaskReport. nil attempt (util/time-elapsed start-time)))
+
+          :else
+          (recur (inc attempt)))))))
+
+(defn
+  run-tasks
+  "Runs cnt tasks, each of which keeps on applying func until we get a result for which test-func is true
+   (Replaces util/viable-repeat and its parallel variants)
+   @param cnt        Number of tasks
+   @param func       The function to apply repeatedly (has no args)
+   @param test-func  This test-function determines whether a return value of func is viable (has 1 arg, returns a boolean)
+   @param config     Search configuration; uses :parallel-individuals (:sequential or :forkjoin),
+                     :parallel-individuals-threads and :max-task-attempts
+   @return a list of TaskReports, one per task"
+  [cnt func test-func config]
+  (let [max-attempts (:max-task-attempts config)
+        tasks (repeatedly cnt (fn [] (fn [] (run-task func test-func max-attempts))))]
+    (if (= :sequential (:parallel-individuals config))
+      (doall (map (fn [task] (task)) tasks))
+      (doall (util/forkjoin-invoke-all tasks (:parallel-individuals-threads config))))))
+
+(defn
+  viable-results
+  "The viable results among the given task reports (tasks that gave up are left out)"
+  [reports]
+  (keep :result reports))
+
+(defn
+  reports-summary
+  "Summarizes the timing of a list of task reports"
+  [reports]
+  (let [times (sort (map :elapsed reports))]
+    {:tasks (count reports)
+     :gave-up (count (remove :result reports))
+     :attempts (reduce + (map :attempts reports))
+     :median-time (if (empty? times) 0 (nth times (quot (count times) 2)))
+     :max-time (if (empty? times) 0 (last times))}))
+
+(defn
+  spit-reports
+  "Appends the given task reports to a .csv file (one row per task: its index, attempts, time and whether it was viable)
+   @param row-prefix  Values added to the start of each row (e.g. the generation and the kind of tasks)"
+  [file-name row-prefix reports]
+  (doseq [[idx report] (map-indexed vector reports)]
+    (util/append-csv file-name (concat row-prefix [idx (:attempts report) (:elapsed report) (some? (:result report))]))))
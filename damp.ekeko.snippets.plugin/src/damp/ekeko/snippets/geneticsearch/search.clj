@@ -2,7 +2,7 @@
   ^{:doc "(Genetic) search for template specifications."
   :author "Coen De Roover, Tim Molderez"}
   damp.ekeko.snippets.geneticsearch.search
-  (:refer-clojure :exclude [rand-nth rand-int rand])
+  (:refer-clojure :exclude [rand-nth rand-int rand shuffle])
   (:import 
     [damp.ekeko JavaProjectModel]
     [org.eclipse.jface.text Document]
@@ -29,7 +29,10 @@
              [transformation :as transformation]])
   (:require [damp.ekeko.snippets.geneticsearch 
              [individual :as individual]
-             [fitness :as fitness]])
+             [fitness :as fitness]
+             [fitnesscache :as fitnesscache]
+             [recorder :as recorder]
+             [scheduler :as scheduler]])
   (:import [damp.ekeko.snippets.geneticsearch.fitness MatchedNodes])
   (:import [ec.util MersenneTwister]
            [damp.ekeko.snippets.geneticsearch PartialJavaProjectModel]
@@ -43,6 +46,10 @@
   (int (rand n)))
 (defn rand-nth [coll]
   (nth coll (rand-int (count coll))))
+(defn shuffle [coll]
+  (let [lst (java.util.ArrayList. ^java.util.Collection (vec coll))]
+    (java.util.Collections/shuffle lst *twister*)
+    (vec lst)))
 
 (def
   ^{:doc "List of all possible mutation operators"}
@@ -110,15 +117,17 @@
    :fitness-weights [12/20 8/20 0/20]
    :fitness-threshold 0.95
    :fitness-filter-comp 0 ; This is the index of the fitness component that must be strictly positive; otherwise the individual will be filtered out. If -1, the overall fitness must be positive.
+   :fitness-cache-size 10000 ; Maximum number of fitness values kept in the fitness cache (shared by all search runs and stored in the output directory). If 0, fitness values are not cached.
    
-   :parallel-individuals :partitioned ; Generate + test the fitness of each individual in a generation in parallel (either :sequential, :partitioned or :reducer)
-   :parallel-individuals-threads 4 ; Number of threads used by :partitioned
-   :parallel-individuals-psize 2 ; Reducer partition size
-   :parallel-matching :partitioned ; Process each potential match in parallel (either :sequential, :partitioned or :reducer)
+   :parallel-individuals :forkjoin ; Generate + test the fitness of each individual in a generation in parallel (either :sequential or :forkjoin; :partitioned and :reducer are synonyms of :forkjoin)
+   :parallel-individuals-threads 4 ; Parallelism of the fork/join pool shared by all generation tasks
+   :max-task-attempts 100 ; Maximum number of times a generation task may retry to produce a viable individual before giving up
+   :parallel-matching :forkjoin ; Process each potential match in parallel (either :sequential or :forkjoin; :partitioned and :reducer are synonyms of :forkjoin)
    :parallel-matching-threads 4
-   :parallel-matching-psize 10 ;(min, tasks are small: checking of 1 directive on 1 potential match)
+   :parallel-matching-psize 10 ; Minimum number of potential matches per task (tasks are small: checking of 1 directive on 1 potential match)
    
    :output-dir nil
+   :export-populations false ; If true, the population.csv and individual-N.ekt files of each generation are written as well (always the case if gui-editor is set). Otherwise, they can be exported from the run log afterwards (see recorder/export-run!).
    :partial-matching true
    :quick-matching false ; If enabled, template matching only considers the classes occuring in verified matches. Matching will be much faster, but the resulting templates can produce false positives.
    :tournament-rounds 7
@@ -126,6 +135,16 @@
    :gui-editor nil ; If set to a RecommendationEditor instance, the results of each generation are pushed to this GUI component
    })
 
+(defn- search-fitness-function
+  "Creates the fitness function of a search run, backed by the fitness cache if enabled"
+  [verifiedmatches config output-dir]
+  (let [fitness ((:fitness-function config) verifiedmatches config)]
+    (if (pos? (:fitness-cache-size config))
+      (fitnesscache/caching-fitness-function 
+        fitness 
+        (fitnesscache/shared-fitness-cache verifiedmatches config (str output-dir "fitness-cache.txt")))
+      fitness)))
+
 (defrecord
   ^{:doc "Specifies the 'oracle' for testing the fitness of templates produced by our genetic search algorithm
           The entries in :positives are snippets that a template must match, whereas
@@ -292,22 +311,27 @@
 
 (defn
   mutate
-  "Perform a mutation operation on a template group. A random node is chosen among the snippets,
-   and a random operation is applied to it, in order to mutate the snippet."
+  "Perform a mutation operation on a template group. A random template is chosen among those that can be mutated,
+   then a random operator among those that apply to it, and a random subject of that operator, in order to mutate the snippet.
+   Every template that can be mutated is equally likely to be chosen, regardless of its number of operator/subject pairs.
+   The mutated template group shares all templates the operation does not change with the original group;
+   only if the operation modifies the AST of a template, that template is copied first.
+   The project values and bindings that template values resolve to are memoized for the duration of the mutation
+   (see snippet/with-anchor-resolutions).
+   The subjects of each operator are looked up in the individual's applicability index (see individual/operator-subjects).
+   Returns the individual itself if no operator can be applied to any of its templates."
   [individual operators]
-  (let [snippetgroup (individual/individual-templategroup individual)
-        group-copy (persistence/copy-snippetgroup snippetgroup)
+  (snippet/with-anchor-resolutions
+    (let [snippetgroup (individual/individual-templategroup individual)
 ;        operator-bias (nth (individual/individual-fitness-components individual) 3)
         
-        snippetno (rand-nth (range 0 (count (snippetgroup/snippetgroup-snippetlist group-copy))))
-        snippet (nth (snippetgroup/snippetgroup-snippetlist group-copy) snippetno)
-        pick-operator
-        (fn []
-          (let [
-                refining-ops (filter (fn [x] (= :refinement (operatorsrep/operator-category x)) ) operators)
-                generalizing-ops (filter (fn [x] (= :generalization (operatorsrep/operator-category x)) ) operators)
-                other-ops (filter (fn [x] (and (not= :refinement (operatorsrep/operator-category x))
-                                               (not= :generalization (operatorsrep/operator-category x))) ) operators)
+          pick-operator
+          (fn []
+            (let [
+                  refining-ops (filter (fn [x] (= :refinement (operatorsrep/operator-category x)) ) operators)
+                  generalizing-ops (filter (fn [x] (= :generalization (operatorsrep/operator-category x)) ) operators)
+                  other-ops (filter (fn [x] (and (not= :refinement (operatorsrep/operator-category x))
+                                                 (not= :generalization (operatorsrep/operator-category x))) ) operators)
                 
 ;                operator (let [rand-num (rand 100)]
 ;                           (if (pos? operator-bias)
@@ -320,66 +344,88 @@
 ;                               (>= rand-num 80) (rand-nth refining-ops)
 ;                               :else (rand-nth other-ops))))
                 
-                operator (rand-nth operators)
-
-                ; Pick an AST node that the chosen operator can be applied to
-                all-valid-nodes (filter
-                                  (fn [node]
-                                    (and
-                                      (operatorsrep/applicable? snippetgroup snippet node operator)
-                                      ; In case of an operator that adds a directive, check that the directive isn't already there..
-                                      (not (boolean
-                                             (directives/bounddirective-for-directive
-                                               (snippet/snippet-bounddirectives-for-node snippet node)
-                                               (operator-directive (operatorsrep/operator-id operator)))))
-                                      ))
-                                  (matching/reachable-nodes snippet (snippet/snippet-root snippet)))]
-            (if (empty? all-valid-nodes)
-              (do
-                (print ".")
-                (recur)) ; Try again if there are no valid subjects..
-              (let [subject (rand-nth all-valid-nodes)
-                    operands (operatorsrep/operator-operands operator)
-                    op-id (operatorsrep/operator-id operator)
-                    [possiblevalues updated-group]
-                    (cond 
-                      (= op-id "add-directive-invokedby")
-                      (gen-operand-values group-copy operator [:MethodInvocation :SuperMethodInvocation])
-                      (= op-id "add-directive-invokes")
-                      (gen-operand-values group-copy operator [:MethodDeclaration])
-                      (= op-id "add-directive-overrides")
-                      (gen-operand-values group-copy operator [:MethodDeclaration])
-                      (= op-id "add-directive-subtype*")
-                      (gen-operand-values2 group-copy operator [:SimpleName :ArrayType :ParameterizedType :PrimitiveType :QualifiedType :SimpleType :UnionType :WildcardType :TypeParameter :Type])
-                      (= op-id "add-directive-subtype+")
-                      (gen-operand-values2 group-copy operator [:SimpleName :ArrayType :ParameterizedType :PrimitiveType :QualifiedType :SimpleType :UnionType :WildcardType :TypeParameter :Type])
-                      :else
-                      [(for [operand operands] (operatorsrep/possible-operand-values|valid group-copy snippet subject operator operand))
-                       group-copy])
-                    ]
-                (if (every? (fn [x] (not (empty? x))) possiblevalues)
-                [operator subject operands (for [vals possiblevalues] (rand-nth vals)) updated-group]
-                (recur)))))) ; Try again if there are operands with no possible values..
-        
-        [operator value operands operandvalues updated-group] (pick-operator)
+                  eligible? (fn [operator snippet node]
+                              (and
+                                (operatorsrep/applicable? snippetgroup snippet node operator)
+                                ; In case of an operator that adds a directive, check that the directive isn't already there..
+                                (not (boolean
+                                       (directives/bounddirective-for-directive
+                                         (snippet/snippet-bounddirectives-for-node snippet node)
+                                         (operator-directive (operatorsrep/operator-id operator)))))))
+                  
+                  ; Operand values that do not depend on the subject (and the template group updated to accomodate them), if any
+                  group-operand-values (fn [operator]
+                                         (case (operatorsrep/operator-id operator)
+                                           "add-directive-invokedby"
+                                           (gen-operand-values snippetgroup operator [:MethodInvocation :SuperMethodInvocation])
+                                           "add-directive-invokes"
+                                           (gen-operand-values snippetgroup operator [:MethodDeclaration])
+                                           "add-directive-overrides"
+                                           (gen-operand-values snippetgroup operator [:MethodDeclaration])
+                                           "add-directive-subtype*"
+                                           (gen-operand-values2 snippetgroup operator [:SimpleName :ArrayType :ParameterizedType :PrimitiveType :QualifiedType :SimpleType :UnionType :WildcardType :TypeParameter :Type])
+                                           "add-directive-subtype+"
+                                           (gen-operand-values2 snippetgroup operator [:SimpleName :ArrayType :ParameterizedType :PrimitiveType :QualifiedType :SimpleType :UnionType :WildcardType :TypeParameter :Type])
+                                           nil))
+                  
+                  pick (fn [snippetno operator subject possiblevalues updated-group]
+                         (if (every? (fn [x] (not (empty? x))) possiblevalues)
+                           [snippetno operator subject (operatorsrep/operator-operands operator) 
+                            (for [vals possiblevalues] (rand-nth vals)) updated-group]))]
+              
+              ; Templates and operators are tried in random order, skipping operators without subjects (or operand values),
+              ; which amounts to picking a random operator among those that can be applied to a random template.
+              ; (Templates are not weighted by their number of applicable operator/subject pairs, just like they weren't
+              ;  when a random template was picked up front; templates without any are now skipped, rather than retried forever.)
+              (some
+                (fn [snippetno]
+                  (let [snippet (nth (snippetgroup/snippetgroup-snippetlist snippetgroup) snippetno)]
+                    (some
+                      (fn [operator]
+                        (let [subjects (individual/operator-subjects individual snippetno operator (partial eligible? operator))]
+                          (if (not (empty? subjects))
+                            (if-let [[possiblevalues updated-group] (group-operand-values operator)]
+                              (pick snippetno operator (rand-nth subjects) possiblevalues updated-group)
+                              ; Try the subjects in random order, until one has possible values for all operands
+                              (some 
+                                (fn [subject]
+                                  (pick snippetno operator subject
+                                        (for [operand (operatorsrep/operator-operands operator)] 
+                                          (operatorsrep/possible-operand-values|valid snippetgroup snippet subject operator operand))
+                                        snippetgroup))
+                                (shuffle subjects))))))
+                      (shuffle operators))))
+                (shuffle (range 0 (count (snippetgroup/snippetgroup-snippetlist snippetgroup)))))))]
+      (if-let [[snippetno operator picked-value operands operandvalues picked-group] (pick-operator)]
+        (let [; Copy the template first if the operator modifies its AST, as the original AST is shared with the parent individual
+              [updated-group value] (if (operatorsrep/operator-modifies-ast? operator)
+                                      (let [template (nth (snippetgroup/snippetgroup-snippetlist picked-group) snippetno)
+                                            [copy corresponding] (persistence/copy-snippet|corresponding template)]
+                                        [(snippetgroup/replace-snippet picked-group template copy) (corresponding picked-value)])
+                                      [picked-group picked-value])
         
-        new-snippet (nth (snippetgroup/snippetgroup-snippetlist updated-group) snippetno) ; Cannot reuse snippet because it might've been replaced!!
+              new-snippet (nth (snippetgroup/snippetgroup-snippetlist updated-group) snippetno) ; Cannot reuse snippet because it might've been replaced!!
         
-        bindings
-        (cons
-          (operatorsrep/make-implicit-operandbinding-for-operator-subject updated-group new-snippet value operator)
-          (map (fn [operand operandval]
-                 (operatorsrep/make-binding operand updated-group new-snippet operandval))
-               operands
-               operandvalues))]
-    (individual/make-individual
-      (operatorsrep/apply-operator-to-snippetgroup updated-group new-snippet value operator bindings)
-      {:mutation-operator (operatorsrep/operator-id operator)
-       :mutation-node value
-       :mutation-opvals operandvalues
-       :id (str (gensym "0"))
-       :original (individual/individual-info individual :id)}
-      )))
+              bindings
+              (cons
+                (operatorsrep/make-implicit-operandbinding-for-operator-subject updated-group new-snippet value operator)
+                (map (fn [operand operandval]
+                       (operatorsrep/make-binding operand updated-group new-snippet operandval))
+                     operands
+                     operandvalues))]
+          (-> 
+            (individual/make-individual
+              (operatorsrep/apply-operator-to-snippetgroup updated-group new-snippet value operator bindings)
+              {:mutation-operator (operatorsrep/operator-id operator)
+               :mutation-node value
+               :mutation-opvals operandvalues
+               :id (str (gensym "0"))
+               :original (individual/individual-info individual :id)})
+            (individual/inherit-match-state individual operator)
+            (individual/inherit-applicability individual)))
+        (do
+          (print "!") ; No operator can be applied to this individual
+          individual)))))
 
 (defn- node-expected-class
   "Returns the expected type of an ASTnode, more specifically, the type that the parent node expects.
@@ -434,22 +480,23 @@
   (let
     [snippetgroup1 (individual/individual-templategroup ind1)
      snippetgroup2 (individual/individual-templategroup ind2)
-     group-copy1 (persistence/copy-snippetgroup snippetgroup1)
-     group-copy2 (persistence/copy-snippetgroup snippetgroup2)
      ; Get two random snippets
-     snippet1 (rand-snippet group-copy1)
-     snippet2 (rand-snippet group-copy2)
+     snippet1 (rand-snippet snippetgroup1)
+     snippet2 (rand-snippet snippetgroup2)
      ; Get two random AST nodes
      node-pair (find-compatible-ast-pair snippet1 snippet2)
      node1 (first node-pair)
-     node2 (second node-pair) 
-     new-snippet1 (operators/replace-node-with snippet1 node1 snippet2 node2)
-     new-snippet2 (operators/replace-node-with snippet2 node2 snippet1 node1)]
+     node2 (second node-pair)
+     ; Only the two snippets whose ASTs are modified are copied; the others are shared with the parents
+     [copy1 corresponding1] (persistence/copy-snippet|corresponding snippet1)
+     [copy2 corresponding2] (persistence/copy-snippet|corresponding snippet2)
+     new-snippet1 (first (operators/replace-node-with copy1 (corresponding1 node1) snippet2 node2))
+     new-snippet2 (first (operators/replace-node-with copy2 (corresponding2 node2) snippet1 node1))]
     [(individual/make-individual
-       (snippetgroup/replace-snippet group-copy1 snippet1 new-snippet1)
+       (snippetgroup/replace-snippet snippetgroup1 snippet1 new-snippet1)
        {:crossover-old node1 :crossover-new node2})
      (individual/make-individual
-       (snippetgroup/replace-snippet group-copy2 snippet2 new-snippet2)
+       (snippetgroup/replace-snippet snippetgroup2 snippet2 new-snippet2)
        {:crossover-old node2 :crossover-new node1})]))
 
 (defn 
@@ -488,23 +535,24 @@
                   (:output-dir config))
 
      ; If output-dir already contains previous generations, resume search from the last generation
-     resume-generation (let [files (.list (clojure.java.io/file output-dir))
-                             numbered-files (map (fn [file]
-                                                   (try
-                                                     (java.lang.Integer/parseInt file)
-                                                     (catch Exception e -1)))
-                                                 files)]
-                         (if (> (count numbered-files) 0)
-                           (inc (apply max numbered-files))
-                           0))
+     ; (as recorded in the run log, or else in the generation directories of runs that predate the log)
+     last-record (recorder/last-generation-record output-dir)
+     resume-generation (if last-record
+                         (inc (:generation last-record))
+                         (let [files (.list (clojure.java.io/file output-dir))
+                               numbered-files (map (fn [file]
+                                                     (try
+                                                       (java.lang.Integer/parseInt file)
+                                                       (catch Exception e -1)))
+                                                   files)]
+                           (if (> (count numbered-files) 0)
+                             (inc (apply max numbered-files))
+                             0)))
      
      csv-name (str output-dir "results.csv")
-     csv-columns ["Generation" "Total time" "Generation time"
-                  "Best fitness" "Worst fitness" "Average fitness"
-                  "Best fscore" "Worst fscore" "Average fscore"
-                  "Best partial" "Worst partial" "Average partial"]
-     gen-csv-name "population.csv"
-     gen-csv-columns ["Id" "Original" "Fitness" "F1" "Partial" "Operator" "Subject" "Operands"]
+     csv-columns recorder/results-csv-columns
+     tasks-csv-name (str output-dir "tasks.csv")
+     tasks-csv-columns ["Generation" "Task kind" "Task" "Attempts" "Time" "Viable"]
      start-time (. System (nanoTime))
      
      update-avg-time 
@@ -515,25 +563,37 @@
            (* (/ generation (inc generation)) prev-avg)
            (* (/ 1 (inc generation)) generation-elapsed))))
      
-     fitness ((:fitness-function config) verifiedmatches config)
+     fitness (search-fitness-function verifiedmatches config output-dir)
      sort-by-fitness (fn [population]
                        (sort-by
                          (fn [x] (individual/individual-fitness x))
                          (map (fn [ind] (individual/compute-fitness ind fitness)) 
                               population)))
-     initial-pop (sort-by-fitness (if (> resume-generation 0)
+     initial-pop (sort-by-fitness (cond
+                                    last-record
+                                    (population-from-templates (map :templategroup (:individuals last-record)) (:population-size config))
+                                    
+                                    (> resume-generation 0)
                                     (let [files (.list (clojure.java.io/file (str output-dir (dec resume-generation))))
                                           templategroups (map (fn [file]
                                                                 (persistence/slurp-snippetgroup (str output-dir (dec resume-generation) "/" file)))
                                                               files)] 
                                       (population-from-templates templategroups (:population-size config)))
-                                    (if (nil? (:initial-population config))
-                                      (population-from-snippets (:positives verifiedmatches) (:population-size config))
-                                      (:initial-population config))))
-     tournament-size (:tournament-rounds config)]
+                                    
+                                    (nil? (:initial-population config))
+                                    (population-from-snippets (:positives verifiedmatches) (:population-size config))
+                                    
+                                    :else
+                                    (:initial-population config)))
+     tournament-size (:tournament-rounds config)
+     run-recorder (recorder/make-recorder output-dir (or (:export-populations config) (some? (:gui-editor config))))
+     finish-recording (fn [] 
+                        (recorder/close-recorder! run-recorder)
+                        (util/flush-appends!))]
     (util/make-dir output-dir)
     (println "Writing results to:" output-dir)
     (util/append-csv csv-name csv-columns)
+    (util/append-csv tasks-csv-name tasks-csv-columns)
     
     ; Set up the map function used when matching templates to enable/disable concurrency
     (matching2/def-hmap-fn (:parallel-matching config) (:parallel-matching-threads config) (:parallel-matching-psize config))
@@ -547,7 +607,7 @@
        history #{}]
       (let [new-history (atom history)
             history-hash (fn [individual] 
-                           (hash (individual/individual-templategroup individual)))
+                           (fitnesscache/templategroup-fingerprint (individual/individual-templategroup individual)))
             in-history (fn [individual]
                          (contains? @new-history (history-hash individual)))
             preprocess (fn [individual]
@@ -561,14 +621,16 @@
                                     (fn [x] (clojure.set/union x #{(history-hash individual)})))
                              (if (pos? filter-score) ind))))
             best-fitness (individual/individual-fitness (last population))
-            repeat-fn (case (:parallel-individuals config)
-                        :sequential util/viable-repeat
-                        :partitioned
-                        (fn [cnt func test-func]
-                          (util/parallel-viable-repeat cnt func test-func (:parallel-individuals-threads config)))
-                        :reducer 
-                        (fn [cnt func test-func]
-                          (util/reducer-viable-repeat cnt func test-func (:parallel-individuals-psize config))))
+            repeat-fn (fn [task-kind cnt func test-func] ; Produces cnt viable results as separate generation tasks
+                        (let [reports (scheduler/run-tasks cnt func test-func config)
+                              summary (scheduler/reports-summary reports)]
+                          (scheduler/spit-reports tasks-csv-name [(inc generation) task-kind] reports)
+                          (println)
+                          (println task-kind "tasks:" (:tasks summary) 
+                                   "- gave up:" (:gave-up summary)
+                                   "- median time:" (:median-time summary) 
+                                   "- max time:" (:max-time summary))
+                          (scheduler/viable-results reports)))
             
             total-elapsed (util/time-elapsed start-time)
             generation-elapsed (util/time-elapsed generation-start-time)]
@@ -580,16 +642,9 @@
 ;        (println "Fitnesses:" (map individual/individual-fitness-components population))
 ;        (println "Best specification:" (persistence/snippetgroup-string (individual/individual-templategroup (last population))))
 
-        (util/append-csv csv-name [generation total-elapsed generation-elapsed
-                                   best-fitness ; Fitness 
-                                   (individual/individual-fitness (first population))
-                                   (util/average (map (fn [ind] (individual/individual-fitness ind)) population))
-                                   (first (individual/individual-fitness-components (last population))) ; F-score
-                                   (first (individual/individual-fitness-components (first population)))
-                                   (util/average (map (fn [ind] (first (individual/individual-fitness-components ind))) population))
-                                   (second (individual/individual-fitness-components (last population))) ; Partial score
-                                   (second (individual/individual-fitness-components (first population)))
-                                   (util/average (map (fn [ind] (second (individual/individual-fitness-components ind))) population))])
+        (let [record (recorder/generation-record generation total-elapsed generation-elapsed population)]
+          (util/append-csv csv-name (recorder/results-row record))
+          (recorder/record-generation! run-recorder record))
         
         (println "Total time:" total-elapsed)
         (println "Generation time:" generation-elapsed)
@@ -597,22 +652,6 @@
         (util/make-dir (str output-dir generation))
         (persistence/spit-snippetgroup (str output-dir generation "/best.ekt") 
                                        (individual/individual-templategroup (last population)))
-        (util/append-csv (str output-dir generation "/" gen-csv-name) gen-csv-columns)
-        (doall (map-indexed
-                 (fn [idx individual]
-                   (util/append-csv (str output-dir generation "/" gen-csv-name)
-                                    [(individual/individual-info (nth population idx) :id) 
-                                     (individual/individual-info (nth population idx) :original)
-                                     (individual/individual-fitness (nth population idx))
-                                     (first (individual/individual-fitness-components (nth population idx)))
-                                     (second (individual/individual-fitness-components (nth population idx)))
-                                     (individual/individual-info (nth population idx) :mutation-operator)
-                                     (pr-str (type (individual/individual-info (nth population idx) :mutation-node)))
-                                     (pr-str (individual/individual-info (nth population idx) :mutation-opvals))])
-                   (persistence/spit-snippetgroup (str output-dir generation "/individual-" idx ".ekt") 
-                                                  (individual/individual-templategroup individual))
-                   ) 
-                 population))
         
         (if (not (nil? (:gui-editor config)))
           (let [editor (:gui-editor config)]
@@ -630,6 +669,7 @@
           (>= generation (:max-generations config))
           (do 
             (println "Maximum number of generations reached! Stopping genetic search..")
+            (finish-recording)
             (spit (str output-dir "done.txt") "Done!")
             (update-avg-time generation generation-elapsed avg-generation-time) ;total-elapsed
             )
@@ -639,12 +679,15 @@
               (println "Success:" (persistence/snippetgroup-string (individual/individual-templategroup (last population))))
               (persistence/spit-snippetgroup (str output-dir "success.ekt") 
                                              (individual/individual-templategroup (last population)))
+              (finish-recording)
               (spit (str output-dir "done.txt") "Done!")
               (update-avg-time generation generation-elapsed avg-generation-time) ;total-elapsed
               )
           
           (util/metaspace-almost-full?)
-          (println "Java metaspace almost full! Stopping genetic search..")
+          (do
+            (println "Java metaspace almost full! Stopping genetic search..")
+            (finish-recording))
           
           :rest 
           (recur
@@ -663,6 +706,7 @@
                 (concat
                   ; Mutation
                   (repeat-fn
+                    "Mutation"
                     (* (:mutation-weight config) (count population))
                     #(preprocess (mutate (select population tournament-size) (:mutation-operators config)))
                     some?)
@@ -670,6 +714,7 @@
                   ; Crossover (Note that each crossover operation produces a pair)
                   (apply concat
                          (repeat-fn 
+                           "Crossover"
                            (* (/ (:crossover-weight config) 2) (count population))
                            #(map preprocess
                                  (crossover
@@ -680,6 +725,7 @@
                   
                   ; Selection
                   (repeat-fn 
+                    "Selection"
                     (* (:selection-weight config) (count population)) 
                     #(select-with-new-id population tournament-size) 
                     (fn [ind] (pos? (individual/individual-fitness ind))))))
@@ -703,7 +749,7 @@
      csv-columns ["Generation" "Total time" "Generation time"
                   "Fitness" "Fscore" "Partial"]
      start-time (. System (nanoTime))
-     fitness ((:fitness-function config) verifiedmatches config)
+     fitness (search-fitness-function verifiedmatches config output-dir)
 
     ]
     (util/make-dir output-dir)
@@ -746,9 +792,13 @@
               (inc generation)
               (. System (nanoTime))
               
-              (let [mutant (mutate best-template (:mutation-operators config))
-                    mutant-plus-fitness (individual/compute-fitness mutant fitness)
-                    tmp (println (individual/individual-fitness mutant-plus-fitness))]
+              (let [[report] (scheduler/run-tasks 
+                               1
+                               #(individual/compute-fitness (mutate best-template (:mutation-operators config)) fitness)
+                               some?
+                               config)
+                    mutant-plus-fitness (or (:result report) best-template)
+                    tmp (println (individual/individual-fitness mutant-plus-fitness) "(" (:elapsed report) "ms)")]
                 (if (>= 
                       (individual/individual-fitness mutant-plus-fitness)
                       (individual/individual-fitness best-template))
@@ -774,7 +824,7 @@
      csv-columns ["Generation" "Total time" "Generation time"
                   "Fitness" "Fscore" "Partial"]
      start-time (. System (nanoTime))
-     fitness ((:fitness-function config) verifiedmatches config)]
+     fitness (search-fitness-function verifiedmatches config output-dir)]
     (util/make-dir output-dir)
     (spit (str output-dir "random.txt") "Random search run")
     (util/append-csv csv-name csv-columns)
@@ -821,8 +871,13 @@
                                      (recur (mutate template (:mutation-operators config)) (dec count))))
                     mutation-count (rand-int 30)
                     
-                    mutant (multi-mutate initial-template mutation-count)
-                    mutant-plus-fitness (individual/compute-fitness mutant fitness)
+                    [report] (scheduler/run-tasks
+                               1
+                               #(individual/compute-fitness (multi-mutate initial-template mutation-count) fitness)
+                               some?
+                               config)
+                    mutant-plus-fitness (or (:result report) best-template)
+                    mutant mutant-plus-fitness
                     ]
                 (println "(Applied" mutation-count "mutations to initial template)")
                 (println "Current specification:" (persistence/snippetgroup-string (individual/individual-templategroup mutant)))
@@ -0,0 +1,32 @@
+package damp.ekeko.snippets.gui;
+
+import clojure.lang.IFn;
+import damp.ekeko.snippets.data.TemplateGroup;
+
+/**
+ * Pretty-prints a template group, annotating each template value with the measurements
+ * of a profile of the matching engine (see profiling.clj).
+ */
+public class TemplateProfilePrinter extends TemplatePrettyPrinter {
+
+	public static IFn FN_PROFILE_VALUE_SUMMARY;
+
+	private Object profile;
+
+	public TemplateProfilePrinter(TemplateGroup group, Object profile) {
+		super(group);
+		this.profile = profile;
+	}
+
+	@Override
+	public void printClosingNode(Object node) {
+		super.printClosingNode(node);
+		Object summary = FN_PROFILE_VALUE_SUMMARY.invoke(profile, node);
+		if(summary != null) {
+			int start = this.buffer.length();
+			this.buffer.append("/*" + summary + "*/");
+			styleRanges.add(styleRangeForMeta(start, this.buffer.length() - start));
+		}
+	}
+
+}
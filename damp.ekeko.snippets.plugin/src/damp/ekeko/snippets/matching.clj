@@ -858,7 +858,7 @@ damp.ekeko.snippets.matching
             (util/gen-lvar "matchtype")]
       `((cl/fresh [~var-match-type]
          (runtime/type ~var-match ~var-match-type)
-         (structure/type-type|super+ ~var-match-type ~var-type))
+         (runtime/type-super+ ~var-match-type ~var-type))
          )))
     itypeconstrainf))
 
@@ -874,7 +874,7 @@ damp.ekeko.snippets.matching
       `((cl/fresh [~var-match-type]
          (runtime/type ~var-match ~var-match-type)
          (cl/conde [(cl/== ~var-match-type ~var-type)]
-                   [(structure/type-type|super+ ~var-match-type ~var-type)])
+                   [(runtime/type-super+ ~var-match-type ~var-type)])
          ))))
     itypeconstrainf))
 
@@ -1252,20 +1252,22 @@ damp.ekeko.snippets.matching
 (defn reachable-nodes
   "Retrieve all children of a given node (taking into account that the children of wildcard/metavariable nodes are hidden)"
   [snippet node]
-  (let [walk
-        (fn walk [val]
-          (cond 
-            (or (astnode/ast? val) (astnode/lstvalue? val))
-            (if (snippet-node-replaced? snippet val)
-              [val]
-              (cons val (mapcat walk (snippet/snippet-node-children|conceptually-refs snippet val))))
-            
-            (or (astnode/primitivevalue? val) (astnode/nilvalue? val))
-            [val]
-            
-            :default
-            (throw (Exception. (str "Don't know how to walk this value:" val)))))]
-    (walk node)))
+  (persistent!
+    (util/reduce-walk
+      (fn [val]
+        (cond 
+          (or (astnode/ast? val) (astnode/lstvalue? val))
+          (if (not (snippet-node-replaced? snippet val))
+            (snippet/snippet-node-children|conceptually-refs snippet val))
+          
+          (or (astnode/primitivevalue? val) (astnode/nilvalue? val))
+          nil
+          
+          :default
+          (throw (Exception. (str "Don't know how to walk this value:" val)))))
+      conj!
+      (transient [])
+      node)))
 
 
 (defn reachable-nodes-of-type
@@ -1285,21 +1287,11 @@ damp.ekeko.snippets.matching
             (fn [bd] (= (directives/directive-name (directives/bounddirective-directive bd)) "protect"))
             (snippet/snippet-bounddirectives-for-node snippet val)))
         
-        walk
-        (fn walk [val]
-          (cond 
-            (or (astnode/ast? val) (astnode/lstvalue? val))
-            (if (protected-bd? val)
-              true
-              (some 
-                (fn [child] (walk child))
-                (snippet/snippet-node-children|conceptually-refs snippet val)))
-            (or (astnode/primitivevalue? val) (astnode/nilvalue? val))
-            (protected-bd? val)
-            
-            :default
-            false))]
-    (walk val)))
+        children
+        (fn [val]
+          (if (or (astnode/ast? val) (astnode/lstvalue? val))
+            (snippet/snippet-node-children|conceptually-refs snippet val)))]
+    (boolean (util/some-walk children protected-bd? val))))
 
 (defn
   to-literal-string
@@ -1438,7 +1430,7 @@ damp.ekeko.snippets.matching
     "if"
     [(directives/make-directiveoperand "Clojure expression")]
     constrain-identity
-    "Match should satisfy the given Clojure boolean expression."
+    "Match should satisfy the given Clojure boolean expression. (Within the expression, subj is the source code of the match, and subj-node the match itself.)"
     ))
 
 (def 
@@ -2044,7 +2036,8 @@ damp.ekeko.snippets.matching
     (update-in [:ast2var] dissoc value)
     (update-in [:ast2bounddirectives] dissoc value)
     (update-in [:ast2meta] dissoc value)
-    (update-in [:ast2anchoridentifier] dissoc value)))
+    (update-in [:ast2anchoridentifier] dissoc value)
+    (snippet/reset-identifier-index)))
 
 
 (defn-
@@ -2069,6 +2062,7 @@ damp.ekeko.snippets.matching
       (assoc-in [:ast2bounddirectives value] 
                 (default-bounddirectives snippet value))
       (assoc-in [:var2ast lvar] value)
+      (snippet/reset-identifier-index)
       )))
 
   
@@ -5,6 +5,7 @@
   
   damp.ekeko.snippets.matching2
   (:require [clojure.core.logic :as cl]
+            [clojure.set]
             [clojure.zip :as zip]
             [damp.ekeko.snippets 
              [directives :as directives]
@@ -15,6 +16,12 @@
              [persistence :as persistence]
              [matching :as matching]
              [querying :as querying]
+             [nodeindex :as nodeindex]
+             [budget :as budget]
+             [profiling :as profiling]
+             [bindings :as bindings]
+             [closures :as closures]
+             [resolution :as resolution]
              [runtime :as runtime]]
             [damp.ekeko 
              [logic :as el]
@@ -26,6 +33,7 @@
              [aststructure :as aststructure]
              [javaprojectmodel :as javaprojectmodel]])
   (:import [java.util List]
+           [java.util.concurrent TimeoutException]
            [org.eclipse.jdt.core ITypeHierarchy]
            [org.eclipse.jdt.core.dom.rewrite ASTRewrite]
            [org.eclipse.jdt.core.dom ASTNode Annotation MethodInvocation Expression Name
@@ -80,26 +88,30 @@
 ; Defines the properties associated with each current position
 ; - parent          The previous position (always an ancestor of the current position)
 ; - bindings-list   Logic variable bindings for the current position
-;                   It's a list of maps. Each map maps a logic variable to its potential values.
+;                   It's a vector of binding rows (see bindings.clj). Each row maps the slot of a logic variable to its potential values.
 (defrecord PositionProperties [parent bindings-list])
 
 (defn def-hmap-fn 
   "(Re)defines a function called hmap. It works just like the standard map function, but is suited for hashmaps.
    When used with a hashmap, the standard map function will return a list of key-value pairs. Ours returns a hashmap.
 
-   @param parallel-keyw Indicate the desired type of parallellism, either :sequential, :partioned or :reducer
-   @param threads"
+   @param parallel-keyw Indicate the desired type of parallellism, either :sequential or :forkjoin
+                        (:partitioned and :reducer are synonyms of :forkjoin)
+   @param threads       Parallelism of the fork/join pool, if hmap is not called from within a fork/join task
+   @param psize         Minimum number of entries per fork/join task"
   [parallel-keyw threads psize]
   (case parallel-keyw
     :sequential
     (defn hmap [function data]
       (into {} (map function data)))
-    :partitioned
+    (:forkjoin :partitioned :reducer)
     (defn hmap [function data]
-      (into {} (util/pmap-custom function data threads)))
-    :reducer
-    (defn hmap [function data]
-      (into {} (util/pmap-reducer function (into [] data) psize)))))
+      (into {} 
+            (apply concat
+                   (util/pmap-forkjoin 
+                     (fn [entries] (doall (map function entries)))
+                     (partition-all (max psize 1) data)
+                     threads))))))
 
 ;(def-hmap-fn :partitioned 8 512)
 (def-hmap-fn :sequential 8 512)
@@ -120,43 +132,30 @@
   "Merges all lists of lvar bindings within a matchmap into one list of bindings
    Additionally, the matches of the template are now added as the values of a new logic variable templ-name.
    @param matchmap
-   @param templ-name   A symbol representing the logic variable's name"
-  [matchmap templ-name]
-  (reduce
-    (fn [bindings-list [match positionmap]]
-      (let [merged 
-            (apply concat 
-                   (for [position (keys positionmap)]
-                     (let [b-list (:bindings-list (get positionmap position))]
-                       (for [bindings b-list]
-                         (assoc bindings templ-name [match])))))]
-        (concat bindings-list merged)))
-    []
-    matchmap))
-
-(defn- lvarbindings-updatevalue
-  "Update the value of a logic variable. (If it doesn't exist yet, it can be created now.)
-
-   The updatefn has one argument, the current values of lvar (may be nil),
-   and should returns lvar's new values.
-   If it returns nil, the lvar is removed from the bindings map, while the others remain intact.
-   If it returns an empty list, the entire bindings is removed from the bindings-list."
-  [bindings-list lvar updatefn]
-  (remove nil?
-    (for [bindings bindings-list]
-      (let [new-values (updatefn (get bindings lvar))]
-        (cond 
-          (nil? new-values) (dissoc bindings lvar)
-          (empty? new-values) nil
-          :rest (assoc bindings lvar new-values))))))
+   @param templ-slot   Slot of the logic variable templ-name (see bindings.clj)"
+  [matchmap templ-slot]
+  (persistent!
+    (reduce
+      (fn [merged [match positionmap]]
+        (let [values [match]]
+          (reduce
+            (fn [merged props]
+              (reduce
+                (fn [merged row] (conj! merged (bindings/row-assoc row templ-slot values)))
+                merged
+                (:bindings-list props)))
+            merged
+            (vals positionmap))))
+      (transient [])
+      matchmap)))
 
 (defn- lvarbindings-checkconstraint
   "Check a given constraint on one logic variable, and update
    the list of logic variable bindings accordingly.
    Returns nil if the constraint isn't satisfied by any value.
-   @param bindings
-   @param lvar            The logic variable involved in the constraint
+   @param row             Binding row (see bindings.clj)
    @param ast-node        The subject node to which the constraint is attached
+   @param slot            Slot of the logic variable involved in the constraint
    @param typefn          One-parameter function that checks the type of the directive's subject.
                           Needed because directives can be attached to wildcards, which match with any type of node.
                           Similar to the applicability checks in operatorsrep.clj .. in this case
@@ -166,30 +165,36 @@
    @param generatefn      If the logic variable has no values yet,
                           this function is used to produce all possible values
                           for which the constraint holds"
-  [bindings ast-node lvar typefn constraintfn generatefn]
-  (let [values (get bindings lvar)
+  [row ast-node slot typefn constraintfn generatefn]
+  (let [values (bindings/row-get row slot)
         new-values (if (empty? values)
                      (if (typefn ast-node) (generatefn ast-node) [])
-                     (filter (fn [val] (and (typefn ast-node) (constraintfn ast-node val))) values))]
-    (if (empty? new-values)
-      nil
-      (assoc bindings lvar new-values))))
+                     (if (typefn ast-node)
+                       (into [] (filter (fn [val] (constraintfn ast-node val)) values))
+                       []))]
+    (cond
+      (empty? new-values) nil
+      (= (count new-values) (count values)) row ; All values satisfy the constraint; share the row
+      :else (bindings/row-assoc row slot new-values))))
 
 (defn logicvar? 
   [lvar]
   (symbol? lvar))
 
 (defn- positionmap-checkconstraint
-  [positionmap lvar typefn constraintfn generatefn]
+  [positionmap lvar slot typefn constraintfn generatefn]
   (reduce 
     (fn [cur-positionmap [cur-position props]]
       (if (logicvar? lvar)
         ; The parameter is a logic var
         (let [bindings-list (:bindings-list props) 
-             new-bindings-list (for [bindings bindings-list]
-                                 (lvarbindings-checkconstraint bindings cur-position lvar typefn constraintfn generatefn))
-             new-props (assoc props :bindings-list (remove nil? new-bindings-list))]
-         (if (empty? new-bindings-list) 
+             new-bindings-list (bindings/keep-rows 
+                                 bindings-list
+                                 (fn [row] (lvarbindings-checkconstraint row cur-position slot typefn constraintfn generatefn)))
+             new-props (if (identical? bindings-list new-bindings-list)
+                         props
+                         (assoc props :bindings-list new-bindings-list))]
+         (if (empty? bindings-list) 
            cur-positionmap
            (assoc cur-positionmap cur-position new-props)))
         ; Not a logic var
@@ -201,10 +206,11 @@
     positionmap))
 
 (defn- matchmap-checkconstraint 
-  [matchmap lvar typefn constraintfn generatefn]
+  [matchmap lvar slot typefn constraintfn generatefn]
   (hmap
     (fn [[match positionmap]]
-      (let [new-pmap (positionmap-checkconstraint positionmap lvar typefn constraintfn generatefn)]
+      (budget/check!) ; Constraints may generate many values, so the budget is checked per potential match
+      (let [new-pmap (positionmap-checkconstraint positionmap lvar slot typefn constraintfn generatefn)]
         (if (empty? new-pmap)
           nil
           [match new-pmap])))
@@ -300,13 +306,15 @@
 ;    matchmap)
   )
 
+(declare node-plan)
+
 (defn- determine-next-positions
   "Given a template node, adjust all the current positions of the potential matches
    such that they correspond to that template node.
-   @param 
+   @param plan            The match plan of the template being processed
    @param index           Only considered when cur-node is a list node; retrieves the item at the given index of the list"
-  [ matchmap template cur-node child-node index]
-  (let [bds (snippet/snippet-bounddirectives-for-node template cur-node)
+  [matchmap plan cur-node child-node index]
+  (let [cur-info (node-plan plan cur-node)
         owner-prop (astnode/owner-property cur-node)
         
         ; If template-elem has an ignore directive, return its first child
@@ -315,29 +323,24 @@
         (fn [template-elem]
           (if (and 
                 (astnode/ast? template-elem)
-                (directives/bounddirective-for-directive 
-                  (snippet/snippet-bounddirectives-for-node template template-elem) 
-                  matching/directive-ignore))
-            (first (snippet/snippet-node-children template template-elem))
+                (:ignore (node-plan plan template-elem)))
+            (:ignore-child (node-plan plan template-elem))
             template-elem))
         
         ; If template-node has a child* directive, return all nodes reachable from
         ; ast-node. If not, returns [ast-node].
         child*-test 
         (fn [template-node ast-node]
-          (if (directives/bounddirective-for-directive 
-                (snippet/snippet-bounddirectives-for-node template template-node) 
-                matching/directive-child*)
-            (if (check-directives-only? template template-node)
-              (astnode/reachable-nodes ast-node) ; May only filter on node type if it's not a wildcard or replace-by-variable
-              (filter 
-                (fn [node] (= (class node) (class template-node)))
-                (astnode/reachable-nodes ast-node)))
-            [ast-node]))
+          (let [info (node-plan plan template-node)]
+            (if (:child* info)
+              (if (:directives-only info)
+                (astnode/reachable-nodes ast-node) ; May only filter on node type if it's not a wildcard or replace-by-variable
+                (nodeindex/reachable-nodes-of-class ast-node (class template-node)))
+              [ast-node])))
         ]
     (if 
       ; Match|set (list nodes only)
-      (directives/bounddirective-for-directive bds matching/directive-consider-as-set|lst)
+      (:set cur-info)
       (matchmap-updatepositions
         matchmap
         (fn [ast-node props]
@@ -345,19 +348,20 @@
                 template-list (astnode/value-unwrapped cur-node)
                 template-element (ignore-test child-node)
                 ast-list (astnode/node-property-value ast-node owner-prop)
-                bds-element (snippet/snippet-bounddirectives-for-node template template-element)
+                element-info (node-plan plan template-element)
                 elements-of-type (if (or
-                                       (directives/bounddirective-for-directive bds-element matching/directive-child*)
-                                       (check-directives-only? template template-element))
+                                       (:child* element-info)
+                                       (:directives-only element-info))
                                    ast-list ; May not filter on element type if it has a child*, wildcard or replace-by-variable
-                                   (filter (fn [element] (= (class element) (class template-element))) ast-list))]
+                                   (let [element-class (class template-element)]
+                                     (filter (fn [element] (= (class element) element-class)) ast-list)))]
             (apply 
               concat 
               (for [element elements-of-type]
                 (let [; We use a special logic variable, which has as its value(s) the list elements already matched
                       ; This is necessary to make sure multiple template list elements don't map to the same ast list element.
                       new-bindings-list-1
-                      (lvarbindings-updatevalue bindings-list cur-node
+                      (bindings/update-slot bindings-list (:slot cur-info)
                         (fn [vals]
                           (let [elements-seen-so-far-list (if (empty? vals) [[]] vals)]
                             (remove nil?
@@ -368,7 +372,7 @@
                       
                       new-bindings-list-2 ; If we're at the end of the list, remove the special logic variable, as it's not needed anymore
                       (if (and (= index (dec (.size template-list))))
-                        (lvarbindings-updatevalue new-bindings-list-1 cur-node (fn [vals] nil))
+                        (bindings/update-slot new-bindings-list-1 (:slot cur-info) (fn [vals] nil))
                         new-bindings-list-1)]
                   (if (empty? new-bindings-list-2)
                     [] ; In case there are no valid new positions
@@ -379,16 +383,15 @@
         matchmap
         (fn [ast-node props]
           (let [new-positions
-                (if (snippet/snippet-value-list? template cur-node) 
+                (if (:list? cur-info) 
                   (let [template-list (astnode/value-unwrapped cur-node)
                         ast-list (astnode/node-property-value ast-node owner-prop)]
                     (if (and
-                          (not (has-directive? template cur-node matching/directive-consider-as-regexp|lst))
+                          (not (:regexp cur-info))
                           (not= (.size template-list) (.size ast-list)))
                       []
                       (let [ast-element (.get ast-list index)
-                            template-element (ignore-test child-node)
-                            bds-element (snippet/snippet-bounddirectives-for-node template template-element)]
+                            template-element (ignore-test child-node)]
                         (child*-test template-element ast-element))))
                   (child*-test cur-node (astnode/node-property-value ast-node owner-prop)))]
             (for [new-position new-positions]
@@ -413,7 +416,7 @@
       (let [bindings (:bindings-list props)
             parent (:parent props)
             cur-bindings (:bindings-list (get cur-positionmap parent)) ; Can be nil, but that's normal
-            new-bindings (concat bindings cur-bindings)
+            new-bindings (bindings/concat-rows bindings cur-bindings)
             grandparent (:parent (get (get old-matchmap match) parent))]
         (assoc cur-positionmap parent (PositionProperties. grandparent new-bindings))))
     {}
@@ -438,26 +441,10 @@
   (let 
     [name (snippet/directive-name directive)
      
-     get-type 
-     (fn [ast-node]
-       (.getJavaElement
-          (cond 
-            (instance? Expression ast-node)
-            (.resolveTypeBinding ast-node)
-            (instance? Annotation ast-node)
-            (.resolveAnnotationBinding ast-node)
-            :else
-            (.resolveBinding ast-node))))
+     ; Type and binding resolution is memoized across queries (see resolution.clj)
+     get-type resolution/node-type
      
-     get-all-ancestors
-     (fn ancestors [itype]
-       (let [hierarchy (.getTypeHierarchy ^damp.ekeko.EkekoModel (ekekomodel/ekeko-model) itype)
-             supers (if (nil? hierarchy)
-                      []
-                      (.getAllSupertypes ^ITypeHierarchy hierarchy itype))]
-         (concat supers 
-                 (apply concat 
-                        (for [super supers] (ancestors super))))))
+     get-all-ancestors resolution/type-ancestors
      
      directives
      {"replaced-by-variable"
@@ -478,18 +465,18 @@
        (fn [ast-node val]
          (some 
            (fn [tgt] (= val tgt))
-           (javaprojectmodel/method-ancestors ast-node)
+           (resolution/method-ancestors ast-node)
            ))
        (fn [ast-node]
-         (javaprojectmodel/method-ancestors ast-node))]
+         (resolution/method-ancestors ast-node))]
       
       "invokes"
       [(fn [ast-node] (or (instance? MethodInvocation ast-node) (instance? SuperMethodInvocation ast-node)))
        (fn [ast-node val]
          (some 
            (fn [tgt] (= val tgt))
-           (javaprojectmodel/invocation-targets ast-node)))
-       (fn [ast-node] (javaprojectmodel/invocation-targets ast-node))]
+           (resolution/invocation-targets ast-node)))
+       (fn [ast-node] (resolution/invocation-targets ast-node))]
       
 ;      "invoked-by" ; TODO Trickier to find the callers of an IMethodDeclaration it seems, not sure how Eclipse does it..
 ;      [(fn [ast-node] (instance? MethodDeclaration ast-node))
@@ -552,30 +539,24 @@
          (let [itype (get-type ast-node)]
            (if (nil? itype) ; Because ast-node may be a SimpleName that doesn't represent a type..
              false
-             (some
-               (fn [subtype] (= val subtype))
-               (conj (get-all-ancestors itype) itype)))))
+             (or (= val itype)
+                 (contains? (get-all-ancestors itype) val)))))
        (fn [ast-node]
          (let [itype (get-type ast-node)]
            (if (nil? itype)
              []
-             (conj (get-all-ancestors itype) itype))))]
+             (conj (seq (get-all-ancestors itype)) itype))))]
       
       "subtype*|qname"
       [(fn [ast-node] true)
        
        (fn [ast-node val]
-         (let [itype (get-type ast-node)
-               jmodel (.getJavaProject itype)
-;               _ (inspector-jay.core/inspect (.findType jmodel val))
-               tmp (.findType jmodel val)
-               val-itype (.findType jmodel val)
-               ]
+         (let [itype (get-type ast-node)]
            (if (nil? itype) ; Because ast-node may be a SimpleName that doesn't represent a type..
              false
-             (some
-               (fn [subtype] (= val-itype subtype))
-               (conj (get-all-ancestors itype) itype)))))
+             (let [val-itype (resolution/find-type (.getJavaProject itype) val)]
+               (or (= val-itype itype)
+                   (contains? (get-all-ancestors itype) val-itype))))))
        (fn [ast-node]
          false ; Should not occur..
          )]
@@ -586,12 +567,10 @@
          (let [itype (get-type ast-node)]
            (if (nil? itype)
              false
-             (some
-               (fn [subtype] (= val subtype))
-               (get-all-ancestors itype)))))
+             (contains? (get-all-ancestors itype) val))))
        (fn [ast-node]
          (let [itype (get-type ast-node)]
-           (if (nil? itype) [] (get-all-ancestors itype))))]
+           (if (nil? itype) [] (seq (get-all-ancestors itype)))))]
       
       "refers-to"
       [(fn [ast-node]
@@ -600,25 +579,13 @@
            (instance? SuperFieldAccess ast-node)
            (instance? Name ast-node)))
        (fn [ast-node val]
-         (let [binding (cond
-                         (or (instance? FieldAccess ast-node) (instance? SuperFieldAccess ast-node))
-                         (.resolveFieldBinding ast-node)
-                         :rest
-                         (.resolveBinding ast-node))]
-           (let [local-decl (javaprojectmodel/binding-to-declaration binding)] 
-             (or 
-              (= val local-decl)
-              (= val (.getName local-decl))
-              (= val (.getParent local-decl))))))
+         (let [local-decl (resolution/referred-declaration ast-node)] 
+           (or 
+             (= val local-decl)
+             (= val (.getName local-decl))
+             (= val (.getParent local-decl)))))
        (fn [ast-node]
-         (let [binding (cond
-                         (or (instance? FieldAccess ast-node) (instance? SuperFieldAccess ast-node))
-                         (.resolveFieldBinding ast-node)
-                         :rest
-                         (let []
-;                           (println (type (.resolveBinding ast-node)))
-                           (.resolveBinding ast-node)))
-               local-decl (javaprojectmodel/binding-to-declaration binding)]
+         (let [local-decl (resolution/referred-declaration ast-node)]
            [local-decl (.getName local-decl) (.getParent local-decl)]))]
       
       "constructs"
@@ -630,38 +597,419 @@
        (fn [ast-node val]
          (some 
            (fn [tgt] (= val tgt))
-           (javaprojectmodel/invocation-targets ast-node)))
+           (resolution/invocation-targets ast-node)))
        (fn [ast-node]
-         (javaprojectmodel/invocation-targets ast-node))]
+         (resolution/invocation-targets ast-node))]
       }]
     (get directives name)))
 
+;; Match plans
+;; -----------
+
+; Matching a template is driven by a match plan, which is computed only once per template.
+; For each value in the template, the plan records the information process-node would otherwise
+; look up over and over again while matching: the value's bound directives, the navigation directives
+; that apply to it, its conceptual children, and the instructions that implement its other directives.
+; Plans are immutable, so the same plan can be used to run any number of queries
+; (e.g., against different project models, or with different initial bindings).
+
+; Defines the plan of a single template value
+; - bds             Bound directives of the value
+; - directives-only Should we ignore the value's type and its children? (see check-directives-only?)
+; - pure-wildcard   Can the value be skipped entirely? (see pure-wildcard?)
+; - ignore          Does the value have an ignore directive? If so, ignore-child is matched in its place.
+; - child* regexp set multiplicity
+;                   Presence of the corresponding navigation directives
+; - list?           Is the value a list?
+; - children        Conceptual children of the value, as processed during matching
+; - checks          List of instructions implementing the non-navigation directives, in order.
+;                   Each instruction is either [:constraint lvar typefn constraintfn generatefn slot name],
+;                   (where slot is the slot of lvar, or nil if lvar is not a logic variable) or [:if expression predicate name]
+;                   (where predicate is the compiled expression, see compile-if-expression)
+;                   The name of the instruction's directive is only used for profiling (see profiling.clj).
+; - slot            If the value is a list with a set directive, the slot of the special variable 
+;                   that keeps track of the list elements matched so far (see determine-next-positions)
+; - ordered-children  The children, in the order in which they are processed if *cost-based-order* is enabled,
+;                   or nil if that's the order of children (see order-children)
+(defrecord NodePlan [bds directives-only pure-wildcard ignore ignore-child child* regexp set multiplicity list? children checks slot ordered-children])
+
+; - slots  Slot table of the logic variables used in the template (see bindings.clj); shared by all templates in a group
+; - seed   The rarest concrete primitive value in the template that every match must contain (see template-seed),
+;          or nil if there is no such value that narrows down the candidate matches of the root
+(defrecord TemplatePlan [template root nodes slots seed])
+
+; - rootslots       The slots of rootvars
+; - template-order  The indices of the templates, in the order in which they are processed if *cost-based-order* is enabled
+(defrecord TemplateGroupPlan [templategroup templateplans rootvars uservars slots rootslots template-order])
+
+(defn- compile-if-expression
+  "Compiles the Clojure expression of an if directive into a predicate on AST nodes.
+   Within the expression, subj refers to the source code of the subject AST node (as it always has), and subj-node to the node itself.
+   The expression is compiled into closures (see closures.clj); only if that isn't possible, it is eval'ed (once)."
+  [expression]
+  (let [form (read-string expression)
+        body (if (some #{'subj} (tree-seq coll? seq form))
+               (list 'let* ['subj (list '.toString 'subj-node)] form)
+               form)]
+    (try
+      (closures/compile-function '[subj-node] body)
+      (catch Exception e
+        (eval (list 'fn* '[subj-node] body))))))
+
+(defn- compile-checks
+  "Produces the instructions that implement the non-navigation directives of a template value"
+  [bds template-node slots]
+  (vec 
+    (for [bd (remove non-relation-directive? bds)]
+      (let [directive (snippet/bounddirective-directive bd)
+            lvar (directives/directiveoperandbinding-value (second (directives/bounddirective-operandbindings bd)))]
+        (if (directives/bounddirective-for-directive [bd] matching/directive-if)
+          ; The if-directive currently is the odd-one-out, as it doesn't establish a relation with a logic variable..
+          [:if lvar (compile-if-expression lvar) (directives/directive-name directive)]
+          (let [[typefn constraintfn generatefn] (directive-constraints directive template-node)]
+            [:constraint lvar typefn constraintfn generatefn (if (logicvar? lvar) (bindings/intern! slots lvar)) 
+             (directives/directive-name directive)]))))))
+
+(defn- compile-node
+  "Computes the plan of a single template value"
+  [template slots node]
+  (let [bds (snippet/snippet-bounddirectives-for-node template node)
+        ignore (boolean (directives/bounddirective-for-directive bds matching/directive-ignore))
+        set (boolean (directives/bounddirective-for-directive bds matching/directive-consider-as-set|lst))]
+    (NodePlan. 
+      bds
+      (boolean (check-directives-only? template node))
+      (boolean (pure-wildcard? template node))
+      ignore
+      (if ignore (first (snippet/snippet-node-children template node)))
+      (boolean (directives/bounddirective-for-directive bds matching/directive-child*))
+      (boolean (directives/bounddirective-for-directive bds matching/directive-consider-as-regexp|lst))
+      set
+      (boolean (directives/bounddirective-for-directive bds matching/directive-multiplicity))
+      (snippet/snippet-value-list? template node)
+      (vec (snippet/snippet-node-children|conceptually-refs template node))
+      (compile-checks bds node slots)
+      (if set (bindings/intern! slots node))
+      nil)))
+
+;; Cost-based ordering
+;; -------------------
+
+; The children of a template node are independent of one another: each one is matched from the same positions.
+; Children that can't affect the logic variable bindings (pure filters) can therefore be processed first, 
+; such that cheap and selective filters discard most candidate matches before the expensive children get to them.
+; The other children stay in their original order, as the values that directives generate for unbound variables 
+; may depend on which directive binds a variable first (e.g., equivalent only generates its own subject).
+
+(def ^:dynamic *cost-based-order*
+  "If true, the children of each template node and the templates of a group are processed in order of their estimated cost
+   (see order-children and order-templates). This doesn't change the matches, but does change the :node-count of a query,
+   which measures how far matching got before all candidate matches were discarded."
+  true)
+
+; Estimated cost of checking a directive, relative to a plain node comparison (directives that aren't listed cost 1)
+(def directive-costs
+  {"if" 4
+   "type" 8 "subtype*" 8 "subtype*|qname" 8 "subtype+" 8
+   "overrides" 8 "invokes" 8 "refers-to" 8 "constructs" 8})
+
+(defn- class-selectivity
+  "Estimated fraction of candidate positions that are of the given class; the rarer the class is in the queried projects, 
+   the more selective a check on it
+   @param frequencies  The class frequencies of the queried projects (see nodeindex/class-frequencies);
+                       if nil (the projects can't be indexed), half of the candidates are assumed to pass"
+  [frequencies cls]
+  (if (nil? frequencies)
+    0.5
+    (min 1.0 (max 0.05 (* 10 (get frequencies cls 0.0))))))
+
+(defn- value-estimate
+  "Estimates the cost of matching a template value and its descendants at one candidate position,
+   and the fraction of candidate positions that pass
+   @param nodes        The plans of the template's values
+   @param frequencies  See class-selectivity
+   @param estimate     Function to estimate the values' children (memoized version of this function)
+   @return a triple [cost selectivity pure], where pure is true iff matching the value can't affect any logic variable bindings"
+  [nodes frequencies estimate value]
+  (let [info (get nodes value)]
+    (cond
+      (nil? info) [1 0.5 false] ; Fresh wrappers of primitive values are compiled on the fly; stay on the safe side
+      (:ignore info) (estimate (:ignore-child info))
+      (:pure-wildcard info) [0 1.0 true]
+      :else
+      (let [checks (:checks info)
+            check-cost (reduce + (map (fn [check] (get directive-costs (last check) 1)) checks))
+            check-selectivity (Math/pow 0.5 (count checks))
+            checks-pure (not-any? (fn [[kind lvar]] (and (= kind :constraint) (logicvar? lvar))) checks)
+            [own-cost own-selectivity] (cond
+                                         (:directives-only info) [0 1.0]
+                                         (astnode/primitivevalue? value) [1 0.1]
+                                         (astnode/nilvalue? value) [1 0.5]
+                                         (astnode/lstvalue? value) [1 0.5]
+                                         :else [1 (class-selectivity frequencies (class value))])
+            children (if (:directives-only info) [] (map estimate (:children info)))
+            children-cost (reduce + (map first children))
+            children-selectivity (reduce * 1.0 (map second children))
+            cost (* (+ own-cost check-cost children-cost)
+                    (if (or (:set info) (:regexp info)) 4 1)
+                    (if (:child* info) 20 1))
+            selectivity (* own-selectivity check-selectivity children-selectivity)]
+        [cost
+         (if (:child* info) (min 1.0 (* 20 selectivity)) selectivity)
+         (and checks-pure 
+              (not (:set info))
+              (every? (fn [child] (nth child 2)) children))]))))
+
+(defn- order-children
+  "Determines the processing order of the children of each template node (see *cost-based-order*):
+   pure filters go first, in decreasing order of the fraction of candidates they discard per unit of cost, 
+   followed by the other children in their original order.
+   @param nodes        The plans of the template's values
+   @param frequencies  See class-selectivity
+   @return nodes, with the ordered-children of each node filled in
+           (as well as an estimate function, which returns the [cost selectivity pure] triple of a value, see value-estimate)"
+  [nodes frequencies]
+  (let [memo (atom {})
+        estimate (fn estimate [value]
+                   (or (get @memo value)
+                       (let [result (value-estimate nodes frequencies estimate value)]
+                         (swap! memo assoc value result)
+                         result)))
+        rank (fn [[cost selectivity]] ; Fraction of discarded candidates per unit of cost
+               (/ (- 1.0 selectivity) (max cost 0.1)))]
+    [(into {}
+           (for [[value info] nodes]
+             (if (or (:list? info) (not (astnode/ast? value)) (< (count (:children info)) 2))
+               [value info] ; List elements have to be processed in order
+               (let [children (:children info)
+                     pure (filter (fn [child] (nth (estimate child) 2)) children)
+                     impure (remove (fn [child] (nth (estimate child) 2)) children)
+                     ordered (vec (concat (sort-by (fn [child] (- (rank (estimate child)))) pure) impure))]
+                 [value (if (= ordered children) info (assoc info :ordered-children ordered))]))))
+     estimate]))
+
+(defn- template-lvars
+  "The logic variables that the directives of a template refer to"
+  [templateplan]
+  (into #{}
+        (for [info (vals (:nodes templateplan))
+              [kind lvar] (:checks info)
+              :when (and (= kind :constraint) (logicvar? lvar))]
+          lvar)))
+
+(defn- independent-templates?
+  "True iff no two of the given templates share a logic variable, 
+   such that each of them can be matched without the bindings of the others"
+  [templateplans]
+  (let [lvars (map template-lvars templateplans)]
+    (= (reduce + (map count lvars)) (count (apply clojure.set/union lvars)))))
+
+(defn- order-templates
+  "Determines the processing order of the templates in a group (see *cost-based-order*):
+   if no two templates share a logic variable, the templates that are expected to produce the fewest matches go first.
+   Otherwise, the templates are processed in their original order, as the values that directives generate
+   for a shared variable may depend on which template binds it first.
+   @param estimates  For each template, the fraction of all nodes that are of its root's class, 
+                     times the estimated selectivity of its root (i.e. the expected fraction of nodes matching the template)"
+  [templateplans estimates]
+  (let [indices (range (count templateplans))]
+    (if (and (> (count templateplans) 1)
+             (independent-templates? templateplans))
+      (vec (sort-by (fn [index] (nth estimates index)) indices))
+      (vec indices))))
+
+;; Value seeding
+;; -------------
+
+; Instead of trying every node of the root's class, matching can start from the rarest concrete primitive value 
+; in a template (an identifier, literal, operator, ..), look up the nodes with that value in the inverted index 
+; of nodeindex.clj, and climb from each of them to the node at the position of the template's root.
+; The nodes found this way are a superset of the template's matches; they are matched top-down as usual.
+
+(def ^:dynamic *seed-from-values*
+  "If true, the candidate matches of a template's root are looked up via the template's rarest concrete value
+   whenever that narrows them down (see seeded-candidates).
+   This doesn't change the matches, but does change the :node-count of a query (see *cost-based-order*)."
+  true)
+
+(defn- template-seeds
+  "Finds the primitive values of a template that every match must contain at a fixed path from its root:
+   the path may only consist of plain AST nodes and lists (no wildcards, ignore, child*, set or regexp directives), 
+   and the value itself must be compared as-is.
+   @param nodes  The plans of the template's values
+   @return a list of seeds; each seed is a pair of the value's key in the inverted index (see nodeindex/value-key), 
+           and the locations (structural property descriptors) of the AST nodes on the path from the root to the value's owner"
+  [nodes root]
+  (let [plain? (fn [info]
+                 (and info
+                      (not (:ignore info))
+                      (not (:child* info))
+                      (not (:directives-only info))
+                      (not (:pure-wildcard info))))]
+    (letfn [(seeds [value path]
+              (if (plain? (get nodes value))
+                (mapcat
+                  (fn [child]
+                    (let [info (get nodes child)]
+                      (cond
+                        (astnode/primitivevalue? child)
+                        (if (plain? info)
+                          [[(nodeindex/value-key (class value) (astnode/owner-property child) (astnode/value-unwrapped child)) path]])
+                        
+                        (astnode/lstvalue? child)
+                        (if (and (plain? info) (not (:set info)) (not (:regexp info)) (not (:multiplicity info)))
+                          (mapcat (fn [element] (seeds element (conj path (.getLocationInParent ^ASTNode element))))
+                                  (astnode/value-unwrapped child)))
+                        
+                        (astnode/ast? child)
+                        (seeds child (conj path (.getLocationInParent ^ASTNode child))))))
+                  (:children (get nodes value)))))]
+      (vec (seeds root [])))))
+
+(defn- climb-to-root
+  "Climbs from an AST node along the reversed path of a seed (see template-seeds)
+   @return the node at the position of the template's root, or nil if the node isn't located along that path"
+  [^ASTNode node path]
+  (loop [^ASTNode node node
+         path (rseq path)]
+    (cond
+      (nil? node) nil
+      (empty? path) node
+      (identical? (.getLocationInParent node) (first path)) (recur (.getParent node) (rest path))
+      :else nil)))
+
+(defn- template-seed
+  "Picks the rarest seed of a template (see template-seeds), using a single state of the index for all counts
+   @param state  State of the index (see nodeindex/index-state)
+   @return the seed, or nil if the template has no seeds, if the queried projects can't be indexed (state is nil),
+           or if the rarest seed occurs as often as the root's class"
+  [state root seeds]
+  (if (and state (seq seeds))
+    (let [[seed-count key path] (apply min-key first
+                                       (for [[key path] seeds] [(nodeindex/value-count state key) key path]))]
+      (if (< seed-count (nodeindex/class-count state (class root)))
+        [key path]))))
+
+(defn- seeded-candidates
+  "The candidate matches of a template's root, found via the seed of its plan (see template-seed)
+   @return the candidates, or nil if the plan has no seed or if the queried projects can't be indexed"
+  [plan]
+  (if-let [[key path] (:seed plan)]
+    (if-let [nodes (nodeindex/nodes-with-value key)]
+      (let [root-class (class (:root plan))]
+        (vec (distinct
+               (filter (fn [node] (= (class node) root-class))
+                       (keep (fn [node] (climb-to-root node path))
+                             nodes))))))))
+
+(defn- template-root-candidates
+  "The nodes that may match with the root of a template
+   @param candidates  The given candidates, or nil for all nodes of the root's class"
+  [plan candidates]
+  (or candidates
+      (if *seed-from-values* (seeded-candidates plan))
+      (nodeindex/nodes-of-class (class (:root plan)))))
+
+(defn compile-template
+  "Analyzes a template once, and produces a reusable match plan for it
+   @param slots  (Optional) Slot table to be used for the template's logic variables
+   @param state  (Optional) State of the index of the queried projects (see nodeindex/index-state), 
+                 from which the class frequencies and seed counts are taken; the current state if absent"
+  ([template]
+    (compile-template template (bindings/make-slots)))
+  ([template slots]
+    (compile-template template slots (nodeindex/index-state)))
+  ([template slots state]
+    (let [frequencies (nodeindex/class-frequencies state)
+          [nodes estimate] (order-children
+                             (reduce
+                               (fn [nodes node]
+                                 (assoc nodes node (compile-node template slots node)))
+                               {}
+                               (snippet/snippet-nodes template))
+                             frequencies)
+          root (snippet/snippet-root template)]
+      (with-meta
+        (TemplatePlan.
+          template
+          root
+          nodes
+          slots
+          (template-seed state root (template-seeds nodes root)))
+        {:estimate (estimate root)}))))
+
+(defn compile-templategroup
+  "Analyzes a template group once, and produces a reusable match plan for it"
+  [templategroup]
+  (let [templates (snippetgroup/snippetgroup-snippetlist templategroup)
+        slots (bindings/make-slots)
+        ; Taken once for all templates; nil if the queried projects can't be indexed
+        state (nodeindex/index-state)
+        frequencies (nodeindex/class-frequencies state)
+        ; Generate a unique variable name for each root, but should be the same every time this template is queried
+        rootvars (vec (map-indexed 
+                        (fn [index template] (symbol (str "?" (util/classname (snippet/snippet-root template)) index)))
+                        templates))]
+    (let [templateplans (mapv (fn [template] (compile-template template slots state)) templates)]
+      (TemplateGroupPlan.
+        templategroup
+        templateplans
+        rootvars
+        (querying/snippetgroup-uservars templategroup)
+        slots
+        (mapv (fn [rootvar] (bindings/intern! slots rootvar)) rootvars)
+        (order-templates templateplans
+                         (for [templateplan templateplans]
+                           (let [[_ selectivity] (:estimate (meta templateplan))]
+                             (if (nil? frequencies)
+                               selectivity ; Without class frequencies, every root class is assumed to be equally common
+                               (* selectivity (get frequencies (class (:root templateplan)) 0.0))))))))))
+
+(defn template-plan 
+  "Returns the match plan of a template (or the plan itself, if a plan was given)"
+  [template-or-plan]
+  (if (instance? TemplatePlan template-or-plan)
+    template-or-plan
+    (compile-template template-or-plan)))
+
+(defn templategroup-plan 
+  "Returns the match plan of a template group (or the plan itself, if a plan was given)"
+  [templategroup-or-plan]
+  (if (instance? TemplateGroupPlan templategroup-or-plan)
+    templategroup-or-plan
+    (compile-templategroup templategroup-or-plan)))
+
+(defn- node-plan
+  "Retrieve the plan of a template value
+   (Values the plan doesn't know about, e.g. fresh wrappers of primitive values, are analyzed on the fly.)"
+  [plan node]
+  (if-let [info (get (:nodes plan) node)]
+    info
+    (compile-node (:template plan) (:slots plan) node)))
+
 (defn- check-directives 
   "Check the non-navigation directives of the current template node"
-  [template template-node matchmap]
-  (let [bds (remove
-              non-relation-directive?
-              (snippet/snippet-bounddirectives-for-node template template-node))]
+  [plan template-node matchmap]
+  (profiling/measure template-node :check-directives matchmap
     (reduce
-      (fn [cur-matchmap bd]
-        (let 
-          [directive (snippet/bounddirective-directive bd)
-           lvar (directives/directiveoperandbinding-value (second (directives/bounddirective-operandbindings bd)))
-           [typefn constraintfn generatefn] (directive-constraints directive template-node)]
-          (if (directives/bounddirective-for-directive [bd] matching/directive-if)
-            ; The if-directive currently is the odd-one-out, as it doesn't establish a relation with a logic variable..
-            (matchmap-filter 
-              cur-matchmap
-              (fn [ast-node]
-                (eval (read-string 
-                        (str "(let [subj \"" (.toString ast-node) "\"] " lvar ")"))))) ; TODO Would be neat if subj could be the actual ast-node object..
-            (matchmap-checkconstraint cur-matchmap lvar typefn constraintfn generatefn))))
+      (fn [cur-matchmap [kind lvar & fns]]
+        (case kind
+          :if 
+          (let [[predicate name] fns]
+            (profiling/measure template-node name cur-matchmap
+              (matchmap-filter cur-matchmap predicate)))
+          :constraint
+          (let [[typefn constraintfn generatefn slot name] fns]
+            (profiling/measure template-node name cur-matchmap
+              (matchmap-checkconstraint cur-matchmap lvar slot typefn constraintfn generatefn)))))
       matchmap
-      bds)))
+      (:checks (node-plan plan template-node)))))
+
+(declare process-node|unprofiled)
 
 (defn- process-node 
   "Process a template node and its children to perform template matching
-   @param template         The template being processed
+   @param plan             The match plan of the template being processed
    @param template-node    The current template node to be processed 
                            This can only be a plain AST node; this holds by construction!
                            (i.e. not a list node, nor a primitive value nor null)
@@ -670,7 +1018,13 @@
                            Each of those current positions then maps to a list of logic variable bindings for that position.
                            Finally, each logic variable binding maps to a list of its potential values.
    @return                 The updated matchmap, after processing this node and its children"
-  [template templ-node matchmap]
+  [plan templ-node matchmap]
+  (profiling/measure templ-node :node matchmap
+    (process-node|unprofiled plan templ-node matchmap)))
+
+(defn- process-node|unprofiled
+  [plan templ-node matchmap]
+  (budget/check!)
   (let [node-count (atom 0)
         nci ; Identity function; increases node-count as side-effect
         (fn [matchmap] 
@@ -682,48 +1036,41 @@
           matchmap)
         
         template-node ; If templ-node has an ignore directive, its first child is processed instead 
-        (if (directives/bounddirective-for-directive 
-              (snippet/snippet-bounddirectives-for-node template templ-node) 
-              matching/directive-ignore)
-          (first (snippet/snippet-node-children template templ-node))
-          templ-node)
+        (let [info (node-plan plan templ-node)]
+          (if (:ignore info)
+            (:ignore-child info)
+            templ-node))
         
-;        dbg
-;        (if (not= 0 (count (keys matchmap)))
-;          (do
-;            (println "%%%" (count (keys matchmap)))
-;            (println "%%%" template-node)
-;            (println (for [match (keys matchmap)] (for [curpos (keys (get matchmap match))] (str "$" (.toString curpos)))))
-;            ))
+        info (node-plan plan template-node)
         
-        check-directives-only (check-directives-only? template template-node)
+        check-directives-only (:directives-only info)
         
         process-child ; "Move" to a child node, processes it, then move back to this node
         (fn [mmap pos-node child index]
-          (if (pure-wildcard? template child)
+          (if (:pure-wildcard (node-plan plan child))
             mmap
-            (let [pos-mmap (determine-next-positions mmap template pos-node child index)
-                  new-mmap (nci (process-node template child pos-mmap))
+            (let [pos-mmap (profiling/measure child :next-positions mmap
+                             (determine-next-positions mmap plan pos-node child index))
+                  new-mmap (nci (process-node plan child pos-mmap))
                   final-mmap (return-to-previous-position new-mmap mmap)]
               final-mmap)))
         
         process-list
         (fn [list-node mmap]
-          (if (has-directive? template list-node matching/directive-consider-as-regexp|lst)
+          (if (:regexp (node-plan plan list-node))
             
             ; Regex list
             (let [max-match-length (max-list-length-of-cur-positions mmap list-node)
                   process-elements
                   (fn process-elements [init-mmap init-index elements]
-;                    (println (process-child init-mmap list-node (first elements) init-index))
-                    
                     (cond
                       ; We've finished the list
                       (empty? elements) init-mmap
                       
                       ; Current element is a kleene-*
-                      (has-directive? template (first elements) matching/directive-multiplicity)
+                      (:multiplicity (node-plan plan (first elements)))
                       (loop [match-length 0] ; See if the regex matches if the *-element appears 0 times.. If not, try 1, then 2, 3, 4,...
+                        (budget/check!)
                         (let [after-star-mmap
                               (loop [cur-length 0
                                      cur-mmap init-mmap]
@@ -746,7 +1093,7 @@
                         (rest elements))))]
               
               (process-elements 
-                (check-directives template list-node mmap) 
+                (check-directives plan list-node mmap) 
                 0 
                 (astnode/value-unwrapped list-node)))
             
@@ -754,7 +1101,7 @@
             (reduce 
               (fn [cur-mmap [index list-element]]
                 (process-child cur-mmap list-node list-element index))
-              (check-directives template list-node mmap)
+              (check-directives plan list-node mmap)
               (let [elements (astnode/value-unwrapped list-node)]
                 (map-indexed (fn [idx elem] [idx elem]) elements )))))
         
@@ -762,10 +1109,11 @@
         matchmap-1 
         (if check-directives-only
           matchmap
-          (matchmap-filter matchmap (fn [ast-node] (= (class ast-node) (class template-node)))))
+          (let [template-class (class template-node)]
+            (matchmap-filter matchmap (fn [ast-node] (= (class ast-node) template-class)))))
         
         ; 2 - Check directives (only considering directives that do not affect navigation)
-        matchmap-2 (check-directives template template-node matchmap-1)
+        matchmap-2 (check-directives plan template-node matchmap-1)
         
         ; 3 - Check node children (taking into account navigation directives)
         matchmap-3
@@ -776,17 +1124,17 @@
               (cond
                 ; For list nodes, process each element one after the other
                 (astnode/lstvalue? child)
-                (if (check-directives-only? template child)
-                  (check-directives template child cur-matchmap)
-                  (process-list child (check-directives template child cur-matchmap)))
+                (if (:directives-only (node-plan plan child))
+                  (check-directives plan child cur-matchmap)
+                  (process-list child (check-directives plan child cur-matchmap)))
                 ; Regular nodes
                 (astnode/ast? child)
                 (process-child cur-matchmap child child 0)
                 ; Primitive nodes
                 (astnode/primitivevalue? child)
-                (nci (if (check-directives-only? template child)
-                        (check-directives template child cur-matchmap)
-                        (check-directives template child
+                (nci (if (:directives-only (node-plan plan child))
+                        (check-directives plan child cur-matchmap)
+                        (check-directives plan child
                                            (matchmap-filter 
                                              cur-matchmap 
                                              (fn [ast-node] 
@@ -795,7 +1143,7 @@
                                                  (= ast-child (astnode/value-unwrapped child))))))))
                 ; Null values
                 (astnode/nilvalue? child)
-                (nci (if (check-directives-only? template child)
+                (nci (if (:directives-only (node-plan plan child))
                        cur-matchmap
                        (matchmap-filter 
                          cur-matchmap 
@@ -806,104 +1154,362 @@
                 ; Anything else may not occur
                 :rest (throw (Exception. "Unknown node type"))))
             matchmap-2
-            (snippet/snippet-node-children|conceptually-refs template template-node))
+            (if *cost-based-order*
+              (or (:ordered-children info) (:children info))
+              (:children info)))
           )]
     (with-meta 
       matchmap-3 
       {:node-count (if (= 0 (count matchmap-3)) @node-count (inc @node-count))})))
 
+; Number of candidate matches that are processed at once when matching within a limited budget
+(def budget-chunk-size 256)
+
+(defn- process-candidates-within-budget
+  "Process the candidate matches of a template in chunks, such that the matches found so far can be returned
+   when the current budget's time limit runs out.
+   The :node-count of the result is that of the chunk that got the furthest in the template."
+  [plan matches bindings-list]
+  (loop [chunks (partition-all budget-chunk-size matches)
+         result {}
+         node-count 0]
+    (if (empty? chunks)
+      (with-meta result {:node-count node-count})
+      (let [matchmap (with-meta 
+                       (matchmap-create (first chunks) bindings-list)
+                       {:node-count 0})
+            chunk-result (try
+                           (process-node plan (:root plan) matchmap)
+                           (catch TimeoutException e
+                             nil))] ; Budget exhausted; the partially processed chunk is discarded
+        (if (nil? chunk-result)
+          (with-meta result {:node-count node-count})
+          (recur (rest chunks)
+                 (merge result chunk-result)
+                 (max node-count (:node-count (meta chunk-result)))))))))
+
+(defn- match-template|unchunked
+  "Look for matches of a template, given its plan and a list of binding rows (see bindings.clj), 
+   processing all of its candidate matches at once (such that a TimeoutException of the current budget isn't caught)
+   @param candidates  The nodes that may match with the template's root; if nil, all nodes of the root's class are considered"
+  [plan rows candidates]
+  (let [matchmap (with-meta 
+                   (matchmap-create (budget/take-candidates (template-root-candidates plan candidates)) rows)
+                   {:node-count 0})]
+    (process-node plan (:root plan) matchmap)))
+
+(defn- match-template
+  "Look for matches of a template, given its plan and a list of binding rows (see bindings.clj)
+   If the current thread has a budget (see budget.clj), only the candidate matches allowed by the budget are considered,
+   and the matches found so far are returned once the budget's time limit runs out.
+   @param candidates  (Optional) The nodes that may match with the template's root; if nil, all nodes of the root's class are considered"
+  ([plan rows]
+    (match-template plan rows nil))
+  ([plan rows candidates]
+    (if (budget/limited? budget/*budget*)
+      (process-candidates-within-budget plan (budget/take-candidates (template-root-candidates plan candidates)) rows)
+      (match-template|unchunked plan rows candidates))))
+
 (defn query-template 
   "Look for matches of a template
-   @param template       The template to be matched
-   @param lvar-bindings  A map, mapping logic variables to their potential values.
+   @param template       The template to be matched (or its match plan)
+   @param lvar-bindings  A list of maps, mapping logic variables to their potential values.
                          This is useful in case this template is part of a group, and a previous
                          template in the group narrowed down the potential values of logic variables
-                         that may occur in this template as well."
+                         that may occur in this template as well.
+   @return a matchmap (whose bindings are binding rows, see the slots of the template's plan)"
   ([template]
     (query-template template [{}]))
   ([template bindings-list]
-    (let [root (snippet/snippet-root template)
-         root-type (astnode/ekeko-keyword-for-class-of root)
-         matches (ast/nodes-of-type root-type)
-         matchmap (with-meta 
-                    (matchmap-create matches bindings-list)
-                    {:node-count 0})]
-     (process-node template root matchmap))))
+    (resolution/refresh!)
+    (let [plan (template-plan template)]
+      (match-template plan (bindings/maps->rows (:slots plan) bindings-list)))))
 
 (defn template-node-count
   "Count the total number of nodes in template (to be able to measure matching progress, partial score, ..)
    (Count includes ast nodes, null nodes, primitive nodes
-    ; excluding list nodes as they don't exist in plain ASTs)"
+    ; excluding list nodes as they don't exist in plain ASTs)
+   @param template  The template (or its match plan)"
   [template]
-  (let [visit-node 
-        (fn visit [node]
-          (let [node-count (atom 0)
-                ncp! (fn [n] (swap! node-count (fn [x] (+ x n))))]
-            (if (not (check-directives-only? template node))
-              (doseq [child (snippet/snippet-node-children|conceptually-refs template node)]
-                (cond 
-                  (astnode/lstvalue? child)
-                  (if (not (check-directives-only? template child)) 
-                    (doseq [element (astnode/value-unwrapped child)]
-                      (ncp! (visit element))))
-                  (astnode/ast? child)
-                  (ncp! (visit child))
-                  (astnode/primitivevalue? child)
-                  (ncp! 1)
-                  (astnode/nilvalue? child)
-                  (ncp! 1)
-                  )))
-            (inc @node-count)))]
-    (visit-node (snippet/snippet-root template))))
-
-(defn templategroup-node-count [templategroup]
-  (let [templates (snippetgroup/snippetgroup-snippetlist templategroup)]
-    (reduce + (map template-node-count templates))))
+  (let [plan (template-plan template)]
+    (util/reduce-walk
+      (fn [value]
+        (cond 
+          (astnode/lstvalue? value)
+          (if (not (:directives-only (node-plan plan value)))
+            (astnode/value-unwrapped value))
+          (astnode/ast? value)
+          (if (not (:directives-only (node-plan plan value)))
+            (:children (node-plan plan value)))))
+      (fn [node-count value]
+        (if (astnode/lstvalue? value)
+          node-count
+          (inc node-count)))
+      0
+      (:root plan))))
+
+(defn templategroup-node-count 
+  "@param templategroup  The template group (or its match plan)"
+  [templategroup]
+  (reduce + (map template-node-count (:templateplans (templategroup-plan templategroup)))))
+
+(defn- template-order
+  "The indices of the templates of a group, in the order in which they should be matched (see *cost-based-order*)"
+  [plan]
+  (if *cost-based-order*
+    (:template-order plan)
+    (range (count (:templateplans plan)))))
+
+(defn- match-templates-in-turn
+  "Matches a list of templates in turn, such that each template narrows down the binding rows produced by the previous ones
+   @param plan             Plan of the template group
+   @param indices          Indices of the templates to be matched, in order
+   @param root-candidates  See query-templategroup
+   @param rows             Initial list of binding rows
+   @param match            Function that matches a single template (see match-template|unchunked)
+   @return a pair with the resulting binding rows, and the number of template nodes that were matched (see process-node)"
+  [plan indices root-candidates rows match]
+  (loop [[index & rest-indices] indices
+         rows rows
+         node-count 0]
+    (if (nil? index)
+      [rows node-count]
+      (let [matchmap (match (nth (:templateplans plan) index) rows (get root-candidates index))]
+        (recur rest-indices
+               (vec (budget/take-bindings (merge-bindings matchmap (nth (:rootslots plan) index))))
+               (+ node-count (:node-count (meta matchmap))))))))
+
+(defn- match-templates-within-budget
+  "Matches a list of templates like match-templates, but processes the candidate matches of the first template in chunks,
+   each of which is narrowed down by all of the other templates before the next chunk is processed.
+   Once the current budget's time limit runs out, matching stops, and the rows of the chunks that were completed are returned.
+   (The :node-count of the result is that of the chunk that got the furthest, see process-candidates-within-budget.)"
+  [plan indices root-candidates rows]
+  (let [index (first indices)
+        templateplan (nth (:templateplans plan) index)
+        ; The chunk stands in for the candidates of the first template
+        candidates-by-index (into {} (map-indexed vector root-candidates))]
+    (loop [chunks (partition-all budget-chunk-size 
+                                 (budget/take-candidates (template-root-candidates templateplan (get root-candidates index))))
+           result []
+           node-count 0]
+      (if (empty? chunks)
+        [(vec (budget/take-bindings result)) node-count]
+        (let [chunk-result (try
+                             (match-templates-in-turn plan indices (assoc candidates-by-index index (first chunks)) rows
+                                                      match-template|unchunked)
+                             (catch TimeoutException e
+                               nil))] ; Budget exhausted; the partially processed chunk is discarded
+          (if (nil? chunk-result)
+            [result node-count]
+            (recur (rest chunks)
+                   (into result (first chunk-result))
+                   (max node-count (second chunk-result)))))))))
+
+(defn- match-templates
+  "Matches a list of templates in turn, such that each template narrows down the binding rows produced by the previous ones
+   If the current thread has a limited budget, matching the group stops at the first timeout, 
+   and the complete matches found so far are returned (see match-templates-within-budget).
+   @return a pair with the resulting binding rows, and the number of template nodes that were matched (see process-node)"
+  [plan indices root-candidates rows]
+  (if (and (next indices) (budget/limited? budget/*budget*))
+    (match-templates-within-budget plan indices root-candidates rows)
+    (match-templates-in-turn plan indices root-candidates rows match-template)))
 
 (defn query-templategroup
   "Look for matches of a template group
-   @param templategroup  The template group to be matched"
+   @param templategroup    The template group to be matched (or its match plan, see compile-templategroup)
+   @param root-candidates  (Optional) Vector with, for each template, the nodes that may match with its root 
+                           (e.g. the root values of a template group that this group refines, see templategroup-root-values);
+                           nil entries (or missing ones) stand for all nodes of the root's class"
   ([templategroup]
     (query-templategroup templategroup [{}]))
   ([templategroup bindings-list]
-    (let [templates (snippetgroup/snippetgroup-snippetlist templategroup)
-         process-template (fn [[template & rest-templates] bindings-list index]
-                            (let [matchmap (query-template template bindings-list)
-                                  new-bindings-list (with-meta 
-                                                      (merge-bindings 
-                                                        matchmap 
-                                                        ; Generate a unique variable name for the root, but should be the same every time this template is queried
-                                                        (symbol (str "?" (util/classname (snippet/snippet-root template)) index)) 
-                                                        )
-                                                      {:node-count (+ (:node-count (meta bindings-list)) (:node-count (meta matchmap)))})] 
-                              (if (nil? rest-templates)
-                                new-bindings-list
-                                (recur rest-templates new-bindings-list (inc index)))))]
-     (process-template templates (with-meta bindings-list {:node-count 0}) 0))))
+    (query-templategroup templategroup bindings-list nil))
+  ([templategroup bindings-list root-candidates]
+    (resolution/refresh!)
+    (let [plan (templategroup-plan templategroup)
+          slots (:slots plan)
+          [rows node-count] (match-templates plan (template-order plan) root-candidates
+                                             (bindings/maps->rows slots bindings-list))]
+      (with-meta 
+        (bindings/rows->maps slots rows)
+        {:node-count node-count}))))
 
-(defn query-templategroup-list 
-  "Query the templategroup and return match results as a list
-   (as required in the Ekeko/X GUI)"
+(defn templategroup-node-counts
+  "Matches a template group against each of the given partial project models, 
+   and counts how many template nodes were matched in each model (see the :node-count of query-templategroup).
+   The group's plan is shared by all models, and the candidate matches of each template are looked up 
+   in the prebuilt index of each model (see nodeindex/slice-index), instead of being queried via Ekeko.
+   Each model is matched as the only queried project model, such that directives (and the bindings they resolve)
+   only consider the model's own code.
+   As the node counts depend on the order in which template nodes are matched, templates and their children
+   are matched in their original order (regardless of *cost-based-order*), such that the counts remain comparable.
+   @param templategroup  The template group (or its match plan)
+   @param models         List of PartialJavaProjectModels
+   @return a list with the node count of each model"
+  [templategroup models]
+  (let [plan (templategroup-plan templategroup)
+        root-classes (mapv (fn [templateplan] (class (:root templateplan))) (:templateplans plan))]
+    (pmap (fn [model]
+            (let [root-candidates (mapv (fn [cls] (nodeindex/slice-nodes-of-class model cls)) root-classes)]
+              (binding [ekekomodel/*queried-project-models* (atom [model])
+                        *cost-based-order* false]
+                (:node-count (meta (query-templategroup plan [{}] root-candidates))))))
+          models)))
+
+(defn query-templategroup-within-budget
+  "Look for matches of a template group, within the given limits.
+   Once a limit is hit, matching stops and the matches found so far are returned.
+   The result has the same form as that of query-templategroup, 
+   and its meta-info contains :truncated, which is true iff the result is partial.
+   @param templategroup  The template group to be matched (or its match plan)
+   @param limits         Map with any of the keys :time-limit (in ms), 
+                         :max-candidates (per template) and :max-bindings (see budget/make-budget)"
+  ([templategroup limits]
+    (query-templategroup-within-budget templategroup limits [{}]))
+  ([templategroup limits bindings-list]
+    (let [b (budget/make-budget limits)
+          bindings-list (budget/with-budget b
+                          (let [result (query-templategroup templategroup bindings-list)]
+                            (with-meta (doall result) (meta result))))]
+      (vary-meta bindings-list assoc :truncated (budget/truncated? b)))))
+
+(defn profile-templategroup
+  "Look for matches of a template group with profiling switched on (see profiling.clj)
+   @param templategroup  The template group to be matched (or its match plan)
+   @return the profile of the matching run (see profiling/profile-rows, profiling/spit-profile-csv and profiling/profile-string)"
+  [templategroup]
+  (let [profile (profiling/make-profile)]
+    (profiling/with-profile profile
+      (doall (query-templategroup templategroup)))
+    profile))
+
+;; Streaming results
+;; -----------------
+
+; Number of candidate matches of a group's first template that are processed at once when streaming results
+(def stream-chunk-size 64)
+
+(defn templategroup-columns
+  "The columns of the result tuples of a template group: the root variables of its templates (in template order), 
+   followed by its user variables (in alphabetical order) if include-uservars is true
+   @param templategroup  The template group (or its match plan)"
   [templategroup include-uservars]
-  (let [bindings-list (query-templategroup templategroup)
-        column-names (if (empty? bindings-list)
-                       []
-                       (into [] (keys (first bindings-list))))
-        uservars (querying/snippetgroup-uservars templategroup)]
+  (let [plan (templategroup-plan templategroup)]
+    (if include-uservars
+      (into (:rootvars plan) (:uservars plan))
+      (:rootvars plan))))
+
+(defn- templategroup-results
+  "Lazy sequence of the result tuples of a template group (see query-templategroup-seq)
+   The candidate matches of the first template are matched in chunks of chunk-size, and the rows of each chunk 
+   are narrowed down by the other templates (see match-templates-in-turn).
+   If no two templates share a logic variable, the other templates are instead matched only once, as soon as the first 
+   chunk is consumed, and the rows of each chunk are joined with theirs (see bindings/join-rows).
+   (This isn't possible for shared variables: a directive may generate fewer values for a variable than it accepts, 
+    e.g. equivalent only generates its own subject, see order-templates.)
+   Once the current budget's time limit runs out, the sequence ends with the tuples found so far (see budget/truncated?)."
+  [plan include-uservars root-candidates chunk-size]
+  (let [slots (:slots plan)
+        columns (templategroup-columns plan include-uservars)
+        column-slots (mapv (fn [lvar] (bindings/intern! slots lvar)) columns)
+        [first-index & rest-indices] (template-order plan)
+        first-plan (nth (:templateplans plan) first-index)
+        first-rootslot (nth (:rootslots plan) first-index)
+        row->tuple (fn [row] 
+                     (mapv (fn [slot] (first (bindings/row-get row slot))) column-slots))
+        independent (independent-templates? (:templateplans plan))
+        ; The stream ends as a whole once the budget runs out, so the other templates aren't matched in chunks of their own
+        match-rest (fn [rows] (first (match-templates-in-turn plan rest-indices root-candidates rows match-template|unchunked)))
+        rest-rows (delay (match-rest [bindings/empty-row]))
+        process-chunk (bound-fn [chunk]
+                        (let [matchmap (with-meta 
+                                         (matchmap-create chunk [bindings/empty-row])
+                                         {:node-count 0})
+                              rows (vec (budget/take-bindings (merge-bindings (process-node first-plan (:root first-plan) matchmap) first-rootslot)))
+                              rows (cond
+                                     (or (empty? rows) (empty? rest-indices))
+                                     rows
+                                     independent
+                                     (vec (budget/take-bindings (bindings/join-rows rows @rest-rows)))
+                                     :else
+                                     (match-rest rows))]
+                          ; Tuples of different chunks differ in the column of the root of the first matched template, so only
+                          ; duplicates within a chunk need to be removed
+                          (distinct (map row->tuple rows))))
+        stream (fn stream [chunks]
+                 (lazy-seq
+                   (when-let [chunks (seq chunks)]
+                     (when-let [tuples (try
+                                         (process-chunk (first chunks))
+                                         (catch TimeoutException e
+                                           nil))] ; Budget exhausted; the partially processed chunk is discarded
+                       (concat tuples (stream (rest chunks)))))))]
     (with-meta
-      (into #{} 
-           (for [bindings bindings-list]
-             (reduce
-               (fn [cur-list lvar]
-                 (if (or
-                       include-uservars
-                       (not (some (fn [v] (= v lvar)) uservars)))
-                   (conj cur-list (first (get bindings lvar)) )
-                   cur-list))
-               []
-               (keys bindings))))
-      {:columns column-names}))
-  )
+      (stream (partition-all chunk-size
+                             (budget/take-candidates (template-root-candidates first-plan (get root-candidates first-index)))))
+      {:columns columns})))
+
+(defn query-templategroup-seq
+  "Look for matches of a template group, and return them as a lazy sequence of distinct result tuples
+   (The meta-info of the sequence contains the :columns of the tuples, see templategroup-columns.)
+   The candidate matches of the first template are matched in chunks (of stream-chunk-size), and each chunk is 
+   only matched (and narrowed down by, or joined with, the other templates) once the results of the previous chunk have been consumed.
+   Consuming part of the sequence (e.g. with take or some) therefore only does part of the matching work.
+   If the budget's time limit runs out while the sequence is consumed, the sequence simply ends; no TimeoutException is thrown.
+   The sequence is realized in the dynamic context in which it was created (e.g. its budget and queried project models).
+   @param templategroup    The template group to be matched (or its match plan)
+   @param root-candidates  (Optional) The nodes that may match with the root of each template (see query-templategroup)"
+  ([templategroup include-uservars]
+    (query-templategroup-seq templategroup include-uservars nil))
+  ([templategroup include-uservars root-candidates]
+    (resolution/refresh!)
+    (templategroup-results (templategroup-plan templategroup) include-uservars root-candidates stream-chunk-size)))
+
+(defn query-templategroup-limit
+  "Look for at most limit matches of a template group, and stop matching once they are found
+   @return a vector of result tuples (see query-templategroup-seq)"
+  [templategroup include-uservars limit]
+  (let [results (query-templategroup-seq templategroup include-uservars)]
+    (with-meta
+      (into [] (take limit results))
+      (meta results))))
+
+(defn templategroup-exists?
+  "Does a template group have any match? Matching stops at the first match that is found."
+  [templategroup]
+  (resolution/refresh!)
+  (boolean (seq (templategroup-results (templategroup-plan templategroup) false nil 1))))
+
+(defn templategroup-root-values
+  "Collects the nodes that matched with the root of each template in a group
+   @param templategroup  The template group (or its match plan)
+   @param tuples         Result tuples of the group (see query-templategroup-seq)
+   @return a vector with a set of root nodes per template, or nil if the result is partial (see budget/truncated?)"
+  [templategroup tuples]
+  (if (not (budget/truncated? budget/*budget*))
+    (mapv (fn [index]
+            (into #{} (map (fn [tuple] (nth tuple index)) tuples)))
+          (range (count (:rootvars (templategroup-plan templategroup)))))))
+
+(defn query-templategroup-list 
+  "Query the templategroup and return match results as a list
+   (as required in the Ekeko/X GUI)
+   The meta-info of the result contains the :columns of the list (see templategroup-columns), 
+   and the :root-values of each template (see templategroup-root-values).
+   @param templategroup    The template group to be matched (or its match plan)
+   @param root-candidates  (Optional) The nodes that may match with the root of each template (see query-templategroup)"
+  ([templategroup include-uservars]
+    (query-templategroup-list templategroup include-uservars nil))
+  ([templategroup include-uservars root-candidates]
+    (let [plan (templategroup-plan templategroup)
+          results (query-templategroup-seq plan include-uservars root-candidates)
+          tuples (into #{} results)]
+      (with-meta
+        tuples
+        {:columns (:columns (meta results))
+         :root-values (templategroup-root-values plan tuples)}))))
 
 ;(defn query-templategroup-txt
 ;  "Look for matches of a template group, in its textual form"
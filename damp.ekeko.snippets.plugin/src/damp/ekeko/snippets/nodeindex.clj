@@ -0,0 +1,341 @@
+(ns
+  ^{:doc "Index of the AST nodes in the queried Java projects, used to look up candidate matches.
+          Per compilation unit, nodes are stored in pre-order, such that a node and its descendants form an interval.
+          Enumerating the descendants of a node then becomes a range scan, rather than a walk over its subtree.
+          Primitive property values (identifiers, literal tokens, operators, ..) are indexed as well, such that matching 
+          can start from the rarest concrete value in a template (see matching2/seeded-candidates)."}
+  damp.ekeko.snippets.nodeindex
+  (:import [org.eclipse.jdt.core.dom ASTNode ASTVisitor CompilationUnit SimplePropertyDescriptor]
+           [java.util ArrayList Arrays Collections HashMap IdentityHashMap List Map WeakHashMap]
+           [damp.ekeko.snippets.geneticsearch PartialJavaProjectModel])
+  (:require [damp.ekeko
+             [ekekomodel :as ekekomodel]]
+            [damp.ekeko.jdt
+             [ast :as ast]
+             [astnode :as astnode]]
+            [damp.ekeko.snippets
+             [resolution :as resolution]]))
+
+;; Compilation unit index
+;; ----------------------
+
+; Index of a single compilation unit
+; - nodes      Array of all nodes in the compilation unit, in pre-order
+; - ends       For each pre-order position, the position right after the last descendant of the node at that position
+; - positions  Maps each node to its pre-order position
+; - classes    Maps each node class to an array with the (ascending) pre-order positions of the nodes of that class
+; - values     Inverted index of the primitive property values in the compilation unit (identifiers, literal tokens, operators, 
+;              modifier keywords, ..): maps each value key (see value-key) to an array with the pre-order positions 
+;              of the nodes whose property has that value
+(defrecord UnitIndex [nodes ends positions classes values])
+
+(defn
+  value-key
+  "Key of a primitive property value in the inverted index of a compilation unit
+   @param cls       Class of the node that owns the property
+   @param property  The node's (simple) property descriptor
+   @param value     The property's value"
+  [cls ^SimplePropertyDescriptor property value]
+  [cls (.getId property) value])
+
+(defn- index-values!
+  "Adds the primitive property values of a node to an inverted index under construction"
+  [^Map values ^ASTNode node pos]
+  (doseq [property (.structuralPropertiesForType node)]
+    (if (instance? SimplePropertyDescriptor property)
+      (if-let [value (.getStructuralProperty node property)]
+        (let [key (value-key (class node) property value)
+              ^List value-positions (or (.get values key)
+                                        (let [new-positions (ArrayList.)]
+                                          (.put values key new-positions)
+                                          new-positions))]
+          (.add value-positions pos))))))
+
+(defn- index-unit
+  "Index the nodes of a compilation unit (or of any other AST subtree)"
+  [^ASTNode cu]
+  (let [nodes (ArrayList.)
+        ends (ArrayList.)
+        positions (IdentityHashMap.)
+        values (HashMap.)
+        visitor (proxy [ASTVisitor] [true]
+                  (preVisit2 [node]
+                    (.put positions node (.size nodes))
+                    (index-values! values node (.size nodes))
+                    (.add nodes node)
+                    (.add ends nil)
+                    true)
+                  (postVisit [node]
+                    (.set ends (int (.get positions node)) (.size nodes))))]
+    (.accept cu visitor)
+    (let [node-array (.toArray nodes)
+          classes (persistent!
+                    (reduce
+                      (fn [classes pos]
+                        (let [cls (class (aget node-array pos))]
+                          (assoc! classes cls (conj (get classes cls []) pos))))
+                      (transient {})
+                      (range (alength node-array))))]
+      (UnitIndex.
+        node-array
+        (int-array ends)
+        positions
+        (into {} (for [[cls class-positions] classes] [cls (int-array class-positions)]))
+        (into {} (for [[key value-positions] values] [key (int-array value-positions)]))))))
+
+(defn- unit-nodes-of-class
+  "Nodes of the given class within the pre-order interval [from, to) of a compilation unit"
+  [unit cls from to]
+  (let [^ints class-positions (get (:classes unit) cls)
+        ^objects nodes (:nodes unit)]
+    (if (nil? class-positions)
+      []
+      (let [found (Arrays/binarySearch class-positions (int from))
+            start (if (neg? found) (- (inc found)) found)]
+        (loop [i start
+               result (transient [])]
+          (if (and (< i (alength class-positions))
+                   (< (aget class-positions i) (int to)))
+            (recur (inc i) (conj! result (aget nodes (aget class-positions i))))
+            (persistent! result)))))))
+
+;; Project index
+;; -------------
+
+; State of the index
+; - units     Maps each indexed compilation unit to its UnitIndex
+; - snapshot  Set of compilation units in the queried projects, as of the last update
+; - stamp     The index-stamp as of the last update
+; - classes   Cache mapping node classes to all nodes of that class in snapshot
+; - counts    Cache mapping node classes to the fraction of the nodes in snapshot that are of that class (see class-frequency)
+(def ^:private index (atom {:units {} :snapshot #{} :stamp nil :classes {}}))
+
+(defn- indexable?
+  "Can the queried project models be indexed?
+   (Partial project models only contain selected subtrees; they have an index of their own, see slice-index.)"
+  []
+  (not-any?
+    (fn [model] (instance? PartialJavaProjectModel model))
+    @ekekomodel/*queried-project-models*))
+
+(defn
+  index-stamp
+  "Cheap version stamp of the queried projects: changes whenever other project models are queried,
+   or whenever resolution/refresh! (called before each query) finds that Ekeko's model has changed"
+  []
+  [(vec @ekekomodel/*queried-project-models*) (resolution/model-generation)])
+
+(defn
+  update-index!
+  "Brings the index up to date with the compilation units of the queried projects.
+   Whenever Ekeko's model changes, the affected compilation units are reparsed into new CompilationUnit instances;
+   only these are indexed, and the index entries of compilation units that are no longer in the model are dropped.
+   The compilation units are only looked up again if the index-stamp changed since the last update.
+   @return the up-to-date state of the index"
+  []
+  (let [state @index
+        stamp (index-stamp)]
+    (if (= stamp (:stamp state))
+      state
+      (let [cus (into #{} (ast/nodes-of-type :CompilationUnit))
+            units (:units state)
+            new-state (if (= cus (:snapshot state))
+                        (assoc state :stamp stamp)
+                        {:units (into {}
+                                      (for [cu cus]
+                                        [cu (or (get units cu) (index-unit cu))]))
+                         :snapshot cus
+                         :stamp stamp
+                         :classes {}})]
+        (reset! index new-state)
+        new-state))))
+
+(defn
+  clear-index!
+  "Drops all index entries"
+  []
+  (reset! index {:units {} :snapshot #{} :stamp nil :classes {}}))
+
+;; Partial model index
+;; -------------------
+
+; Index of a PartialJavaProjectModel
+; - units    UnitIndex of each AST subtree in the model, in the order they were added to the model
+; - classes  Maps each node class to a vector with all nodes of that class in the model
+(defrecord SliceIndex [units classes])
+
+; Maps each PartialJavaProjectModel to its SliceIndex
+; (Weak keys, such that the index of a model is dropped along with the model itself.)
+(def ^:private slice-indices (Collections/synchronizedMap (WeakHashMap.)))
+
+(defn- index-slice
+  [^PartialJavaProjectModel model]
+  (let [units (mapv index-unit (.getRoots model))]
+    (SliceIndex.
+      units
+      (persistent!
+        (reduce
+          (fn [classes unit]
+            (reduce
+              (fn [classes cls]
+                (assoc! classes cls (into (get classes cls []) 
+                                          (unit-nodes-of-class unit cls 0 (alength ^objects (:nodes unit))))))
+              classes
+              (keys (:classes unit))))
+          (transient {})
+          units)))))
+
+(defn
+  slice-index
+  "Returns the index of a partial project model, indexing it if it isn't indexed yet
+   (A model is reindexed if AST subtrees were added to it since it was indexed.)"
+  [^PartialJavaProjectModel model]
+  (let [^Map indices slice-indices
+        current (.get indices model)]
+    (if (and current (= (count (:units current)) (.size (.getRoots model))))
+      current
+      (let [new-index (index-slice model)]
+        (.put indices model new-index)
+        new-index))))
+
+(defn
+  slice-nodes-of-class
+  "Retrieve all nodes of the given class in a partial project model"
+  [model cls]
+  (get (:classes (slice-index model)) cls []))
+
+(defn- partial-models?
+  "Are all queried project models partial models?"
+  []
+  (let [models @ekekomodel/*queried-project-models*]
+    (and (seq models)
+         (every? (fn [model] (instance? PartialJavaProjectModel model)) models))))
+
+(defn
+  nodes-of-class
+  "Retrieve all nodes of the given class in the queried projects
+   (Equivalent to ast/nodes-of-type)"
+  [cls]
+  (cond
+    (partial-models?)
+    (vec (mapcat (fn [model] (slice-nodes-of-class model cls)) @ekekomodel/*queried-project-models*))
+    
+    (not (indexable?))
+    (ast/nodes-of-type (astnode/ekeko-keyword-for-class cls))
+    
+    :else
+    (let [state (update-index!)]
+      (or
+        (get (:classes state) cls)
+        (let [nodes (into []
+                          (mapcat
+                            (fn [unit] (unit-nodes-of-class unit cls 0 (alength ^objects (:nodes unit))))
+                            (vals (:units state))))]
+          (swap! index
+                 (fn [current]
+                   (if (identical? (:snapshot current) (:snapshot state))
+                     (assoc-in current [:classes cls] nodes)
+                     current)))
+          nodes)))))
+
+(defn
+  index-state
+  "The up-to-date state of the index (see update-index!), or nil if the queried projects can't be indexed
+   (Callers that need many lookups, e.g. when compiling a match plan, can take the state once and pass it around.)"
+  []
+  (if (indexable?)
+    (update-index!)))
+
+(defn
+  class-frequencies
+  "Maps each node class to the fraction of the nodes in the queried projects that are of that class
+   (The map is computed once per state of the index.)
+   @param state  State of the index (see index-state)
+   @return the map, or nil if state is nil (i.e. if the queried projects can't be indexed)"
+  [state]
+  (if state
+    (or (:counts state)
+        (let [current @index] ; Computed since the state was taken?
+          (if (identical? (:snapshot current) (:snapshot state))
+            (:counts current)))
+        (let [units (vals (:units state))
+              total (reduce + (map (fn [unit] (alength ^objects (:nodes unit))) units))
+              counts (persistent!
+                       (reduce
+                         (fn [counts unit]
+                           (reduce
+                             (fn [counts [cls positions]]
+                               (assoc! counts cls (+ (get counts cls 0) (alength ^ints positions))))
+                             counts
+                             (:classes unit)))
+                         (transient {})
+                         units))
+              frequencies (into {} (for [[cls n] counts] [cls (/ (double n) (max total 1))]))]
+          (swap! index
+                 (fn [current]
+                   (if (identical? (:snapshot current) (:snapshot state))
+                     (assoc current :counts frequencies)
+                     current)))
+          frequencies))))
+
+(defn
+  class-frequency
+  "Fraction of the nodes in the queried projects that are of the given class
+   (or nil if unknown, i.e. if the queried projects can't be indexed)"
+  [cls]
+  (if-let [frequencies (class-frequencies (index-state))]
+    (get frequencies cls 0.0)))
+
+(defn
+  class-count
+  "Number of nodes of the given class in the queried projects, or nil if unknown
+   @param state  State of the index (see index-state)"
+  [state cls]
+  (if state
+    (reduce + (map (fn [unit] (if-let [^ints class-positions (get (:classes unit) cls)]
+                                (alength class-positions)
+                                0))
+                   (vals (:units state))))))
+
+(defn
+  value-count
+  "Number of nodes in the queried projects whose property has the given value (see value-key),
+   or nil if unknown (i.e. if the queried projects can't be indexed)
+   @param state  (Optional) State of the index (see index-state); the current state if absent"
+  ([key]
+    (value-count (index-state) key))
+  ([state key]
+    (if state
+      (reduce + (map (fn [unit] (if-let [^ints value-positions (get (:values unit) key)]
+                                  (alength value-positions)
+                                  0))
+                     (vals (:units state)))))))
+
+(defn
+  nodes-with-value
+  "Retrieve the nodes in the queried projects whose property has the given value (see value-key),
+   or nil if unknown (i.e. if the queried projects can't be indexed)"
+  [key]
+  (if (indexable?)
+    (into []
+          (mapcat
+            (fn [unit]
+              (if-let [^ints value-positions (get (:values unit) key)]
+                (let [^objects nodes (:nodes unit)]
+                  (map (fn [pos] (aget nodes pos)) value-positions))))
+            (vals (:units (update-index!)))))))
+
+(defn
+  reachable-nodes-of-class
+  "Retrieve the nodes of the given class among node and all of its descendants
+   (Equivalent to filtering astnode/reachable-nodes on class, but a range scan if node is indexed)"
+  [node cls]
+  (let [unit (when (instance? ASTNode node)
+               (get (:units @index) (.getRoot ^ASTNode node)))
+        pos (when unit
+              (.get ^IdentityHashMap (:positions unit) node))]
+    (if pos
+      (unit-nodes-of-class unit cls pos (aget ^ints (:ends unit) (int pos)))
+      (filter
+        (fn [n] (= (class n) cls))
+        (astnode/reachable-nodes node)))))
@@ -15,6 +15,7 @@ damp.ekeko.snippets.operatorsrep
              [parsing :as parsing]
              [matching :as matching]
              [snippetgroup :as snippetgroup]
+             [symbols :as symbols]
              [util :as util]])
   (:import 
     [java.util Map]
@@ -1709,6 +1710,31 @@ damp.ekeko.snippets.operatorsrep
               (= id (operator-id operator)))
             operators)))
 
+; Ids of the operators that destructively modify the AST of the template they are applied to.
+; All other operators only change the directives of a template, and return a new template 
+; that shares its AST (and its unchanged directives) with the original one.
+(def
+  ast-modifying-operator-ids
+  #{"remove-node" "replace-parent" "replace-parent-stmt" 
+    "isolate-list-element" "isolate-stmt-in-block" "isolate-stmt-in-method" "isolate-expr-in-method" 
+    "insert-node-before" "insert-node-after" "insert-node-at" 
+    "replace-node" "replace-value" "erase-list" "erase-comments"})
+
+(defn
+  operator-modifies-ast?
+  "Does the operator destructively modify the AST of its subject's template?
+   If so, it should be applied to a copy of that template (see persistence/copy-snippet|corresponding)
+   whenever the original template is still in use."
+  [operator]
+  (contains? ast-modifying-operator-ids (operator-id operator)))
+
+(defn
+  operator-refines?
+  "Does the operator refine its subject's template?
+   If so, the matches of the resulting template group are a subset of those of the original group."
+  [operator]
+  (= :refinement (operator-category operator)))
+
 (defn
   registered-operators-in-category
   [category]
@@ -1824,17 +1850,18 @@ damp.ekeko.snippets.operatorsrep
                                           (binding-value subject-binding)] 
                                       (apply-operator-to-snippetgroup snippetgroup subject-template subject-node operator bindings)))
   ([snippetgroup snippet value operator bindings] ;regular call 
-                                                  (validate-operandbindings snippetgroup snippet value operator bindings) 
-                                                  (let [operatof (operator-operator operator)
-                                                        args (map binding-value (rest bindings))]
-                                                    (if 
-                                                      (operator-appliestogroup? operator)
-                                                      (if-let [newsnippetgroup (apply-operator snippetgroup snippet operatof value args)]
-                                                        newsnippetgroup
-                                                        snippetgroup)
-                                                      (if-let [newsnippet (apply-operator snippet operatof value args)]
-                                                        (snippetgroup/replace-snippet snippetgroup snippet newsnippet)
-                                                        snippetgroup)))))
+                                                  (snippet/with-anchor-resolutions ;generalize-* operators resolve all values of the group
+                                                    (validate-operandbindings snippetgroup snippet value operator bindings) 
+                                                    (let [operatof (operator-operator operator)
+                                                          args (map binding-value (rest bindings))]
+                                                      (if 
+                                                        (operator-appliestogroup? operator)
+                                                        (if-let [newsnippetgroup (apply-operator snippetgroup snippet operatof value args)]
+                                                          newsnippetgroup
+                                                          snippetgroup)
+                                                        (if-let [newsnippet (apply-operator snippet operatof value args)]
+                                                          (snippetgroup/replace-snippet snippetgroup snippet newsnippet)
+                                                          snippetgroup))))))
 
 
 (defn apply-operator-to-root
@@ -1914,21 +1941,15 @@ damp.ekeko.snippets.operatorsrep
   [snippetgroup snippet node operator operand]
   (map astnode/ekeko-keyword-for-class astnode/node-classes))
 
-(defn- all-type-declarations []
-  (for [x (damp.ekeko/ekeko [?type] (ast/ast :TypeDeclaration ?type))]
-    (first x)))
-
 (defmethod
   possible-operand-values
   opscope-string
   [snippetgroup snippet node operator operand]
   (case (operator-id operator)
     "add-directive-type|sname"
-    (for [x (all-type-declarations)] ; Memoize this? But the cache'd have to be cleared when the project being queried changes..
-      (-> x .getName .toString))
+    (symbols/type-simple-names)
     "add-directive-type|qname"
-    (for [x (all-type-declarations)]
-      (-> x .resolveBinding .getQualifiedName))
+    (symbols/type-qualified-names)
     "remove-directive"
     (map damp.ekeko.snippets.directives/directive-name (matching/registered-directives))
     ; default case
@@ -24,14 +24,19 @@
  ;        make-list-element-identifier
  ;        ]]) ;for future reference: also supports :rename
   (:import 
-    [java.io Writer]
-    [org.eclipse.jdt.core.dom BodyDeclaration Expression Statement ASTNode ASTParser AST CompilationUnit]
-    [java.util List]
+    [java.io Writer InputStream OutputStream DataInputStream DataOutputStream BufferedInputStream BufferedOutputStream EOFException]
+    [java.util.zip GZIPInputStream GZIPOutputStream]
+    [org.eclipse.jdt.core.dom BodyDeclaration Expression Statement ASTNode ASTParser AST CompilationUnit
+     StructuralPropertyDescriptor Modifier$ModifierKeyword PrimitiveType$Code InfixExpression$Operator
+     Assignment$Operator PrefixExpression$Operator PostfixExpression$Operator]
+    [java.util List Collection Arrays ArrayList HashMap]
+    [clojure.lang IRecord]
+    [damp.ekeko.jdt.astnode RelativeListElementIdentifier RelativePropertyValueIdentifier]
     [damp.ekeko.snippets
      BoundDirective
      DirectiveOperandBinding]
            [damp.ekeko.snippets.snippet
-            Snippet]
+            Snippet RootIdentifier]
            [damp.ekeko.snippets.snippetgroup
             SnippetGroup]
            [damp.ekeko.snippets.directives
@@ -270,54 +275,48 @@
     (.prettyPrint pp)))
 
 
-(defn-
-  remove-implicit-opbindings
-  "Removes every implicit operand binding from a snippet-associativeinfo.
-   Called when copying a snippet from this info, 
-   as slurping a snippet assumes that print-dup on BoundDirective has not spat this implicit operand."
-  [{ 
-    bdmap :bdmap ;astid->bounddirectives
-    pidmap :pidmap ;astid->correspondingprojectvalueidentifiers
-    }]
-  {
-   :pidmap pidmap
-   :bdmap 
-   (reduce 
-     (fn [sofar [astid bounddirectives]]
-       (assoc-in 
-         sofar 
-         [astid]
-         (map 
-           (fn [bounddirective]
-             (directives/make-bounddirective
-               (directives/bounddirective-directive bounddirective)
-               (rest (directives/bounddirective-operandbindings bounddirective))))
-           bounddirectives)))
-     bdmap
-     (seq bdmap))
-   })
+(defn
+  copy-snippet|corresponding
+  "Duplicates the given snippet (see copy-snippet).
+   Returns a pair of the copy and a function that maps each value of the original snippet 
+   onto the corresponding value of the copy."
+  [snippet]
+  (let [;bypassing astnode/*ast-for-newlycreatednodes* for performance reasons
+        root (snippet/snippet-root snippet)
+        newast (AST/newAST damp.ekeko.JavaProjectModel/JLS)
+        newroot (ASTNode/copySubtree ^AST newast root)
+        copy (atom (snippet/update-anchor (matching/jdt-node-as-snippet newroot) (snippet/snippet-anchor snippet)))
+        correspondence (HashMap.)]
+    ;values of the original and the copy are walked in the same order, 
+    ;no need to resolve the identifier of each value (as in snippet-from-node-and-persisted-associativeinfo)
+    (snippet/walk-snippets-elements
+      snippet
+      root
+      @copy
+      (snippet/snippet-root @copy)
+      (fn [[value copyvalue]]
+        (.put correspondence value copyvalue)
+        (swap! copy snippet/update-bounddirectives 
+               copyvalue
+               (map (fn [bounddirective]
+                      (directives/make-bounddirective
+                        (directives/bounddirective-directive bounddirective)
+                        (cons 
+                          (directives/make-implicit-operand copyvalue)
+                          (rest (directives/bounddirective-operandbindings bounddirective)))))
+                    (snippet/snippet-bounddirectives-for-node snippet value)))
+        (swap! copy snippet/update-projectanchoridentifier 
+               copyvalue 
+               (snippet/snippet-value-projectanchoridentifier snippet value))))
+    [@copy 
+     (fn [value] (.get correspondence value))]))
 
 (defn 
   copy-snippet
   "Duplicates the given snippet. 
    No mutable data is shared between the original and the copy."
   [snippet]
-  ;(let [s (snippet-as-persistent-string snippet)
-  ;     copy (snippet-from-persistent-string s)]
-  ;copy)
-  (let [;bypassing astnode/*ast-for-newlycreatednodes* for performance reasons
-       associnfo (remove-implicit-opbindings (snippet-associativeinfo snippet)) ;do not want implicit subject operand of directive bindings
-       root (snippet/snippet-root snippet)
-       newast (AST/newAST damp.ekeko.JavaProjectModel/JLS)
-       newroot (ASTNode/copySubtree ^AST newast root)
-       ;newroot (ASTNode/copySubtree ^AST astnode/*ast-for-newlycreatednodes* root)
-       anchor (snippet/snippet-anchor snippet)]
-    (snippet-from-node-and-persisted-associativeinfo newroot associnfo anchor))) 
-  
-           
-   
-   
-   
+  (first (copy-snippet|corresponding snippet)))
 
 (defn
   copy-snippetgroup
@@ -329,18 +328,508 @@
                                   (map copy-snippet (snippetgroup/snippetgroup-snippetlist snippetgroup))))
   
 
+;; Binary format
+;; -------------
+
+; Besides as print-dup'ed forms (which have to be eval'ed when slurped), templates, template groups and transformations 
+; can be persisted in a compact binary format. A binary file consists of a header (binary-magic, the format version 
+; and a flags byte), followed by a single tagged value, which is gzip-compressed if the compressed flag is set.
+;
+; - Strings, property descriptors and directives are interned: the first occurrence of each is written in full,
+;   later occurrences only refer to its index in the intern table.
+; - Each template is written as its root node, followed by a table of the bound directives of each of its values.
+;   The values of a template are numbered in the order in which snippet/walk-snippet-element visits them,
+;   such that directives and project identifiers refer to the number of their value, rather than to its identifier.
+; - New tags are only ever appended to binary-tags, such that older files remain readable.
+
+(def 
+  binary-magic 
+  (.getBytes "EKXB" "US-ASCII"))
+
+(def 
+  binary-version 
+  1)
+
+(def ^:private binary-flag-compressed 1)
+
+(def ^:dynamic *compress-binary*
+  "Whether files in the binary format are gzip-compressed when spat."
+  true)
+
+(def ^:private binary-tags
+  [:nil :true :false :int :long :string :symbol :keyword :vector :list :map
+   :node :modifier :primitivetype :infixoperator :assignmentoperator :prefixoperator :postfixoperator
+   :descriptor :root-identifier :property-identifier :element-identifier :record
+   :snippet :snippetgroup :transformation :double])
+
+(def ^:private binary-tag-codes 
+  (zipmap binary-tags (range)))
+
+(defn- 
+  write-varint
+  [^DataOutputStream out n]
+  (loop [n (long n)]
+    (if (< n 0x80)
+      (.writeByte out (int n))
+      (do 
+        (.writeByte out (int (bit-or (bit-and n 0x7F) 0x80)))
+        (recur (bit-shift-right n 7))))))
+
+(defn- 
+  read-varint
+  [^DataInputStream in]
+  (loop [shift 0
+         result 0]
+    (let [b (.readUnsignedByte in)
+          result (bit-or result (bit-shift-left (bit-and b 0x7F) shift))]
+      (if (< b 0x80)
+        result
+        (recur (+ shift 7) result)))))
+
+(defn- 
+  write-tag
+  [^DataOutputStream out tag]
+  (.writeByte out (int (binary-tag-codes tag))))
+
+(defn- 
+  read-tag
+  [^DataInputStream in]
+  (let [code (.readUnsignedByte in)]
+    (or (get binary-tags code)
+        (throw (Exception. (str "While deserializing, encountered an unknown tag: " code))))))
+
+(defn-
+  make-encoder
+  [out]
+  {:out out
+   :strings (HashMap.)
+   :descriptors (HashMap.)
+   :directives (HashMap.)})
+
+(defn-
+  make-decoder
+  [in]
+  {:in in
+   :strings (ArrayList.)
+   :descriptors (ArrayList.)
+   :directives (ArrayList.)
+   ;bypassing astnode/*ast-for-newlycreatednodes*, as in copy-snippet
+   :ast (AST/newAST damp.ekeko.JavaProjectModel/JLS)})
+
+(defn-
+  encode-interned
+  "Writes the index of entry in one of the encoder's intern tables, 
+   followed by the entry itself (using write-entry, without args) if it was not in the table yet."
+  [encoder table entry write-entry]
+  (let [^HashMap entries (get encoder table)]
+    (if-let [idx (.get entries entry)]
+      (write-varint (:out encoder) idx)
+      (let [idx (.size entries)]
+        (.put entries entry idx)
+        (write-varint (:out encoder) idx)
+        (write-entry)))))
+
+(defn-
+  decode-interned
+  "Counterpart of encode-interned; read-entry (without args) reads an entry that is not in the table yet."
+  [decoder table read-entry]
+  (let [^ArrayList entries (get decoder table)
+        idx (read-varint (:in decoder))]
+    (cond
+      (< idx (.size entries))
+      (.get entries idx)
+      (= idx (.size entries))
+      (let [entry (read-entry)]
+        (.add entries entry)
+        entry)
+      :else
+      (throw (Exception. (str "While deserializing, encountered an invalid index in the " (name table) " table: " idx))))))
+
+(defn-
+  decode-sequence
+  "Reads a count, followed by as many elements (using read-element, without args)"
+  [decoder read-element]
+  (mapv (fn [_] (read-element)) (range (read-varint (:in decoder)))))
+
+(defn- 
+  encode-string
+  [encoder ^String s]
+  (encode-interned encoder :strings s
+                   (fn []
+                     (let [bytes (.getBytes s "UTF-8")]
+                       (write-varint (:out encoder) (alength bytes))
+                       (.write ^DataOutputStream (:out encoder) bytes)))))
+
+(defn- 
+  decode-string
+  [decoder]
+  (decode-interned decoder :strings
+                   (fn []
+                     (let [bytes (byte-array (read-varint (:in decoder)))]
+                       (.readFully ^DataInputStream (:in decoder) bytes)
+                       (String. bytes "UTF-8")))))
+
+(defn-
+  encode-descriptor
+  [encoder ^StructuralPropertyDescriptor property]
+  (encode-interned encoder :descriptors property
+                   (fn []
+                     (encode-string encoder (name (astnode/ekeko-keyword-for-class (.getNodeClass property))))
+                     (encode-string encoder (.getId property)))))
+
+(defn-
+  decode-descriptor
+  [decoder]
+  (decode-interned decoder :descriptors
+                   (fn []
+                     (let [kind (keyword (decode-string decoder))
+                           id (decode-string decoder)]
+                       (astnode/class-propertydescriptor-with-id kind id)))))
+
+(defn-
+  encode-directive
+  [encoder directive]
+  (let [name (directives/directive-name directive)]
+    (encode-interned encoder :directives name
+                     (fn [] (encode-string encoder name)))))
+
+(defn-
+  decode-directive
+  [decoder]
+  (decode-interned decoder :directives
+                   (fn [] (registered-directive-for-name (decode-string decoder)))))
+
+(defn-
+  snippet-values
+  "Vector of all values of a template, in the order in which they are numbered by the binary format"
+  [snippet]
+  (let [values (ArrayList.)]
+    (snippet/walk-snippet-element snippet (snippet/snippet-root snippet) (fn [value] (.add values value)))
+    (vec values)))
+
+(declare encode-value decode-value)
+
+(defn-
+  encode-node
+  [encoder ^ASTNode node]
+  (let [properties (.structuralPropertiesForType node)]
+    (encode-string encoder (name (astnode/ekeko-keyword-for-class (class node))))
+    (write-varint (:out encoder) (count properties))
+    (doseq [property properties]
+      (encode-descriptor encoder property)
+      (encode-value encoder (.getStructuralProperty node property)))))
+
+(defn-
+  decode-node
+  [decoder]
+  (let [^Class clazz (astnode/class-for-ekeko-keyword (keyword (decode-string decoder)))
+        node (.createInstance ^AST (:ast decoder) clazz)]
+    (dotimes [_ (read-varint (:in decoder))]
+      (let [^StructuralPropertyDescriptor property (decode-descriptor decoder)
+            value (decode-value decoder)]
+        (cond 
+          (nil? value)
+          nil
+          (.isChildListProperty property)
+          (.addAll ^List (.getStructuralProperty node property) ^Collection value)
+          :else
+          (.setStructuralProperty node property value))))
+    node))
+
+(defn-
+  encode-snippet
+  [encoder snippet]
+  (let [out (:out encoder)
+        values (snippet-values snippet)
+        identified (keep-indexed 
+                     (fn [idx value]
+                       (when-let [identifier (snippet/snippet-value-projectanchoridentifier snippet value)]
+                         [idx identifier]))
+                     values)]
+    (encode-node encoder (snippet/snippet-root snippet))
+    (write-varint out (count values))
+    (doseq [value values]
+      (let [bounddirectives (snippet/snippet-bounddirectives-for-node snippet value)]
+        (when 
+          (nil? bounddirectives)
+          (throw (Exception. (str "While serializing snippet, encountered invalid bound directives for snippet value:" value))))
+        (write-varint out (count bounddirectives))
+        (doseq [bounddirective bounddirectives]
+          ;implicit operand binding is left out, and restored when decoding
+          (let [opbindings (rest (directives/bounddirective-operandbindings bounddirective))]
+            (encode-directive encoder (directives/bounddirective-directive bounddirective))
+            (write-varint out (count opbindings))
+            (doseq [opbinding opbindings]
+              (encode-string encoder (directives/directiveoperand-description (directives/directiveoperandbinding-directiveoperand opbinding)))
+              (encode-value encoder (directives/directiveoperandbinding-value opbinding)))))))
+    (write-varint out (count identified))
+    (doseq [[idx identifier] identified]
+      (write-varint out idx)
+      (encode-value encoder identifier))
+    (encode-value encoder (snippet/snippet-anchor snippet))))
+
+(defn-
+  decode-bounddirectives
+  [decoder value]
+  (decode-sequence 
+    decoder
+    (fn []
+      (let [directive (decode-directive decoder)
+            opbindings (decode-sequence 
+                         decoder
+                         (fn []
+                           (let [operand (directives/make-directiveoperand (decode-string decoder))]
+                             (directives/make-directiveoperand-binding operand (decode-value decoder)))))]
+        (directives/make-bounddirective directive (cons (directives/make-implicit-operand value) opbindings))))))
+
+(defn-
+  decode-snippet
+  [decoder]
+  (let [template (matching/jdt-node-as-snippet (decode-node decoder))
+        values (snippet-values template)
+        size (read-varint (:in decoder))]
+    (when 
+      (not= size (count values))
+      (throw (Exception. (str "While deserializing snippet, expected " size " snippet values, but the node amounts to " (count values) " values."))))
+    (let [with-directives
+          (reduce 
+            (fn [sofar value]
+              (snippet/update-bounddirectives sofar value (decode-bounddirectives decoder value)))
+            template
+            values)
+          with-identifiers
+          (reduce
+            (fn [sofar _]
+              (let [value (nth values (read-varint (:in decoder)))
+                    identifier (decode-value decoder)]
+                (snippet/update-projectanchoridentifier sofar value identifier)))
+            with-directives
+            (range (read-varint (:in decoder))))]
+      (snippet/update-anchor with-identifiers (decode-value decoder)))))
+
+(defn-
+  encode-value
+  [encoder value]
+  (let [^DataOutputStream out (:out encoder)
+        encode-all (fn [values]
+                     (write-varint out (count values))
+                     (doseq [v values]
+                       (encode-value encoder v)))]
+    (cond
+      (nil? value)
+      (write-tag out :nil)
+      (instance? Boolean value)
+      (write-tag out (if value :true :false))
+      (instance? Integer value)
+      (do (write-tag out :int) (.writeInt out (int value)))
+      (instance? Long value)
+      (do (write-tag out :long) (.writeLong out (long value)))
+      ;other numbers (e.g., fitness values) are stored as doubles
+      (number? value)
+      (do (write-tag out :double) (.writeDouble out (double value)))
+      (string? value)
+      (do (write-tag out :string) (encode-string encoder value))
+      (symbol? value)
+      (do (write-tag out :symbol) (encode-string encoder (str value)))
+      (keyword? value)
+      (do (write-tag out :keyword) (encode-string encoder (subs (str value) 1)))
+      (instance? ASTNode value)
+      (do (write-tag out :node) (encode-node encoder value))
+      (instance? Modifier$ModifierKeyword value)
+      (do (write-tag out :modifier) (write-varint out (.toFlagValue ^Modifier$ModifierKeyword value)))
+      (instance? PrimitiveType$Code value)
+      (do (write-tag out :primitivetype) (encode-string encoder (str value)))
+      (instance? InfixExpression$Operator value)
+      (do (write-tag out :infixoperator) (encode-string encoder (str value)))
+      (instance? Assignment$Operator value)
+      (do (write-tag out :assignmentoperator) (encode-string encoder (str value)))
+      (instance? PrefixExpression$Operator value)
+      (do (write-tag out :prefixoperator) (encode-string encoder (str value)))
+      (instance? PostfixExpression$Operator value)
+      (do (write-tag out :postfixoperator) (encode-string encoder (str value)))
+      (instance? StructuralPropertyDescriptor value)
+      (do (write-tag out :descriptor) (encode-descriptor encoder value))
+      (instance? RootIdentifier value)
+      (write-tag out :root-identifier)
+      (instance? RelativePropertyValueIdentifier value)
+      (do 
+        (write-tag out :property-identifier) 
+        (encode-value encoder (:ownerid value)) 
+        (encode-value encoder (:property value)))
+      (instance? RelativeListElementIdentifier value)
+      (do 
+        (write-tag out :element-identifier) 
+        (encode-value encoder (:listid value)) 
+        (encode-value encoder (:index value)))
+      (instance? Snippet value)
+      (do (write-tag out :snippet) (encode-snippet encoder value))
+      (instance? SnippetGroup value)
+      (do 
+        (write-tag out :snippetgroup) 
+        (encode-string encoder (snippetgroup/snippetgroup-name value))
+        (encode-all (snippetgroup/snippetgroup-snippetlist value)))
+      (instance? Transformation value)
+      (do 
+        (write-tag out :transformation) 
+        (encode-value encoder (transformation/transformation-lhs value))
+        (encode-value encoder (transformation/transformation-rhs value)))
+      ;other identifiers (e.g., of project roots)
+      (instance? IRecord value)
+      (do 
+        (write-tag out :record) 
+        (encode-string encoder (.getName (class value))) 
+        (encode-value encoder (into {} value)))
+      (map? value)
+      (do (write-tag out :map) (encode-all (apply concat value)))
+      (vector? value)
+      (do (write-tag out :vector) (encode-all value))
+      ;includes the node lists of ASTNode properties
+      (instance? List value)
+      (do (write-tag out :list) (encode-all value))
+      :else
+      (throw (Exception. (str "While serializing, encountered a value that has no binary representation: " value))))))
+
+(defn-
+  decode-record
+  "Creates a record of the given class from its map of fields.
+   Only records of Ekeko (e.g., identifiers of project values) are supported, such that a file cannot instantiate arbitrary classes."
+  [classname fields]
+  (let [clazz (when (.startsWith ^String classname "damp.ekeko.")
+                (clojure.lang.RT/classForName classname))]
+    (if (and clazz (.isAssignableFrom IRecord clazz))
+      (clojure.lang.Reflector/invokeStaticMethod ^Class clazz "create" (object-array [fields]))
+      (throw (Exception. (str "While deserializing, encountered a record of an unsupported class: " classname))))))
+
+(defn-
+  decode-value
+  [decoder]
+  (let [^DataInputStream in (:in decoder)
+        decode-all (fn [] (decode-sequence decoder (fn [] (decode-value decoder))))]
+    (case (read-tag in)
+      :nil nil
+      :true true
+      :false false
+      :int (Integer/valueOf (.readInt in))
+      :long (.readLong in)
+      :double (.readDouble in)
+      :string (decode-string decoder)
+      :symbol (symbol (decode-string decoder))
+      :keyword (keyword (decode-string decoder))
+      :node (decode-node decoder)
+      :modifier (astnode/modifierkeyword-for-flagvalue (Integer/valueOf (int (read-varint in))))
+      :primitivetype (astnode/primitivetypecode-for-string (decode-string decoder))
+      :infixoperator (astnode/infixexpressionoperator-for-string (decode-string decoder))
+      :assignmentoperator (astnode/assignmentoperator-for-string (decode-string decoder))
+      :prefixoperator (astnode/prefixexpressionoperator-for-string (decode-string decoder))
+      :postfixoperator (astnode/postfixexpressionoperator-for-string (decode-string decoder))
+      :descriptor (decode-descriptor decoder)
+      :root-identifier (snippet/make-root-identifier)
+      :property-identifier (let [ownerid (decode-value decoder)
+                                 property (decode-value decoder)]
+                             (astnode/make-property-value-identifier ownerid property))
+      :element-identifier (let [listid (decode-value decoder)
+                                index (decode-value decoder)]
+                            (astnode/make-list-element-identifier listid index))
+      :snippet (decode-snippet decoder)
+      :snippetgroup (let [name (decode-string decoder)
+                          snippets (decode-all)]
+                      (snippetgroup/make-snippetgroup name snippets))
+      :transformation (let [lhs (decode-value decoder)
+                            rhs (decode-value decoder)]
+                        (transformation/make-transformation lhs rhs))
+      :record (let [classname (decode-string decoder)
+                    fields (decode-value decoder)]
+                (decode-record classname fields))
+      :map (apply hash-map (decode-all))
+      :vector (decode-all)
+      :list (apply list (decode-all)))))
+
 (defn
-  spit-snippet
+  write-binary
+  "Writes a template, template group or transformation to a stream, in the binary format.
+   The stream is closed afterwards."
+  [^OutputStream stream value]
+  (with-open [stream stream]
+    (let [compressed? *compress-binary*]
+      (.write stream ^bytes binary-magic)
+      (.write stream (int binary-version))
+      (.write stream (int (if compressed? binary-flag-compressed 0)))
+      ;header is written before the compressed container starts
+      (let [out (DataOutputStream. 
+                  (BufferedOutputStream. 
+                    (if compressed? (GZIPOutputStream. stream) stream)
+                    65536))]
+        (encode-value (make-encoder out) value)
+        (.close out)))))
+
+(defn
+  read-binary
+  "Reads a template, template group or transformation from a stream in the binary format.
+   The stream is closed afterwards."
+  [^InputStream stream]
+  (with-open [stream stream]
+    (let [magic-length (alength ^bytes binary-magic)
+          header (byte-array (+ magic-length 2))]
+      (.readFully (DataInputStream. stream) header)
+      (when-not 
+        (Arrays/equals ^bytes binary-magic (Arrays/copyOf header magic-length))
+        (throw (Exception. "Not a file in the binary format.")))
+      (let [version (aget header magic-length)
+            flags (aget header (inc magic-length))]
+        (when 
+          (> version binary-version)
+          (throw (Exception. (str "Unsupported version of the binary format: " version))))
+        (decode-value 
+          (make-decoder 
+            (DataInputStream.
+              (BufferedInputStream.
+                (if (zero? (bit-and flags binary-flag-compressed))
+                  stream
+                  (GZIPInputStream. stream))
+                65536))))))))
+
+(defn
+  binary-file?
+  "Does the given file start with the header of the binary format?
+   (Files that are shorter than the header are not binary.)"
+  [filename]
+  (with-open [in (DataInputStream. (clojure.java.io/input-stream filename))]
+    (let [header (byte-array (alength ^bytes binary-magic))]
+      (try
+        (.readFully in header)
+        (Arrays/equals ^bytes binary-magic header)
+        (catch EOFException e
+          false)))))
+
+(defn
+  spit-snippet|printdup
+  "Spits a template, template group or transformation as print-dup'ed forms (the format prior to the binary one)."
   [filename snippet]
   (binding [*print-dup* true]
     (spit filename (pr-str snippet))))
 
 (defn
-  slurp-snippet
+  slurp-snippet|printdup
+  "Slurps a file of print-dup'ed forms. Only use this on trusted files, as it requires *read-eval*."
   [filename]
   (binding [*read-eval* true]
     (read-string (slurp filename))))
 
+(defn
+  spit-snippet
+  "Spits a template, template group or transformation in the binary format."
+  [filename snippet]
+  (write-binary (clojure.java.io/output-stream filename) snippet))
+
+(defn
+  slurp-snippet
+  "Slurps a template, template group or transformation. 
+   Files in the binary format are decoded; older files are assumed to consist of print-dup'ed forms."
+  [filename]
+  (if (binary-file? filename)
+    (read-binary (clojure.java.io/input-stream filename))
+    (slurp-snippet|printdup filename)))
+
 
 (def
   spit-snippetgroup
@@ -0,0 +1,200 @@
+(ns
+  ^{:doc "Optional instrumentation of the matching engine (see matching2.clj).
+          While a profile is active, matching2 records for each template value how often it was processed,
+          how much time that took, and how many candidate matches were left before and after each step.
+          Without an active profile, each instrumentation point only costs a lookup of the *profile* var."}
+  damp.ekeko.snippets.profiling
+  (:require [clojure.string :as string])
+  (:require [damp.ekeko.jdt
+             [astnode :as astnode]])
+  (:require [damp.ekeko.snippets
+             [snippet :as snippet]
+             [snippetgroup :as snippetgroup]
+             [util :as util]])
+  (:import [java.util.concurrent ConcurrentHashMap]
+           [java.util.concurrent.atomic AtomicLongArray]
+           [damp.ekeko.snippets.gui TemplateProfilePrinter]))
+
+;; Profiles
+;; --------
+
+; Profile of one or more matching runs
+; - entries  ConcurrentHashMap from [template-value phase] pairs to their counters
+;            The phase is :node (processing a template value and its children), :check-directives, :next-positions
+;            (moving the current positions of candidate matches to a child value), or the name of a directive.
+(defrecord Profile [entries])
+
+; Indices of the counters of a profile entry
+(def ^:private calls 0)
+(def ^:private nanos 1)
+(def ^:private candidates-in 2)
+(def ^:private candidates-out 3)
+
+(def ^:dynamic *profile*
+  "Profile in which the matching engine records its measurements (nil if profiling is switched off)"
+  nil)
+
+(defn
+  make-profile
+  []
+  (Profile. (ConcurrentHashMap.)))
+
+(defmacro
+  with-profile
+  "Evaluates body with profiling switched on, recording into the given profile"
+  [profile & body]
+  `(binding [*profile* ~profile]
+     ~@body))
+
+(defn
+  record!
+  "Adds a measurement of one matching step to a profile"
+  [profile template-value phase elapsed-nanos in out]
+  (let [^ConcurrentHashMap entries (:entries profile)
+        key [template-value phase]
+        ^AtomicLongArray counters (or (.get entries key)
+                                      (let [new-counters (AtomicLongArray. 4)]
+                                        (or (.putIfAbsent entries key new-counters) new-counters)))]
+    (.incrementAndGet counters calls)
+    (.addAndGet counters nanos elapsed-nanos)
+    (.addAndGet counters candidates-in in)
+    (.addAndGet counters candidates-out out)))
+
+(defmacro
+  measure
+  "Evaluates expr, a matching step that turns matchmap into a new matchmap.
+   If profiling is switched on, the step's time and the number of candidate matches in both matchmaps
+   are recorded under the given template value and phase."
+  [template-value phase matchmap expr]
+  `(if-let [profile# *profile*]
+     (let [in# (count ~matchmap)
+           start# (System/nanoTime)
+           out# ~expr]
+       (record! profile# ~template-value ~phase (- (System/nanoTime) start#) in# (count out#))
+       out#)
+     ~expr))
+
+;; Reports
+;; -------
+
+(defn-
+  value-string
+  "Short, single-line description of a template value"
+  [value]
+  (let [s (string/replace (str (if (or (astnode/lstvalue? value) (astnode/primitivevalue? value))
+                                 (astnode/value-unwrapped value)
+                                 value))
+                          #"\s+" " ")]
+    (if (> (count s) 60)
+      (str (subs s 0 57) "...")
+      s)))
+
+(defn
+  profile-rows
+  "Summarizes a profile as a list of maps, one per template value and phase, sorted by decreasing time.
+   Each map contains the :template (index of the template in the group, or nil if unknown),
+   the :class and a short description of the template :value, the :phase, the number of :calls, the :time (in ms),
+   the number of candidate matches (summed over all calls) before (:in) and after (:out) the phase,
+   and the fraction of candidates the phase :pruned.
+   (The time of the :node phase includes that of the value's children.)
+   @param templategroup  The template group that was matched"
+  [profile templategroup]
+  (let [templates (snippetgroup/snippetgroup-snippetlist templategroup)
+        template-index (fn [value]
+                         (first (keep-indexed
+                                  (fn [index template] (if (snippet/snippet-contains? template value) index))
+                                  templates)))]
+    (sort-by
+      (fn [row] (- (:time row)))
+      (for [[[value phase] ^AtomicLongArray counters] (:entries profile)]
+        (let [in (.get counters candidates-in)
+              out (.get counters candidates-out)]
+          {:template (template-index value)
+           :class (util/classname value)
+           :value (value-string value)
+           :phase (if (keyword? phase) (name phase) (str phase))
+           :calls (.get counters calls)
+           :time (/ (.get counters nanos) 1000000.0)
+           :in in
+           :out out
+           :pruned (if (= 0 in) 0.0 (- 1.0 (/ (double out) in)))})))))
+
+(def ^:private report-columns [:template :class :value :phase :calls :time :in :out :pruned])
+
+(defn
+  spit-profile-csv
+  "Writes the rows of a profile (see profile-rows) to a .csv file"
+  [file-name profile templategroup]
+  (util/flush-appends!)
+  (spit file-name "")
+  (util/append-csv file-name (map name report-columns))
+  (doseq [row (profile-rows profile templategroup)]
+    (util/append-csv file-name
+                     (for [column report-columns]
+                       (let [value (get row column)]
+                         (if (string? value)
+                           (str "\"" (string/replace value "\"" "\"\"") "\"")
+                           value)))))
+  (util/flush-appends!))
+
+(defn-
+  json-value
+  [value]
+  (cond
+    (nil? value) "null"
+    (string? value) (str "\"" (string/escape value {\" "\\\"" \\ "\\\\" \newline "\\n" \tab "\\t" \return "\\r"}) "\"")
+    :else (str value)))
+
+(defn
+  profile-json
+  "Returns the rows of a profile (see profile-rows) as a JSON array of objects"
+  [profile templategroup]
+  (str "["
+       (string/join
+         ",\n "
+         (for [row (profile-rows profile templategroup)]
+           (str "{"
+                (string/join ", " (for [column report-columns]
+                                    (str "\"" (name column) "\": " (json-value (get row column)))))
+                "}")))
+       "]"))
+
+(defn
+  spit-profile-json
+  "Writes the rows of a profile (see profile-rows) to a .json file"
+  [file-name profile templategroup]
+  (spit file-name (profile-json profile templategroup)))
+
+;; Profile view
+;; ------------
+
+(defn-
+  value-summary
+  "Summary of the measurements of a template value, shown next to the value in the profile view (or nil if there are none)"
+  [profile value]
+  (let [^ConcurrentHashMap entries (:entries profile)
+        ^AtomicLongArray node-counters (.get entries [value :node])
+        ^AtomicLongArray directive-counters (.get entries [value :check-directives])
+        counters (or node-counters directive-counters)]
+    (if counters
+      (format "%d->%d, %.1fms"
+              (.get counters candidates-in)
+              (.get counters candidates-out)
+              (/ (.get counters nanos) 1000000.0)))))
+
+(defn
+  profile-string
+  "Pretty-prints a template group, annotating each template value with its number of candidate matches
+   before and after it was processed, and the time that took (see TemplateProfilePrinter)"
+  [templategroup profile]
+  (let [pp (TemplateProfilePrinter.
+             (damp.ekeko.snippets.data.TemplateGroup/newFromClojureGroup templategroup)
+             profile)]
+    (.prettyPrint pp)))
+
+(defn
+  register-callbacks
+  []
+  (set! (TemplateProfilePrinter/FN_PROFILE_VALUE_SUMMARY) value-summary))
+
+(register-callbacks)
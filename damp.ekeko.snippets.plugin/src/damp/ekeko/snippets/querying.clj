@@ -14,6 +14,8 @@
              [persistence :as persistence]
              [runtime :as runtime]
              [parsing :as parsing]
+             [closures :as closures]
+             [resolution :as resolution]
              ]) 
   (:require 
     [damp.ekeko 
@@ -139,6 +141,35 @@
         (clojure.pprint/pprint sexp)))))
             
 
+(def ^:dynamic *eval-queries* 
+  "If true, generated queries are run by eval'ing them, rather than by compiling them to closures.
+   (Each eval generates new classes, which eventually fills up metaspace; only useful for comparison purposes.)"
+  false)
+
+(defn-
+  eval-query
+  "Runs a generated query by eval'ing it, together with the definitions of its auxiliary predicates"
+  [defines query]
+  (doseq [define defines]
+    (eval define))
+  (eval query))
+
+(defn
+  run-query
+  "Runs a generated query, together with the definitions of its auxiliary predicates
+   The query is compiled to closures (see closures.clj). Only if that isn't possible, e.g. because a user expression 
+   of a directive uses a special form that closures.clj doesn't support (such as case* or letfn*), the query is eval'ed."
+  [defines query]
+  (resolution/refresh!)
+  (if *eval-queries*
+    (eval-query defines query)
+    (if-let [queryf (try
+                      (closures/compile-query defines query)
+                      (catch Exception e
+                        nil))]
+      (queryf)
+      (eval-query defines query))))
+
 (defn
   query-by-snippet
   [snippet launchersymbol]
@@ -146,9 +177,113 @@
         defines (:preddefs qinfo)
         query (snippetqueryinfo-query qinfo launchersymbol)]
     (pprint-sexps (conj defines query))
-    (doseq [define defines]
-      (eval define))
-    (eval query)))
+    (run-query defines query)))
+
+;; Joining the results of separately queried templates
+;; ---------------------------------------------------
+
+; A relation is a map with a vector of :vars, and a vector of :rows
+; Each row is a vector containing a value for each variable.
+
+(defn
+  results-relation
+  "Turns the results of a query over the given variables into a relation.
+   (Like run*, a query over a single variable produces bare values rather than vectors.)"
+  [vars results]
+  {:vars (vec vars)
+   :rows (if (= 1 (count vars))
+           (mapv vector results)
+           (mapv vec results))})
+
+(defn
+  join-relations
+  "Natural join of two relations on their shared variables.
+   The rows of the smaller relation are hashed on their values for the shared variables;
+   the rows of the other relation then only need to look up their matching rows.
+   @return relation over the variables of rel1 that are not shared, followed by the variables of rel2"
+  [rel1 rel2]
+  (let [vars1 (:vars rel1)
+        vars2 (:vars rel2)
+        shared (filterv (set vars1) vars2)
+        indices (fn [vars selected] 
+                  (let [index (zipmap vars (range))]
+                    (mapv index selected)))
+        key1 (indices vars1 shared)
+        key2 (indices vars2 shared)
+        rest1 (vec (keep-indexed (fn [idx var] (when-not (some #{var} shared) idx)) vars1))
+        row-key (fn [key-indices row] (mapv (fn [idx] (nth row idx)) key-indices))
+        combine (fn [row1 row2] (into (mapv (fn [idx] (nth row1 idx)) rest1) row2))
+        rows 
+        (if (<= (count (:rows rel1)) (count (:rows rel2)))
+          (let [table (group-by (partial row-key key1) (:rows rel1))]
+            (into [] 
+                  (mapcat (fn [row2]
+                            (map (fn [row1] (combine row1 row2))
+                                 (get table (row-key key2 row2))))
+                          (:rows rel2))))
+          (let [table (group-by (partial row-key key2) (:rows rel2))]
+            (into [] 
+                  (mapcat (fn [row1]
+                            (map (fn [row2] (combine row1 row2))
+                                 (get table (row-key key1 row1))))
+                          (:rows rel1)))))]
+    {:vars (into (mapv vars1 rest1) vars2)
+     :rows rows}))
+
+(defn
+  project-relation
+  "Reorders the columns of a relation according to the given list of its variables"
+  [rel vars]
+  (let [index (zipmap (:vars rel) (range))
+        indices (mapv index vars)]
+    {:vars (vec vars)
+     :rows (mapv (fn [row] (mapv (fn [idx] (nth row idx)) indices)) 
+                 (:rows rel))}))
+
+(defn
+  join-relations*
+  "Joins a list of relations. The join order is picked by cardinality:
+   we start from the smallest relation, and repeatedly join with the smallest remaining relation
+   that shares variables with the result so far (or the smallest remaining one, if there is no such relation).
+   @return relation of which the columns are ordered as if the relations were joined from left to right"
+  [relations]
+  (let [relations (vec relations)
+        smallest (fn [candidates]
+                   (apply min-key (fn [idx] (count (:rows (nth relations idx)))) candidates))
+        shares-vars? (fn [rel idx]
+                       (some (set (:vars rel)) (:vars (nth relations idx))))
+        joined (loop [result nil
+                      remaining (set (range (count relations)))]
+                 (if (empty? remaining)
+                   result
+                   (let [candidates (or (and result (seq (filter (partial shares-vars? result) remaining)))
+                                        remaining)
+                         next-idx (smallest candidates)
+                         next-rel (nth relations next-idx)]
+                     (recur (if result (join-relations result next-rel) next-rel)
+                            (disj remaining next-idx)))))
+        vars (reduce 
+               (fn [vars rel]
+                 (into (vec (remove (set (:vars rel)) vars)) (:vars rel)))
+               []
+               relations)]
+    (project-relation joined vars)))
+
+(defn-
+  combine-snippet-results
+  "Combines the results of querying each snippet in a group separately,
+   by joining them over the common variables of the snippets"
+  [snippets results]
+  (if (= 1 (count results))
+    results
+    (let [joined (join-relations* 
+                   (map (fn [snippet result]
+                          (results-relation 
+                            (cons (snippet/snippet-var-for-root snippet) (snippet-uservars snippet))
+                            result))
+                        snippets
+                        results))]
+      [(:vars joined) (:rows joined)])))
 
 (defn query-by-snippetgroup-fast-noeval [snippetgroup launchersymbol]
   (map
@@ -165,66 +300,7 @@
   "Take the individual snippet query results of query-by-snippetgroup-fast-noeval
    and combine them into matching results for the entire snippetgroup"
   [snippetgroup results launchersymbol]
-  (let [snippets (snippetgroup/snippetgroup-snippetlist snippetgroup)
-        
-        results-with-vars ; Returns [variable-names results] pairs
-        (map-indexed
-          (fn [idx result]
-            [(cons
-               (snippet/snippet-var-for-root (nth snippets idx))
-               (snippet-uservars (nth snippets idx)))
-             result])
-          results)]
-    
-    (if (= 1 (count results))
-      results
-      
-      ; Combine the results of each snippet by intersecting over the common variables
-      (reduce
-       (fn [[vars1 results1] [vars2 res2]]
-         (let [common-vars (clojure.set/intersection (set vars1) (set vars2))
-               common-vars-indices (fn [vars] (vec (for [common-var common-vars] (.indexOf vars common-var))))
-               indices1 (common-vars-indices vars1)
-               indices2 (common-vars-indices vars2)
-               vars1-without-commons (vec (remove (fn [var] (.contains common-vars var)) vars1))
-               
-               vars1-without-commons-indices ; Indices of non-common variables within vars1
-               (for [var vars1-without-commons] (.indexOf vars1 var))
-               
-               combined-vars (concat vars1-without-commons vars2)] ;
-           ; Iterate over results1
-           (loop [res1 results1
-                  output []]
-             (if (or (empty? res1) (empty? res2))
-               [combined-vars output]
-               (let [result1 (first res1)
-                     
-                     ; Iterate over results2
-                     combined-results
-                     (loop [worklist res2
-                        combined-results output]
-                       (if (empty? worklist) 
-                         combined-results
-                         
-                         (let [result2 (first worklist)
-                               is-matching ; Do the common vars in result1 and 2 match? (also works if there are 0 common vars)
-                               (every?
-                                 (fn [idx]
-                                   (= (nth result1 (nth indices1 idx))
-                                      (nth result2 (nth indices2 idx))))
-                                 (range 0 (count common-vars)))]
-                           (if is-matching
-                             (recur (rest worklist)
-                                    (conj combined-results
-                                          (concat
-                                            (replace (vec result1) vars1-without-commons-indices)
-                                            result2)))
-                             (recur (rest worklist)
-                                    combined-results)))))]
-                 (recur 
-                   (rest res1)
-                   combined-results))))))
-       results-with-vars))))
+  (combine-snippet-results (snippetgroup/snippetgroup-snippetlist snippetgroup) results))
 
 (defn
   query-by-snippetgroup-fast
@@ -239,69 +315,9 @@
             (let [qinfo (snippet-queryinfo snippet)
                   defines (:preddefs qinfo)
                   query (snippetqueryinfo-query qinfo launchersymbol)]
-              (doseq [define defines]
-                (eval define))
-              (eval query)))
-          snippets)
-        
-        results-with-vars ; Returns [variable-names results] pairs
-        (map-indexed
-          (fn [idx result]
-            [(cons
-               (snippet/snippet-var-for-root (nth snippets idx))
-               (snippet-uservars (nth snippets idx)))
-             result])
-          results)]
-    
-    (if (= 1 (count results))
-      results
-      
-      ; Combine the results of each snippet by intersecting over the common variables
-      (reduce
-       (fn [[vars1 results1] [vars2 res2]]
-         (let [common-vars (clojure.set/intersection (set vars1) (set vars2))
-               common-vars-indices (fn [vars] (vec (for [common-var common-vars] (.indexOf vars common-var))))
-               indices1 (common-vars-indices vars1)
-               indices2 (common-vars-indices vars2)
-               vars1-without-commons (vec (remove (fn [var] (.contains common-vars var)) vars1))
-               
-               vars1-without-commons-indices ; Indices of non-common variables within vars1
-               (for [var vars1-without-commons] (.indexOf vars1 var))
-               
-               combined-vars (concat vars1-without-commons vars2)] ;
-           ; Iterate over results1
-           (loop [res1 results1
-                  output []]
-             (if (or (empty? res1) (empty? res2))
-               [combined-vars output]
-               (let [result1 (first res1)
-                     
-                     ; Iterate over results2
-                     combined-results
-                     (loop [worklist res2
-                        combined-results output]
-                       (if (empty? worklist) 
-                         combined-results
-                         
-                         (let [result2 (first worklist)
-                               is-matching ; Do the common vars in result1 and 2 match? (also works if there are 0 common vars)
-                               (every?
-                                 (fn [idx]
-                                   (= (nth result1 (nth indices1 idx))
-                                      (nth result2 (nth indices2 idx))))
-                                 (range 0 (count common-vars)))]
-                           (if is-matching
-                             (recur (rest worklist)
-                                    (conj combined-results
-                                          (concat
-                                            (replace (vec result1) vars1-without-commons-indices)
-                                            result2)))
-                             (recur (rest worklist)
-                                    combined-results)))))]
-                 (recur 
-                   (rest res1)
-                   combined-results))))))
-       results-with-vars))))
+              (run-query defines query)))
+          snippets)]
+    (combine-snippet-results snippets results)))
 
 (defn strip-uservars 
   "Removes the user variables from the results of a query-by-snippetgroup-fast call"
@@ -325,7 +341,8 @@
 ; Converting snippet group to query
 ;------------------------------------
 
-(defn-
+
+(defn-
    snippetgroup-conditions
    "Returns a list of logic conditions that will retrieve matches for the given snippet group."
    [snippetgroup]
@@ -474,9 +491,7 @@
           defines (:preddefs qinfo)
           query (snippetgroupqueryinfo-query qinfo launchersymbol additionalconditions additionalrootvars hideuservars)]
 ;      (pprint-sexps (conj defines query))
-      (doseq [define defines]
-        (eval define))
-      (eval query))))
+      (run-query defines query))))
 
 (defn print-snippetgroup
   ([snippetgroup launchersymbol]
@@ -0,0 +1,148 @@
+(ns
+  ^{:doc "Memoized resolution of types, type hierarchies and bindings in the workspace, as needed by the directives of both matching engines.
+          The cached results are only valid for the current state of Ekeko's model. Whenever it changes, 
+          the affected compilation units are reparsed into new CompilationUnit instances; refresh! notices this and drops all cached results."}
+  damp.ekeko.snippets.resolution
+  (:require [damp.ekeko
+             [ekekomodel :as ekekomodel]]
+            [damp.ekeko.jdt
+             [javaprojectmodel :as javaprojectmodel]])
+  (:import [java.util Collections Map HashMap]
+           [org.eclipse.jdt.core IType ITypeHierarchy IJavaProject]
+           [org.eclipse.jdt.core.dom Annotation Expression FieldAccess SuperFieldAccess]))
+
+;; Caches
+;; ------
+
+; Each cache maps its keys to delays, such that concurrent lookups of the same key compute the value only once
+(def ^:private caches
+  (atom {}))
+
+; Set of the compilation units in Ekeko's model, as of the last refresh!
+(def ^:private snapshot
+  (atom #{}))
+
+; Number of times refresh! found that Ekeko's model had changed
+(def ^:private generation
+  (atom 0))
+
+(defn- cache
+  "Returns the cache with the given name"
+  [name]
+  (or (get @caches name)
+      (get (swap! caches (fn [cs] 
+                           (if (contains? cs name) 
+                             cs 
+                             (assoc cs name (Collections/synchronizedMap (HashMap.))))))
+           name)))
+
+(defn- cached
+  "Looks up key in the named cache, computing (f) if it's absent
+   (nil is cached as well)"
+  [name key f]
+  (let [^Map c (cache name)
+        d (locking c
+            (or (.get c key)
+                (let [d (delay (f))]
+                  (.put c key d)
+                  d)))]
+    @d))
+
+(defn
+  invalidate!
+  "Drops all cached resolution results"
+  []
+  (reset! caches {}))
+
+(defn
+  refresh!
+  "Drops all cached resolution results if Ekeko's model has changed since the last refresh
+   (Called before running a query; compares the compilation units of all Java project models, 
+    regardless of which models are being queried.)"
+  []
+  (let [cus (into #{} (mapcat (fn [model] (.getCompilationUnits model))
+                              (javaprojectmodel/java-project-models)))]
+    (when (not= cus @snapshot)
+      (reset! snapshot cus)
+      (swap! generation inc)
+      (invalidate!))))
+
+(defn
+  model-generation
+  "Cheap version stamp of Ekeko's model: a number that changes whenever refresh! finds that the model has changed"
+  []
+  @generation)
+
+;; Types
+;; -----
+
+(defn
+  node-type
+  "The IJavaElement of the type (or binding) an AST node resolves to, or nil"
+  [ast-node]
+  (cached :node-type ast-node
+          (fn []
+            (let [binding (cond
+                            (instance? Expression ast-node)
+                            (.resolveTypeBinding ^Expression ast-node)
+                            (instance? Annotation ast-node)
+                            (.resolveAnnotationBinding ^Annotation ast-node)
+                            :else
+                            (.resolveBinding ast-node))]
+              (if binding
+                (.getJavaElement binding))))))
+
+(defn- type-hierarchy
+  [itype]
+  (.getTypeHierarchy ^damp.ekeko.EkekoModel (ekekomodel/ekeko-model) itype))
+
+(defn
+  type-ancestors
+  "The set of all (transitive) supertypes of an IType, according to its type hierarchy
+   (The hierarchy is walked breadth-first, from itype to its direct supertypes and so on.)"
+  [itype]
+  (cached :type-ancestors itype
+          (fn []
+            (if-let [^ITypeHierarchy hierarchy (type-hierarchy itype)]
+              (loop [queue (conj clojure.lang.PersistentQueue/EMPTY itype)
+                     result #{}]
+                (if-let [type (peek queue)]
+                  (let [supers (remove result (.getSupertypes hierarchy type))]
+                    (recur (into (pop queue) supers) (into result supers)))
+                  result))
+              #{}))))
+
+(defn
+  find-type
+  "Finds a type by its qualified name, within a Java project"
+  [^IJavaProject project qname]
+  (cached :find-type [project qname]
+          (fn [] (.findType project qname))))
+
+;; Bindings
+;; --------
+
+(defn
+  referred-declaration
+  "The declaration an AST node (a field access or name) refers to"
+  [ast-node]
+  (cached :referred-declaration ast-node
+          (fn []
+            (javaprojectmodel/binding-to-declaration
+              (if (or (instance? FieldAccess ast-node) (instance? SuperFieldAccess ast-node))
+                (.resolveFieldBinding ast-node)
+                (.resolveBinding ast-node))))))
+
+(defn
+  invocation-targets
+  "The declarations a method or constructor invocation may invoke (see javaprojectmodel/invocation-targets)"
+  [ast-node]
+  (cached :invocation-targets ast-node
+          (fn [] (doall (javaprojectmodel/invocation-targets ast-node)))))
+
+(defn
+  method-ancestors
+  "The method declarations a method declaration overrides (see javaprojectmodel/method-ancestors)"
+  [ast-node]
+  (cached :method-ancestors ast-node
+          (fn [] (doall (javaprojectmodel/method-ancestors ast-node)))))
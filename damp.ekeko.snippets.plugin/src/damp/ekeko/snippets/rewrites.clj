@@ -41,11 +41,16 @@
       (swap! current-rewrites assoc cu nrw)
       nrw))) 
 
+(def ^:dynamic *apply-rewrite*
+  "Function that performs an ASTRewrite on its CompilationUnit. By default, the rewrite is applied
+   to the compilation unit in the workspace; see batch.clj for an alternative that doesn't need the workspace."
+  (fn [rw cu] (JavaProjectModel/applyRewriteToNode rw cu)))
+
 (defn- 
   apply-rewrite-to-node
   "Perform the rewrites related to node (a CompilationUnit)"
   [rw node]
-  (JavaProjectModel/applyRewriteToNode rw node))
+  (*apply-rewrite* rw node))
 
 (defn- 
   apply-rewrites
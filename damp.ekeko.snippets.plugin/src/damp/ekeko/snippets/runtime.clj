@@ -13,7 +13,8 @@
             [damp.ekeko.snippets 
              [snippetgroup :as snippetgroup]
              [snippet :as snippet]
-             [util :as util]])
+             [util :as util]
+             [resolution :as resolution]])
   (:import 
     [org.eclipse.jdt.core.dom PrimitiveType Modifier$ModifierKeyword Assignment$Operator
      InfixExpression$Operator PrefixExpression$Operator PostfixExpression$Operator
@@ -122,6 +123,17 @@
                         [(ast/ast :MethodDeclaration ?ast)
                          (aststructure/constructorinvocation-constructordeclaration ?invocation ?ast)]))))
                                   
+(defn
+  type-super+
+  "Relation between an IType and each of its (transitive) supertypes; ?type has to be bound.
+   (Unlike structure/type-type|super+, all supertypes are taken from the type hierarchy of ?type itself, 
+    and they are memoized, see resolution/type-ancestors)"
+  [?type ?super]
+  (cl/all
+    (el/v+ ?type)
+    (cl/project [?type]
+      (el/contains (resolution/type-ancestors ?type) ?super))))
+
 (defn
   overrides
   [?ast ?overridden]
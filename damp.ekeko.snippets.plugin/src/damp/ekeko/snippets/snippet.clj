@@ -33,14 +33,15 @@ damp.ekeko.snippets.snippet
 ; - ast2bounddirectives: map from AST node to its matching/rewriting directives
 ; - ast2meta: map from AST node to map with misc. information about that node 
 ; - userquery: TODO
+; - identifiers: delay of the index between the snippet's values and their identifiers (see reset-identifier-index)
 
 (defrecord 
   Snippet
-  [ast ast2var ast2bounddirectives var2ast ast2meta userquery anchor ast2anchoridentifier]
+  [ast ast2var ast2bounddirectives var2ast ast2meta userquery anchor ast2anchoridentifier identifiers]
   clojure.core.logic.protocols/IUninitialized ;otherwise cannot be bound to logic var
   (-uninitialized [_]
     (Snippet. 
-      nil nil nil nil nil nil nil nil)))
+      nil nil nil nil nil nil nil nil nil)))
 
 
 (defn
@@ -48,7 +49,7 @@ damp.ekeko.snippets.snippet
   "For internal use only. 
    Consider matching/snippet-from-string or matching/snippet-from-node instead."
   [node]
-  (damp.ekeko.snippets.snippet.Snippet. node {} {} {} {} '() nil {}))
+  (damp.ekeko.snippets.snippet.Snippet. node {} {} {} {} '() nil {} nil))
 
 (defn 
   snippet-root 
@@ -466,36 +467,9 @@ damp.ekeko.snippets.snippet
   ([snippet element f]
     (walk-snippet-element snippet element f f f f))
   ([snippet element node-f list-f primitive-f null-f]
-    (loop
-      [nodes (list element)]
-      (when-not (empty? nodes)
-        (let [val (first nodes)
-              others (rest nodes)]
-          (cond 
-            (astnode/ast? val)
-            (do
-              (node-f val)
-              (recur 
-                (concat 
-                  (snippet-node-children|conceptually snippet val)
-                  others)))
-            (astnode/lstvalue? val)
-            (do 
-              (list-f val)
-              (recur (concat 
-                       (snippet-node-children|conceptually snippet val)
-                       others)))
-            (astnode/primitivevalue? val)
-            (do
-              (primitive-f val)
-              (recur others))
-            (astnode/nilvalue? val)
-            (do
-              (null-f val)
-              (recur others))
-            :default
-            (throw (Exception. (str "Don't know how to walk this value:" val)))
-            ))))))
+    (util/walk (fn [val] (snippet-node-children|conceptually snippet val))
+               (fn [val] (util/walk-values val node-f list-f primitive-f null-f))
+               element)))
 
 (defn 
   walk-snippet-element-wcard
@@ -506,36 +480,9 @@ damp.ekeko.snippets.snippet
   ([snippet element f]
     (walk-snippet-element-wcard snippet element f f f f))
   ([snippet element node-f list-f primitive-f null-f]
-    (loop
-      [nodes (list element)]
-      (when-not (empty? nodes)
-        (let [val (first nodes)
-              others (rest nodes)]
-          (cond 
-            (astnode/ast? val)
-            (do
-              (node-f val)
-              (recur 
-                (concat 
-                  (snippet-node-children|conceptually-wcard snippet val)
-                  others)))
-            (astnode/lstvalue? val)
-            (do 
-              (list-f val)
-              (recur (concat 
-                       (snippet-node-children|conceptually-wcard snippet val)
-                       others)))
-            (astnode/primitivevalue? val)
-            (do
-              (primitive-f val)
-              (recur others))
-            (astnode/nilvalue? val)
-            (do
-              (null-f val)
-              (recur others))
-            :default
-            (throw (Exception. (str "Don't know how to walk this value:" val)))
-            ))))))
+    (util/walk (fn [val] (snippet-node-children|conceptually-wcard snippet val))
+               (fn [val] (util/walk-values val node-f list-f primitive-f null-f))
+               element)))
 
 (defn
   walk-snippets-elements
@@ -544,41 +491,18 @@ damp.ekeko.snippets.snippet
   ([s1 e1 s2 e2 f]
     (walk-snippets-elements s1 e1 s2 e2 f f f f))
   ([s1 e1 s2 e2 node-f list-f primitive-f null-f]
-    (loop
-      [nodes (list [e1 e2])]
-      (when-not (empty? nodes)
-        (let [[v1 v2 :as v] (first nodes)
-              others (rest nodes)]
-          (cond 
-            (astnode/ast? v1)
-            ;;;todo: check v2 is an astnode as well, otherwise throw friendly exception
-            (do
-              (node-f v)
-              (recur 
-                (concat 
-                  (map vector 
-                       (snippet-node-children|conceptually s1 v1)
-                       (snippet-node-children|conceptually s2 v2))
-                  others)))
-            (astnode/lstvalue? v1)
-            (do 
-              (list-f v)
-              (recur (concat
-                       (map vector 
-                            (snippet-node-children|conceptually s1 v1)
-                            (snippet-node-children|conceptually s2 v2))
-                       others)))
-            (astnode/primitivevalue? v1)
-            (do
-              (primitive-f v)
-              (recur others))
-            (astnode/nilvalue? v1)
-            (do
-              (null-f v)
-              (recur others))
-            :default
-            (throw (Exception. (str "Don't know how to walk this value:" val)))
-            ))))))
+    ;;;todo: check v2 is an astnode as well, otherwise throw friendly exception
+    (util/walk (fn [[v1 v2]]
+                 (map vector 
+                      (snippet-node-children|conceptually s1 v1)
+                      (snippet-node-children|conceptually s2 v2)))
+               (fn [[v1 :as v]]
+                 (util/walk-values v1 
+                                   (fn [_] (node-f v))
+                                   (fn [_] (list-f v))
+                                   (fn [_] (primitive-f v))
+                                   (fn [_] (null-f v))))
+               [e1 e2])))
 
 
 
@@ -599,8 +523,8 @@ damp.ekeko.snippets.snippet
   [identifier w]
   (.write ^Writer w (str  "#=" `(make-root-identifier))))
 
-(defn
-  snippet-value-identifier
+(defn-
+  compute-snippet-value-identifier
   [snippet value]
   (let [owner (astnode/owner value) ;owner of list = node, owner of list element = node (never list)
         property (astnode/owner-property value)]
@@ -612,7 +536,7 @@ damp.ekeko.snippets.snippet
       ;lists (keep before next clause, do not merge with before-last clause)
       (astnode/lstvalue? value)
       (astnode/make-property-value-identifier 
-        (snippet-value-identifier snippet owner)
+        (compute-snippet-value-identifier snippet owner)
         property)
       
       ;list members
@@ -621,7 +545,7 @@ damp.ekeko.snippets.snippet
             lst-raw (astnode/value-unwrapped lst)]
         (assert lst (str "Could not find list in snippet containing list member:" value))
         (astnode/make-list-element-identifier 
-          (snippet-value-identifier 
+          (compute-snippet-value-identifier 
             snippet
             lst)
           (.indexOf ^List lst-raw value)))
@@ -635,23 +559,70 @@ damp.ekeko.snippets.snippet
       
       
       (astnode/make-property-value-identifier
-        (snippet-value-identifier snippet owner)
+        (compute-snippet-value-identifier snippet owner)
         property)
       
       :else
       (throw (Exception. (str "Unknown snippet value to create identifier for:" value))))))
 
 
+(defn-
+  identifier-index
+  "Computes the identifiers of all values in the AST rooted at root, in a single walk from the root downwards
+   (rather than walking upwards from each value, which takes a .indexOf for each enclosing list).
+   Returns a pair of maps: from each value to its identifier, and from each identifier to its value."
+  [root]
+  (let [[value2identifier identifier2value]
+        (util/reduce-walk
+          (fn [[value identifier]]
+            (cond
+              (astnode/lstvalue? value)
+              (map-indexed 
+                (fn [idx element] 
+                  [element (astnode/make-list-element-identifier identifier idx)])
+                (astnode/value-unwrapped value))
+              (astnode/ast? value)
+              (map 
+                (fn [child]
+                  [child (astnode/make-property-value-identifier identifier (astnode/owner-property child))])
+                (astnode/node-propertyvalues value))))
+          (fn [[value2identifier identifier2value] [value identifier]]
+            [(assoc! value2identifier value identifier)
+             (assoc! identifier2value identifier value)])
+          [(transient {}) (transient {})]
+          [root (make-root-identifier)])]
+    [(persistent! value2identifier) (persistent! identifier2value)]))
+
+(defn
+  reset-identifier-index
+  "Discards the index between the values of the snippet and their identifiers.
+   A new index is computed from the snippet's AST when it is first needed.
+   To be called whenever values are added to or removed from the snippet (cf. matching/add-value-to-snippet),
+   as list elements may have shifted positions."
+  [snippet]
+  (let [root (snippet-root snippet)]
+    (assoc snippet :identifiers (delay (identifier-index root)))))
+
+(defn
+  snippet-value-identifier
+  [snippet value]
+  (or
+    (if-let [index (:identifiers snippet)]
+      (get (first @index) value))
+    (compute-snippet-value-identifier snippet value)))
+
 
 (defn-
   find-snippet-value-corresponding-to-identifier
   [snippet identifier]
-  (some 
-    (fn [value] 
-      (let [value-id (snippet-value-identifier snippet value)]
-        (when (= value-id identifier)
-          value)))
-    (snippet-nodes snippet)))
+  (if-let [index (:identifiers snippet)]
+    (get (second @index) identifier)
+    (some 
+      (fn [value] 
+        (let [value-id (compute-snippet-value-identifier snippet value)]
+          (when (= value-id identifier)
+            value)))
+      (snippet-nodes snippet))))
 
 
 (defn
@@ -697,12 +668,69 @@ damp.ekeko.snippets.snippet
           (.get ^List lst-raw idx))))))
 
 
+
+;; Anchor resolutions
+;; ------------------
+
+; Resolving the project anchor identifier of a snippet value starts from the compilation unit it originates from,
+; and descends to the value one property or list element at a time. The generalize-* operators resolve every value 
+; of every template in a group, so within a mutation the same owners are resolved over and over again.
+
+(def ^:dynamic *anchor-resolutions*
+  "Atom with a map from project anchor identifiers to the project values they resolve to, and from [::binding identifier] 
+   to the binding of that project value (nil if anchor resolutions are not memoized, see with-anchor-resolutions)"
+  nil)
+
+(defmacro
+  with-anchor-resolutions
+  "Evaluates body such that the project values and bindings that project anchor identifiers resolve to are memoized.
+   Nested uses share the cache of the outermost one.
+   Only to be used while the queried projects do not change (e.g., for the duration of a single mutation)."
+  [& body]
+  `(binding [*anchor-resolutions* (or *anchor-resolutions* (atom {}))]
+     ~@body))
+
+(defn-
+  memoized-resolution
+  [key f]
+  (let [resolutions @*anchor-resolutions*]
+    (if (contains? resolutions key)
+      (get resolutions key)
+      (let [resolved (f)]
+        (swap! *anchor-resolutions* assoc key resolved)
+        resolved))))
+
+(defn-
+  corresponding-project-value|memoized
+  "Resolves a project anchor identifier top-down, reusing the memoized resolution of its owner or list."
+  [id]
+  (memoized-resolution
+    id
+    (fn []
+      (cond
+        (instance? RelativePropertyValueIdentifier id)
+        (if-let [owner (corresponding-project-value|memoized (:ownerid id))]
+          (when-let [property (:property id)]
+            (astnode/node-property-value|reified owner property)))
+        
+        (instance? RelativeListElementIdentifier id)
+        (if-let [lst (corresponding-project-value|memoized (:listid id))]
+          (let [^List lst-raw (astnode/value-unwrapped lst)
+                idx (:index id)]
+            (when (< idx (.size lst-raw))
+              (.get lst-raw idx))))
+        
+        :else
+        (astnode/corresponding-project-value id)))))
+
 (defn
   snippet-corresponding-projectvalue-for-snippetvalue
   "Returns the JDT value from the snippet's project anchor that corresponds to the given snippet value, if it still exists."
   [snippet value]
   (when-let [id (snippet-value-projectanchoridentifier snippet value)]
-    (astnode/corresponding-project-value id)))
+    (if *anchor-resolutions*
+      (corresponding-project-value|memoized id)
+      (astnode/corresponding-project-value id))))
 
 ;(corresponding-projectvalue-for-snippetvalue valueid rootinproject))))))
 
@@ -714,13 +742,17 @@ damp.ekeko.snippets.snippet
     (if-let [projectnode (snippet-corresponding-projectvalue-for-snippetvalue snippet node)]
       (bindingproducingfn projectnode)))
   ([snippet node]  
-    (snippet-node-resolvedbinding 
-      snippet 
-      node
-      (fn [projectnode]
-        (let [nodetype (astnode/ekeko-keyword-for-class-of projectnode)]
-          (when (some #{nodetype} astnode/ekeko-keywords-for-resolveable-ast-classes)
-            (.resolveBinding projectnode)))))))
+    (let [resolve (fn []
+                    (snippet-node-resolvedbinding 
+                      snippet 
+                      node
+                      (fn [projectnode]
+                        (let [nodetype (astnode/ekeko-keyword-for-class-of projectnode)]
+                          (when (some #{nodetype} astnode/ekeko-keywords-for-resolveable-ast-classes)
+                            (.resolveBinding projectnode))))))]
+      (if-let [id (and *anchor-resolutions* (snippet-value-projectanchoridentifier snippet node))]
+        (memoized-resolution [::binding id] resolve)
+        (resolve)))))
 
 
 (defn
@@ -731,18 +763,16 @@ damp.ekeko.snippets.snippet
   ([snippet root bindingpredicate]
     (snippet-children-resolvingto snippet root bindingpredicate snippet-node-resolvedbinding))
   ([snippet root bindingpredicate snippetnodebindingfn]
-    (let [children (atom '())] 
-      (walk-snippet-element-wcard
-        snippet
-        root 
-        (fn [node] 
-          (if-let [nodebinding (snippetnodebindingfn snippet node)]
-            (when (bindingpredicate nodebinding) 
-              (swap! children conj node))))
-        (fn [list])
-        (fn [prim])
-        (fn [null]))
-      @children)))
+    (util/reduce-walk
+      (fn [val] (snippet-node-children|conceptually-wcard snippet val))
+      (fn [children val]
+        (if-let [nodebinding (and (astnode/ast? val) (snippetnodebindingfn snippet val))]
+          (if (bindingpredicate nodebinding) 
+            (conj children val)
+            children)
+          children))
+      '()
+      root)))
 
 
 
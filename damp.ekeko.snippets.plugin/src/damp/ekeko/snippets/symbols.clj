@@ -0,0 +1,78 @@
+(ns
+  ^{:doc "Symbol table of the queried Java projects: the type declarations they contain, with their simple and qualified names.
+          Serves as the domain of operands that range over the names of the projects' types (see operatorsrep/possible-operand-values),
+          for both the operator UI and the genetic search.
+          The table is built once and kept until Ekeko's model changes, or until other project models are queried (see nodeindex/index-stamp)."}
+  damp.ekeko.snippets.symbols
+  (:require [damp.ekeko.snippets
+             [nodeindex :as nodeindex]
+             [resolution :as resolution]])
+  (:import [org.eclipse.jdt.core.dom ITypeBinding TypeDeclaration]))
+
+;; Table
+;; -----
+
+; Symbol of a type declaration
+; - node            The TypeDeclaration
+; - simple-name     Its simple name
+; - qualified-name  Its fully qualified name (nil if its binding can't be resolved)
+(defrecord TypeSymbol [node simple-name qualified-name])
+
+; State of the symbol table
+; - snapshot  The index-stamp of the queried projects (see nodeindex.clj), as of the last time the table was built
+; - table     Delay of the table for snapshot: a map with the :types of the projects (TypeSymbols),
+;             and the distinct :simple-names and :qualified-names of these types
+(def ^:private symbols (atom {:snapshot nil :table nil}))
+
+(defn-
+  build-table
+  []
+  (let [types (vec (for [^TypeDeclaration node (nodeindex/nodes-of-class TypeDeclaration)]
+                     (TypeSymbol. node
+                                  (.getIdentifier (.getName node))
+                                  (if-let [^ITypeBinding binding (.resolveBinding node)]
+                                    (.getQualifiedName binding)))))]
+    {:types types
+     :simple-names (vec (distinct (map :simple-name types)))
+     :qualified-names (vec (distinct (keep :qualified-name types)))}))
+
+(defn-
+  current-table
+  "Returns the symbol table of the queried projects, (re)building it if it's missing or out of date"
+  []
+  (resolution/refresh!)
+  (let [snapshot (nodeindex/index-stamp)
+        state (swap! symbols
+                     (fn [state]
+                       (if (= snapshot (:snapshot state))
+                         state
+                         {:snapshot snapshot
+                          :table (delay (build-table))})))]
+    @(:table state)))
+
+(defn
+  invalidate!
+  "Drops the symbol table, such that it is rebuilt when it's needed next"
+  []
+  (reset! symbols {:snapshot nil :table nil}))
+
+;; Lookups
+;; -------
+
+(defn
+  type-symbols
+  "The TypeSymbols of all type declarations in the queried projects"
+  []
+  (:types (current-table)))
+
+(defn
+  type-simple-names
+  "The distinct simple names of all type declarations in the queried projects"
+  []
+  (:simple-names (current-table)))
+
+(defn
+  type-qualified-names
+  "The distinct qualified names of all type declarations in the queried projects"
+  []
+  (:qualified-names (current-table)))
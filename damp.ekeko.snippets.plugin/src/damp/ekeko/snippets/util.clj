@@ -4,9 +4,10 @@
   damp.ekeko.snippets.util
   (:require [damp.ekeko.jdt [astnode :as astnode]]
             [damp.ekeko.workspace [workspace :as ws]]
-            [clojure.core.reducers :as reducers])
+            [damp.ekeko.snippets [budget :as budget]])
   (:import 
-    (java.util.concurrent TimeoutException TimeUnit FutureTask)
+    (java.util.concurrent TimeoutException TimeUnit FutureTask Callable ForkJoinPool ForkJoinTask LinkedBlockingQueue)
+    (java.util ArrayDeque ArrayList LinkedHashMap List RandomAccess)
     (clojure.lang LispReader$ReaderException)
     [org.eclipse.core.resources ResourcesPlugin IWorkspace]
            [org.eclipse.jdt.core  IMember IJavaElement ITypeHierarchy JavaCore IType IJavaModel IJavaProject IPackageFragment ICompilationUnit]
@@ -53,6 +54,91 @@
   (gen-readable-lvar-for-value|classbased value))
 
 
+;; Walks
+;; -----
+
+; All walkers over templates and JDT values are built on reduce-walk: a pre-order, depth-first walk
+; that keeps the values still to be visited on an explicit, array-based stack.
+; Unlike a worklist of lazily concatenated children, its cost does not grow with the depth of the walk,
+; and it cannot overflow the stack on deep ASTs.
+
+(defn-
+  push-children!
+  "Pushes children onto the stack in reverse order, such that the first child is visited first"
+  [^ArrayDeque stack children]
+  (if (instance? RandomAccess children)
+    (let [^List children children]
+      (loop [idx (dec (.size children))]
+        (when (>= idx 0)
+          (.push stack (.get children idx))
+          (recur (dec idx)))))
+    (when-not (empty? children)
+      (let [^objects children (to-array children)]
+        (loop [idx (dec (alength children))]
+          (when (>= idx 0)
+            (.push stack (aget children idx))
+            (recur (dec idx))))))))
+
+(defn
+  reduce-walk
+  "Walks the values reachable from root in pre-order, reducing f over them.
+   If f returns a reduced value, the walk ends early (as with reduce).
+   @param children  Function that returns the values to descend into from the given value, in order (nil for leaves)
+   @param f  Function of the result so far and the visited value"
+  [children f init root]
+  (let [stack (ArrayDeque.)]
+    (.push stack root)
+    (loop [result init]
+      (if (.isEmpty stack)
+        result
+        (let [value (.pop stack)
+              result (f result value)]
+          (if (reduced? result)
+            @result
+            (do
+              (push-children! stack (children value))
+              (recur result))))))))
+
+(defn
+  walk
+  "Walks the values reachable from root in pre-order, calling visit on each one (see reduce-walk)."
+  [children visit root]
+  (reduce-walk children (fn [_ value] (visit value)) nil root)
+  nil)
+
+(defn
+  some-walk
+  "Returns the first value reachable from root (in pre-order) for which pred returns a logical true value, 
+   ending the walk as soon as it's found (see reduce-walk)."
+  [children pred root]
+  (reduce-walk children (fn [_ value] (if (pred value) (reduced value))) nil root))
+
+(defn
+  walk-values
+  "Calls one of the given functions on value, depending on whether it's an AST node, a list, a primitive value or a null value
+   (to be used by walkers of AST values)"
+  [value node-f list-f primitive-f null-f]
+  (cond 
+    (astnode/ast? value)
+    (node-f value)
+    (astnode/lstvalue? value)
+    (list-f value)
+    (astnode/primitivevalue? value)
+    (primitive-f value)
+    (astnode/nilvalue? value)
+    (null-f value)
+    :default
+    (throw (Exception. (str "Don't know how to walk this value:" value)))))
+
+(defn-
+  jdt-value-children
+  [value]
+  (cond 
+    (astnode/ast? value)
+    (astnode/node-propertyvalues value)
+    (astnode/lstvalue? value)
+    (astnode/value-unwrapped value)))
+
 (defn 
   walk-jdt-node
   "Recursive descent through a JDT node (or JDT lst / primitive property value),
@@ -63,30 +149,9 @@
   ([n f]
     (walk-jdt-node n f f f f))
   ([n node-f list-f primitive-f null-f]
-    (loop
-      [nodes (list n)]
-      (when-not (empty? nodes)
-        (let [val (first nodes)
-              others (rest nodes)]
-          (cond 
-            (astnode/ast? val)
-            (do
-              (node-f val)
-              (recur (concat (astnode/node-propertyvalues val) others)))
-            (astnode/lstvalue? val)
-            (do 
-              (list-f val)
-              (recur (concat (astnode/value-unwrapped val) others)))
-            (astnode/primitivevalue? val)
-            (do
-              (primitive-f val)
-              (recur others))
-            (astnode/nilvalue? val)
-            (do
-              (null-f val)
-              (recur others))
-            :default
-            (throw (Exception. "Don't know how to walk this value."))))))))
+    (walk jdt-value-children
+          (fn [value] (walk-values value node-f list-f primitive-f null-f))
+          n)))
 
 
 (defn 
@@ -96,41 +161,17 @@
   ([e1 e2 f]
     (walk-jdt-nodes e1 e2 f f f f))
   ([e1 e2 node-f list-f primitive-f null-f]
-    (loop
-      [nodes (list [e1 e2])]
-      (when-not (empty? nodes)
-        (let [[v1 v2 :as v] (first nodes)
-              others (rest nodes)]
-          (cond 
-            (astnode/ast? v1)
-            ;;;todo: check v2 is an astnode as well, otherwise throw friendly exception
-            (do
-              (node-f v)
-              (recur 
-                (concat 
-                  (map vector 
-                       (astnode/node-propertyvalues v1)
-                       (astnode/node-propertyvalues v2))
-                  others)))
-            (astnode/lstvalue? v1)
-            (do 
-              (list-f v)
-              (recur (concat
-                       (map vector 
-                            (astnode/value-unwrapped v1)
-                            (astnode/value-unwrapped v2))
-                       others)))
-            (astnode/primitivevalue? v1)
-            (do
-              (primitive-f v)
-              (recur others))
-            (astnode/nilvalue? v1)
-            (do
-              (null-f v)
-              (recur others))
-            :default
-            (throw (Exception. (str "Don't know how to walk this value:" val)))
-            ))))))
+    ;;;todo: check v2 is an astnode as well, otherwise throw friendly exception
+    (walk (fn [[v1 v2]]
+            (if (or (astnode/ast? v1) (astnode/lstvalue? v1))
+              (map vector (jdt-value-children v1) (jdt-value-children v2))))
+          (fn [[v1 :as v]]
+            (walk-values v1 
+                         (fn [_] (node-f v))
+                         (fn [_] (list-f v))
+                         (fn [_] (primitive-f v))
+                         (fn [_] (null-f v))))
+          [e1 e2])))
 
 (defn find-compilationunit [^String project-name ^String cls-name]
   "Find a compilation unit, given an Eclipse project name and an absolute class name"
@@ -159,23 +200,35 @@
            result 
            (recur)))))))
 
+(defn cancellable-task
+  "Creates a FutureTask that runs thunk with a fresh cancellation token as its budget (see budget.clj).
+   Cancelling the task cancels the token, such that the matching engine stops cooperatively at its next check,
+   instead of the thread having to be stopped forcibly.
+   The task runs with the dynamic bindings of the thread that created it; the token is bound on top of these."
+  [thunk]
+  (let [token (budget/cancellation-token)
+        ^Callable callable (bound-fn [] (budget/with-budget token (thunk)))]
+    (proxy [FutureTask] [callable]
+      (cancel [may-interrupt]
+        (budget/cancel! token)
+        (proxy-super cancel may-interrupt)))))
+
 (defn pmap-group
   "Variant of pmap, where each future created is associated with the given thread group."
   [f coll tg]
   (let [n (+ 2 (.. Runtime getRuntime availableProcessors))
         rets (map 
-               #(let [task (FutureTask. (fn [] (f %)))
+               #(let [task (cancellable-task (fn [] (f %)))
                       thr (Thread. tg task)]
                   (.start thr)
-                  [task thr])
+                  task)
                coll)
         
-        run (fn [[task thr]]
+        run (fn [task]
               (try
                 (.get task)
                 (catch Exception e
                   (.cancel task true)
-                  (.stop thr) 
                   (throw e))))
         
         step (fn step [[x & xs :as vs] fs]
@@ -196,64 +249,47 @@
                (for ~seq-exprs
                  (future ~body-expr)))))
 
-(defn pmap-custom [mapfn data threads]
-  "Custom version of pmap that lets you control how many threads to use 
-   (rather than defaulting to the number of CPU threads)"
-  (let [partition-size (max (int (/ (count data) threads)) 1)
-        partitions (doall (partition partition-size partition-size (list) data))]
-    (reduce concat 
-            (parallel-for-all [partition partitions]
-                             (for-all [element partition]
-                                      (mapfn element))))))
-
-;(defn pmap-reducer [mapfn data partition-size]
-;  "Custom version of pmap using Clojure reducers
-;   (When using a hashmap, use into [] to convert it to vector first!)"  
-;  (reducers/fold partition-size reducers/cat reducers/append! 
-;          (reducers/map mapfn data)))
-
-(defn pmap-reducer [mapfn data partitions]
-  "Custom version of pmap using Clojure reducers
-   (When using a hashmap, use into [] to convert it to vector first!)"  
-  (reducers/fold 
-    (max (int (/ (count data) partitions)) 1) 
-    reducers/cat reducers/append! 
-          (reducers/map mapfn data)))
-
-
-(defn parallel-viable-repeat
-  "Keep on applying func until we get cnt results for which test-func is true
-   (This variation of viable-repeat produces all results concurrently.)
-   @param cnt  We want this many viable results
-   @param func  The function to apply repeatedly (has no args)
-   @param test-func  This test-function determines whether a return value of func is viable (has 1 arg, returns a boolean)
-   @param threads  How many threads to use to produce the results in parallel
-   @return a list of cnt viable results"
-  [cnt func test-func threads]
-  (let [partition-size (int (/ cnt threads))
-        partitions (doall (partition partition-size partition-size (list) (range 0 cnt)))]
-    (reduce concat 
-            (parallel-for-all [partition partitions]
-                              (for-all [i partition]
-                                       (loop []
-                                         (let [result (func)]
-                                           (print ".")
-                                           (if (test-func result)
-                                             result 
-                                             (recur)))))))))
-
-(defn reducer-viable-repeat
-  [cnt func test-func partition-size]
-  (pmap-reducer
-    (fn [_]
-      (loop []
-        (let [result (func)]
-          (print ".")
-          (if (test-func result)
-            result 
-            (recur)))))
-    (vec (range 0 cnt))
-    partition-size))
+;; Fork/join pools
+;; ---------------
+
+; Shared fork/join pools, by parallelism
+(def ^:private forkjoin-pools (atom {}))
+
+(defn forkjoin-pool
+  "Returns the shared fork/join pool with the given parallelism (the number of worker threads)"
+  [parallelism]
+  (or (get @forkjoin-pools parallelism)
+      (get (swap! forkjoin-pools
+                  (fn [pools]
+                    (if (contains? pools parallelism)
+                      pools
+                      (assoc pools parallelism (ForkJoinPool. (int parallelism))))))
+           parallelism)))
+
+(defn forkjoin-invoke-all
+  "Runs each of the given functions (without args) as a separate task in a fork/join pool,
+   and returns their results (in order). Idle workers steal tasks from busy ones, 
+   so one expensive task does not hold up the others.
+   If called from within a fork/join task, the tasks are forked in the current pool, and the calling worker helps
+   to execute them while waiting. (This makes it safe to nest calls, e.g. to match templates in parallel
+   while evaluating individuals in parallel.)
+   @param parallelism  Parallelism of the pool to be used, if not called from within a fork/join task"
+  [fns parallelism]
+  (let [tasks (vec (for [f fns]
+                     (let [^Callable callable (bound-fn [] (f))]
+                       (ForkJoinTask/adapt callable))))]
+    (if (ForkJoinTask/inForkJoinPool)
+      (ForkJoinTask/invokeAll ^java.util.Collection tasks)
+      (let [^Callable invoke-all (fn [] (ForkJoinTask/invokeAll ^java.util.Collection tasks) nil)]
+        (.invoke ^ForkJoinPool (forkjoin-pool parallelism) (ForkJoinTask/adapt invoke-all))))
+    (map (fn [^ForkJoinTask task] (.join task)) tasks)))
+
+(defn pmap-forkjoin
+  "Variant of pmap that runs each application of mapfn as a fork/join task (see forkjoin-invoke-all)"
+  [mapfn data parallelism]
+  (forkjoin-invoke-all 
+    (map (fn [element] (fn [] (mapfn element))) data)
+    parallelism))
 
 (defn average
   "Calculate the average in a collection of numbers"
@@ -265,45 +301,97 @@
   [x]
   `(let [x# ~x] (println "dbg:" '~x "=" x#) x#))
 
+;; Asynchronous appends
+;; --------------------
+
+; Pending appends to text files: [file-name text] pairs, or [::flush promise] markers (see flush-appends!)
+(def ^:private append-queue (LinkedBlockingQueue.))
+
+(defn- write-appends
+  "Writes a batch of pending appends, opening each file only once"
+  [batch]
+  (let [per-file (LinkedHashMap.)]
+    (doseq [[file-name text] batch]
+      (if (not= file-name ::flush)
+        (.put per-file file-name (conj (or (.get per-file file-name) []) text))))
+    (doseq [[file-name texts] per-file]
+      (try
+        (with-open [writer (clojure.java.io/writer file-name :append true)]
+          (doseq [^String text texts]
+            (.write writer text)))
+        (catch Exception e
+          (.printStackTrace e))))
+    (doseq [[marker done] batch]
+      (if (= marker ::flush)
+        (deliver done true)))))
+
+(defn- append-loop
+  "Body of the thread that writes all pending appends, in batches"
+  []
+  (loop []
+    (let [batch (ArrayList.)]
+      (.add batch (.take append-queue))
+      (.drainTo append-queue batch)
+      (write-appends batch))
+    (recur)))
+
+(def ^:private appender
+  (delay
+    (.addShutdownHook (Runtime/getRuntime) (Thread. ^Runnable (fn [] (let [done (promise)]
+                                                                        (.put append-queue [::flush done])
+                                                                        (deref done 10000 nil)))))
+    (doto (Thread. ^Runnable append-loop "Ekeko/X appender")
+      (.setDaemon true)
+      (.start))))
+
+(defn append-async!
+  "Appends text to a file, without waiting for it to be written. 
+   All appends are written in order by a single thread, which opens each file once per batch of pending appends
+   (instead of once per append); use flush-appends! to wait until they're written."
+  [file-name text]
+  @appender
+  (.put append-queue [file-name text]))
+
+(defn flush-appends!
+  "Waits until all appends that were issued so far (see append-async!) have been written"
+  []
+  @appender
+  (let [done (promise)]
+    (.put append-queue [::flush done])
+    @done))
+
 (def log-enabled true)
 
 (defmacro log
   "Identity function, that writes msg to file-name.txt as a side-effect.
-   If the file already exists, msg is appended."
+   If the file already exists, msg is appended. (The file is written asynchronously, see append-async!)"
   [file-name msg]
   (if log-enabled
     `(let [msg# ~msg] 
-      (spit (str ~file-name ".txt") (str msg# "\n") :append true :create true)
+      (append-async! (str ~file-name ".txt") (str msg# "\n"))
       msg#)
     `~msg))
 
 (defn append-csv
-  "Appends a new row of values to a .csv file"
+  "Appends a new row of values to a .csv file
+   (The file is written asynchronously, see append-async!)"
   [file-name vals]
-  (spit file-name 
-        (str (apply str (interpose ";" vals)) "\n") 
-        :append true :create true))
+  (append-async! file-name (str (apply str (interpose ";" vals)) "\n")))
 
-; Source: https://github.com/flatland/clojail/blob/master/src/clojail/core.clj#L40
+; (No thread is started; the function runs on the current thread, within a budget that the matching engine checks regularly,
+;  as do queries that are compiled to closures (see closures.clj). Other code that doesn't check the budget runs to completion.)
 (defn thunk-timeout
-  "Takes a function and an amount of time to wait for thse function to finish
-   executing."
+  "Takes a function and an amount of time (in ms) that it may take to finish executing,
+   and throws a TimeoutException if it didn't finish in time.
+   @param tg  Unused; kept for callers that used to run the function in a thread of this thread group"
   ([thunk ms]
      (thunk-timeout thunk ms nil))
   ([thunk time tg]
-     (let [task (FutureTask. thunk)
-           thr (if tg (Thread. tg task) (Thread. task))]
-       (try
-         (.start thr)
-         (.get task time TimeUnit/MILLISECONDS)
-         (catch TimeoutException e
-           (.cancel task true)
-           (.stop thr) 
-           (throw (TimeoutException. "Execution timed out.")))
-         (catch Exception e
-           (.cancel task true)
-           (.stop thr) 
-           (throw e))))))
+     (let [b (budget/make-budget {:time-limit time})
+           result (budget/with-budget b (thunk))]
+       (if (and (budget/truncated? b) (budget/out-of-time? b))
+         (throw (TimeoutException. "Execution timed out."))
+         result))))
 
 (defmacro with-timeout
   "Apply this macro to an expression and an exception is thrown if it takes longer than a given time to evaluate the expression"
@@ -313,14 +401,13 @@
   `(thunk-timeout (fn [] ~body) ~time ~tg)))
 
 (defmacro future-group [thread-group body]
-  `(let [task# (FutureTask. (fn [] ~body))
+  `(let [task# (cancellable-task (fn [] ~body))
          thr# (Thread. ~thread-group task#)]
      (try
        (.start thr#)
        task#
        (catch Exception e#
          (.cancel task# true)
-         (.stop thr#) 
          (throw e#)))))
 
 (defn current-time 